@@ -1,6 +1,5 @@
 import Jama.Matrix;
 import entity_extractor.EntityExtractor;
-import entity_extractor.ExtractedEntity;
 import entity_extractor.OpenCalaisExtractor;
 import entity_extractor.TextEntities;
 import org.javatuples.Pair;
@@ -15,7 +14,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.logging.*;
 
 /**
@@ -89,7 +87,7 @@ public class CommonEntitiesMatrixCreator {
                             TextEntities entities = entityExtractor.getEntities(file);
                             texts.add(entities);
 
-                            LOGGER.log(Level.FINE, "[main] Got " + entities.getEntities().size() + " extracted entities from " + file + "\n");
+                            LOGGER.log(Level.FINE, "[main] Got " + entities.getEntitiesNum() + " extracted entities from " + file + "\n");
                         } else {
                             LOGGER.log(Level.FINE, "Skipping " + file.getAbsolutePath());
                         }
@@ -102,6 +100,8 @@ public class CommonEntitiesMatrixCreator {
             LOGGER.log(Level.SEVERE, Arrays.toString(e.getStackTrace()));
             LOGGER.log(Level.SEVERE, "Not comparing anything, there was an error");
             return;
+        } finally {
+            entityExtractor.close();
         }
 
         // Get number of texts and create matrices for storing results in
@@ -118,6 +118,12 @@ public class CommonEntitiesMatrixCreator {
         // List of pairs for use in R correlation test
         ArrayList<Pair<Double, Double>> pairs = new ArrayList<>();
 
+        // Unique entity names of each text, found once instead of for every pair
+        int[][] uniqueNames = new int[numOfTexts][];
+        for (int i = 0; i < numOfTexts; i++) {
+            uniqueNames[i] = uniqueNameIds(texts.get(i));
+        }
+
         // For all text combinations add common entities % to the matrix
         for (int i = 0; i < numOfTexts; i++) {
             for (int j = 0; j < i + 1; j++) {
@@ -132,28 +138,28 @@ public class CommonEntitiesMatrixCreator {
                     TextEntities text1 = texts.get(i);
                     TextEntities text2 = texts.get(j);
 
-                    // Get total number of unique entities
-                    ArrayList<ExtractedEntity> allEntities = new ArrayList<>();
-                    allEntities.addAll(text1.getEntities());
-                    allEntities.addAll(text2.getEntities());
-                    int totalEntities = uniqueEntities(allEntities).size();
-
-                    // Assuming that same "name" attribute == same entity, find the common ones
+                    // Assuming that same "name" attribute == same entity, find the common ones by merging the
+                    // sorted name ids of the texts
+                    int[] names1 = uniqueNames[i];
+                    int[] names2 = uniqueNames[j];
                     int commonEntities = 0;
 
-                    // For each (unique) entity of text1, check if there is one in the other text with the same name
-                    for (ExtractedEntity text1Entity : uniqueEntities(text1.getEntities())) {
-                        for (ExtractedEntity text2Entity : uniqueEntities(text2.getEntities())) {
-                            if (text1Entity.getName().equals(text2Entity.getName())) {
-                                // Count entity as existing in both texts
-                                commonEntities++;
-
-                                // We found that the entity exists in text2, so skip other entities of text 2
-                                break;
-                            }
+                    for (int a = 0, b = 0; a < names1.length && b < names2.length; ) {
+                        if (names1[a] < names2[b]) {
+                            a++;
+                        } else if (names1[a] > names2[b]) {
+                            b++;
+                        } else {
+                            // Count entity as existing in both texts
+                            commonEntities++;
+                            a++;
+                            b++;
                         }
                     }
 
+                    // Get total number of unique entities
+                    int totalEntities = names1.length + names2.length - commonEntities;
+
                     double result = ((double)commonEntities) / totalEntities;
 //                    System.out.println(i + "x" + j + " -> " + commonEntities + "/" + totalEntities + " ===> " + result);
 
@@ -271,21 +277,17 @@ public class CommonEntitiesMatrixCreator {
     }
 
     /**
-     * Gets a list of extracted entities, and returns another one which contains each entity only once
-     * (compares them by name)
-     * @param entities  Entities with duplicates
-     * @return          Entities without duplicates
+     * Gets the names of a text's entities, with each name only once (entities with the same name are the same entity)
+     * @param text  Text
+     * @return      Sorted ids of the entity names
      */
-    private List<ExtractedEntity> uniqueEntities(List<ExtractedEntity> entities) {
-        List<ExtractedEntity> unique = new ArrayList<>();
+    private int[] uniqueNameIds(TextEntities text) {
+        int[] ids = new int[text.getEntitiesNum()];
 
-        for (ExtractedEntity e : entities) {
-            // If the entity is not in the unique list, add it
-            if (!unique.contains(e)) {
-                unique.add(e);
-            }
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = text.getEntityNameId(i);
         }
 
-        return unique;
+        return Arrays.stream(ids).sorted().distinct().toArray();
     }
 }
@@ -1,18 +1,19 @@
 import csv_export.CSVExporter;
+import csv_export.CSVStreamWriter;
 import csv_export.ComparisonContainer;
 import entity_extractor.*;
 import gr.demokritos.iit.conceptualIndex.structs.Distribution;
 import utils.Methods;
-import utils.Percentage;
 import utils.VerySimpleFormatter;
 import utils.tf_idf.DocumentOptimizedParser;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.*;
 
 /**
@@ -21,12 +22,33 @@ import java.util.logging.*;
  * with all other texts with all the available methods, and outputs the results to a CSV file (and a log file)
  */
 public class TextComparator {
-    private final static boolean cacheGraphs = true;    // Enable/disable caching of the graphs in memory for speed, but can use a lot of RAM
+    private final static boolean cacheGraphs = true;    // Enable/disable building all graphs in advance (else they are built when first needed)
+    private final static double graphMemoryFraction = 0.5;  // Fraction of the max heap that cached graphs can use
+    private final static String graphStoreFile = "texts/output/graphs.bin";   // Store of built graphs (null to disable)
+    private final static boolean pipelined = true;      // Build graphs while entities are still being extracted
+    private final static int pipelineQueueSize = 64;    // Texts that can wait between the pipeline stages
+    private final static boolean skipDuplicates = false; // Compare only one text of each group of (near) duplicates, copying its results to the others
+    private final static double duplicateThreshold = 0.9;   // Minimum estimated Jaccard similarity of duplicates
+    private final static int csvQueueCapacity = 4096;  // Comparisons that can wait to be written to the CSV file
+    private final static boolean compactGraphs = false; // Compare compact graphs instead of JInsect graphs (always on for k-NN and the join)
+    private final static int nearestNeighbours = 0;     // Write only the k most similar texts of each text (0 for all comparisons)
+    private final static int neighbourMethod = Methods.PLACEHOLDER; // Graph method to find the nearest neighbours with
+    private final static int neighbourMeasure = NearestNeighbours.VALUE_SIMILARITY;  // Similarity to rank the neighbours by
+    private final static double joinThreshold = 0;      // Write only the pairs with at least this similarity (0 for all pairs)
+    private final static int joinMethod = Methods.PLACEHOLDER;  // Graph method of the similarity join
+    private final static int joinMeasure = SimilarityJoin.NORMALIZED_VALUE_SIMILARITY;   // Similarity of the join
     private final boolean keepTopTerms;   // If true, will leave top terms (ranked by TF-IDF) in the text when making the graphs
 
     private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
 
     public TextComparator() {
+        // The nearest neighbours are found with one method, so only its graphs are built and compared
+        if (nearestNeighbours > 0) {
+            for (int method : Methods.methods.keySet()) {
+                Methods.methods.put(method, method == neighbourMethod);
+            }
+        }
+
         // Enable TF-IDF if placeholder method or Cosine Similarity is enabled
         this.keepTopTerms = Methods.isEnabled(Methods.PLACEHOLDER) || Methods.isEnabled(Methods.COSINE) || Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT);
     }
@@ -61,6 +83,11 @@ public class TextComparator {
         fileHandler.setFormatter(new VerySimpleFormatter());
         LOGGER.addHandler(fileHandler);
 
+        if (nearestNeighbours > 0 && joinThreshold > 0) {
+            LOGGER.log(Level.WARNING, "Both nearestNeighbours and joinThreshold are set, the similarity join is not " +
+                    "used when finding the nearest neighbours");
+        }
+
         // Main variables
         String inputFolder = "texts/input";
 
@@ -70,10 +97,31 @@ public class TextComparator {
 //        placeholders.add("-");
         placeholders.add("A");
 
+        // The nearest neighbours are found with the first placeholder only (see getMethodPlaceholder)
+        if (nearestNeighbours > 0) {
+            placeholders.subList(1, placeholders.size()).clear();
+        }
+
         File input = new File(inputFolder);
         EntityExtractor entityExtractor = new OpenCalaisExtractor();
         ArrayList<TextEntities> texts = new ArrayList<>();
-        Map<String, GraphCache> graphs = new HashMap<>();
+        ConcurrentMap<String, GraphCache> graphs = new ConcurrentHashMap<>();
+        GraphCache.setCompactGraphs(compactGraphs || nearestNeighbours > 0 || joinThreshold > 0);
+        GraphCache.setPlaceholdersNum(placeholders.size());
+        if (nearestNeighbours == 0 && joinThreshold > 0) {
+            // The join's graphs keep the source vertex degrees of its bounds, so the budget counts them
+            GraphCache.setSourceDegreesMethod(joinMethod);
+        }
+        GraphMemoryBudget graphBudget = new GraphMemoryBudget((long) (Runtime.getRuntime().maxMemory() * graphMemoryFraction));
+        long blockBytes = graphBudget.getBudgetBytes() / 2;
+        GraphStore graphStore = null;
+        if (graphStoreFile != null) {
+            try {
+                graphStore = new GraphStore(new File(graphStoreFile), GraphCache.getVertexLabels());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not open graph store, graphs will not be saved: " + e.getMessage());
+            }
+        }
         ArrayList<String> errors = new ArrayList<>();
 
         try {
@@ -84,40 +132,53 @@ public class TextComparator {
                 LOGGER.log(Level.INFO, "Getting text entities...");
                 File[] files = input.listFiles();
                 if (files != null) {
-                    int i = 1;
-                    int totalFiles = files.length;
-                    double percentage = 0;
-                    double currPercent;
+                    List<File> inputFiles = new ArrayList<>();
 
                     for (File file : files) {
                         if (file.isFile()) {
-                            // Log the progress so far
-                            currPercent = Percentage.percent(i, totalFiles);
-                            Level lvl = Level.FINE;
-                            if (currPercent - percentage > 10 || i == totalFiles) {
-                                lvl = Level.INFO;
-                                percentage = currPercent;
-                            }
-
-                            LOGGER.log(lvl, String.format("[main] (" + i + "/" + files.length + " - %.2f%%) Getting entities for " + file + "", currPercent));
-
-                            // Get entities for this file and save them
-                            TextEntities entities = entityExtractor.getEntities(file);
-                            texts.add(entities);
-
-                            LOGGER.log(Level.FINE, "[main] Got " + entities.getEntities().size() + " extracted entities from " + file + "\n");
+                            inputFiles.add(file);
                         } else {
                             LOGGER.log(Level.FINE, "Skipping " + file.getAbsolutePath());
                         }
+                    }
+
+                    if (pipelined) {
+                        // Build graphs in the pipeline only if they will all fit in one block (see below), else they
+                        // would be evicted before their block is compared. The file sizes give an upper bound.
+                        long inputGraphsSize = 0;
+                        for (File file : inputFiles) {
+                            inputGraphsSize += GraphBlocks.estimateGraphsSize(file, placeholders);
+                        }
+                        boolean buildGraphs = cacheGraphs && inputGraphsSize <= blockBytes;
+                        if (cacheGraphs && !buildGraphs) {
+                            LOGGER.log(Level.INFO, "Graphs may not fit in memory, not building them while getting entities");
+                        }
+
+                        // Get entities and build the graphs that do not need TF-IDF at the same time
+                        int cores = Runtime.getRuntime().availableProcessors();
+                        IngestionPipeline pipeline = new IngestionPipeline(entityExtractor, placeholders, graphBudget, graphStore, cores, cores, pipelineQueueSize);
+
+                        texts.addAll(pipeline.run(inputFiles, buildGraphs ? graphs : null));
+                    } else {
+                        // Get entities for all files (the extractor sends multiple requests at once if it can)
+                        texts.addAll(entityExtractor.getEntities(inputFiles));
+                    }
 
-                        i++;
+                    for (TextEntities entities : texts) {
+                        LOGGER.log(Level.FINE, "[main] Got " + entities.getEntitiesNum() + " extracted entities from " + entities.getTitle() + "\n");
                     }
                 }
             }
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, Arrays.toString(e.getStackTrace()));
             LOGGER.log(Level.SEVERE, "Not comparing anything, there was an error");
+
+            if (graphStore != null) {
+                graphStore.close();
+            }
             return;
+        } finally {
+            entityExtractor.close();
         }
 
         // Calculate TF-IDF of documents, so we can keep top terms
@@ -157,14 +218,60 @@ public class TextComparator {
         }
         long tfIdfEnd = System.currentTimeMillis();
 
+        // Find duplicate texts, only one of each group of duplicates will be compared with the other groups (the
+        // representatives are the first texts to compare, followed by the other distinct texts of the groups)
+        List<TextEntities> textsToCompare = texts;
+        int representativesNum = texts.size();
+        DuplicateDetector duplicateDetector = null;
+        if (skipDuplicates) {
+            LOGGER.log(Level.INFO, "Finding duplicate texts...");
+            duplicateDetector = new DuplicateDetector(3, 128, 32, duplicateThreshold);
+            duplicateDetector.findDuplicates(texts);
+            textsToCompare = duplicateDetector.getTextsToCompare();
+            representativesNum = duplicateDetector.getRepresentatives().size();
+
+            // Graphs of exact duplicates (that the pipeline may have built) are not needed
+            Set<String> comparedTitles = new HashSet<>();
+            for (TextEntities entities : textsToCompare) {
+                comparedTitles.add(entities.getTitle());
+            }
+            Iterator<Map.Entry<String, GraphCache>> it = graphs.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, GraphCache> entry = it.next();
+
+                if (!comparedTitles.contains(entry.getKey())) {
+                    entry.getValue().evictAll();
+                    it.remove();
+                }
+            }
+        }
+
+        // Split the texts into blocks whose graphs fit in half the memory budget, so two blocks fit at once. If they
+        // do not all fit in one block, the pairs are compared one pair of blocks at a time (and the graphs of each
+        // block are loaded when it is compared)
+        GraphBlocks graphBlocks = new GraphBlocks(textsToCompare.subList(0, representativesNum), graphs, placeholders,
+                blockBytes);
+        boolean outOfCore = graphBlocks.size() > 1;
+        if (outOfCore) {
+            LOGGER.log(Level.INFO, "Graphs do not fit in memory, comparing " + graphBlocks.size() + " blocks of texts");
+        }
+
         // Calculate graphs in advance
         LOGGER.log(Level.INFO, "Calculating graphs...");
         long graphCalculationStart = System.currentTimeMillis();
-        if (cacheGraphs) {
-            for (TextEntities entities : texts) {
-                GraphCache cache = new GraphCache(entities, dp);
-                cache.calculateGraphs(placeholders);
-                graphs.put(entities.getTitle(), cache);
+        if (cacheGraphs && !outOfCore) {
+            // Build the graphs of all texts (and all methods of each text) in parallel
+            GraphBuilder graphBuilder = new GraphBuilder(placeholders, dp, graphBudget, graphStore, Runtime.getRuntime().availableProcessors());
+            graphBuilder.build(textsToCompare, graphs);
+        } else {
+            // The graphs will be built (once) when the comparisons first need them
+            for (TextEntities entities : textsToCompare) {
+                GraphCache cache = graphs.putIfAbsent(entities.getTitle(), new GraphCache(entities, dp, graphBudget, graphStore));
+
+                if (cache != null) {
+                    // Created by the ingestion pipeline, before the TF-IDF was calculated
+                    cache.setDocumentParser(dp);
+                }
             }
         }
         long graphCalculationEnd = System.currentTimeMillis();
@@ -173,31 +280,87 @@ public class TextComparator {
         LOGGER.log(Level.INFO, "Starting text comparisons...");
         long comparisonsStart = System.currentTimeMillis();
 
-        // List to keep all comparisons that were made to write them to CSV file
-        List<ComparisonContainer> comparisons = Collections.synchronizedList(new ArrayList<ComparisonContainer>());
-
-        int textsLen = texts.size();
+        int textsLen = textsToCompare.size();
         int cores = Runtime.getRuntime().availableProcessors();
         LOGGER.log(Level.INFO, "Using " + cores + " cores...");
 
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(cores);
+        // Compare all pairs on a work-stealing pool, with a worker for each thread
+        final List<TextEntities> finalTextsToCompare = textsToCompare;
+        Supplier<PairComparer> workerFactory;
+        Supplier<PairComparer> groupWorkerFactory;
+        NearestNeighbours neighbours = null;
+        NearestNeighbours groupNeighbours = null;
+        CSVStreamWriter csvWriter = null;
+        SimilarityJoin join = null;
+        if (nearestNeighbours > 0) {
+            // Keep only the nearest neighbours of each text by one method, instead of all the comparisons
+            final NearestNeighbours finalNeighbours = new NearestNeighbours(textsLen, nearestNeighbours, neighbourMeasure);
+            final String neighbourPlaceholder = getMethodPlaceholder(neighbourMethod, placeholders);
+            workerFactory = () -> new NearestNeighbourWorker(finalTextsToCompare, graphs, neighbourMethod,
+                    neighbourPlaceholder, finalNeighbours);
+            neighbours = finalNeighbours;
+
+            // The pairs inside the groups of duplicates are ranked separately, as they stand for other texts
+            final NearestNeighbours finalGroupNeighbours = new NearestNeighbours(textsLen, nearestNeighbours, neighbourMeasure);
+            groupWorkerFactory = () -> new NearestNeighbourWorker(finalTextsToCompare, graphs, neighbourMethod,
+                    neighbourPlaceholder, finalGroupNeighbours);
+            groupNeighbours = finalGroupNeighbours;
+        } else {
+            // Write the comparisons to the CSV file while they are made, instead of keeping them all in memory
+            final CSVStreamWriter finalCsvWriter = new CSVStreamWriter("out.csv", placeholders, csvQueueCapacity);
+            Consumer<ComparisonContainer> resultSink = finalCsvWriter;
+            if (duplicateDetector != null) {
+                // Copy the results of each compared text to the texts it stands for
+                final DuplicateDetector finalDuplicateDetector = duplicateDetector;
+                resultSink = c -> finalDuplicateDetector.expandComparison(c, finalCsvWriter);
+            }
 
-        // Start a thread for each CPU core
-        for (int i = 0; i < cores; i++) {
-            ComparisonWorker r = new ComparisonWorker(i, cores, textsLen, placeholders, errors, texts, graphs, comparisons, fullDistributions);
-            executor.execute(r);
-        }
+            // Compare and write only the pairs that can reach the join threshold
+            if (joinThreshold > 0) {
+                join = new SimilarityJoin(joinMethod, getMethodPlaceholder(joinMethod, placeholders), joinMeasure,
+                        joinThreshold, placeholders);
+            }
 
-        // Wait for threads to finish before continuing
-        executor.shutdown();
+            final Map<String, double[]> finalFullDistributions = fullDistributions;
+            final Consumer<ComparisonContainer> finalResultSink = resultSink;
+            final SimilarityJoin finalJoin = join;
+            workerFactory = () -> new ComparisonWorker(placeholders, errors, finalTextsToCompare, graphs,
+                    finalFullDistributions, finalResultSink, finalJoin);
+            groupWorkerFactory = workerFactory;
+            csvWriter = finalCsvWriter;
+        }
 
         try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            ComparisonScheduler scheduler = new ComparisonScheduler(cores);
+            if (outOfCore) {
+                scheduler.run(graphBlocks, workerFactory);
+            } else {
+                scheduler.run(representativesNum, workerFactory);
+            }
+
+            // Compare the texts inside each group of duplicates
+            if (duplicateDetector != null) {
+                new ComparisonScheduler(cores).runPairs(duplicateDetector.getGroupPairs(), groupWorkerFactory);
+            }
+        } finally {
+            // Finish writing the CSV file and close the graph store even if the comparisons failed, so the writer
+            // thread ends and the store's files are released
+            try {
+                if (csvWriter != null) {
+                    csvWriter.close();
+                }
+            } finally {
+                if (graphStore != null) {
+                    LOGGER.log(Level.INFO, graphStore.toString());
+                    graphStore.close();
+                }
+            }
         }
+
         long comparisonsEnd = System.currentTimeMillis();
 
+        LOGGER.log(Level.INFO, graphBudget.toString());
+
         // Print any errors that occurred
         if (errors.size() > 0) {
             LOGGER.log(Level.SEVERE, "Errors:");
@@ -207,11 +370,67 @@ public class TextComparator {
             }
         }
 
-        // Export to CSV
-        CSVExporter.exportCSV("out.csv", placeholders, comparisons);
+        if (neighbours != null) {
+            LOGGER.log(Level.INFO, neighbours.toString());
+            Map<String, List<ComparisonContainer>> neighbourLists = getNeighbourLists(neighbours, textsToCompare,
+                    representativesNum);
+
+            // Duplicates get the neighbours of their representative text and their group
+            if (duplicateDetector != null) {
+                LOGGER.log(Level.INFO, groupNeighbours.toString());
+                neighbourLists = duplicateDetector.expandNeighbours(neighbourLists,
+                        getNeighbourLists(groupNeighbours, textsToCompare, textsLen), nearestNeighbours,
+                        neighbourMeasure);
+            }
+
+            CSVExporter.exportNeighbours("neighbours.csv", neighbourLists);
+        } else if (join != null) {
+            LOGGER.log(Level.INFO, join.toString());
+        }
 
         System.out.println("TF-IDF time: " + ((tfIdfEnd - tfIdfStart) / 1000.0) + " seconds");
         System.out.println("Graph creation time: " + ((graphCalculationEnd - graphCalculationStart) / 1000.0) + " seconds");
         System.out.println("Comparisons time: " + ((comparisonsEnd - comparisonsStart) / 1000.0) + " seconds");
     }
+
+    /**
+     * Get the neighbours of the first texts as comparisons, by title
+     *
+     * @param neighbours Nearest neighbours of the texts
+     * @param texts      Texts that the neighbours were found for
+     * @param textsNum   Number of texts to get the neighbours of
+     * @return Neighbours of each text, most similar first (comparisons with one result)
+     */
+    private static Map<String, List<ComparisonContainer>> getNeighbourLists(NearestNeighbours neighbours,
+                                                                            List<TextEntities> texts, int textsNum) {
+        Map<String, List<ComparisonContainer>> neighbourLists = new LinkedHashMap<>();
+
+        for (int i = 0; i < textsNum; i++) {
+            String title = texts.get(i).getTitle();
+            List<ComparisonContainer> textNeighbours = new ArrayList<>();
+
+            for (NearestNeighbours.Neighbour neighbour : neighbours.getNeighbours(i)) {
+                textNeighbours.add(new ComparisonContainer(title, texts.get(neighbour.getText()).getTitle(),
+                        Collections.singletonList(neighbour.getResult())));
+            }
+
+            neighbourLists.put(title, textNeighbours);
+        }
+
+        return neighbourLists;
+    }
+
+    /**
+     * Get the placeholder that a method is run with when only one method is used (the first placeholder)
+     *
+     * @param method       Method
+     * @param placeholders Placeholders
+     * @return Placeholder, or null if the method does not use placeholders
+     */
+    private static String getMethodPlaceholder(int method, List<String> placeholders) {
+        boolean usesPlaceholders = method == Methods.PLACEHOLDER || method == Methods.PLACEHOLDER_SS ||
+                method == Methods.PLACEHOLDER_EXTRA_WEIGHT;
+
+        return usesPlaceholders ? placeholders.get(0) : null;
+    }
 }
@@ -1,8 +1,11 @@
 package clustering;
 
 import clustering.markov.Cluster;
+import clustering.markov.MarkovClusterer;
 import clustering.markov.TestableMarkovClusterer;
 import entity_extractor.EntityExtractor;
+import entity_extractor.GraphCache;
+import entity_extractor.GraphStore;
 import entity_extractor.OpenCalaisExtractor;
 import entity_extractor.TextEntities;
 import utils.Percentage;
@@ -83,7 +86,7 @@ public class MarkovClustererTest {
 //                            entities.printEntities();
                             texts.add(entities);
 
-                            LOGGER.log(Level.FINE, "[main] Got " + entities.getEntities().size() + " extracted entities from " + file + "\n");
+                            LOGGER.log(Level.FINE, "[main] Got " + entities.getEntitiesNum() + " extracted entities from " + file + "\n");
                         } else {
                             LOGGER.log(Level.FINE, "Skipping " + file.getAbsolutePath());
                         }
@@ -96,9 +99,16 @@ public class MarkovClustererTest {
             LOGGER.log(Level.SEVERE, Arrays.toString(e.getStackTrace()));
             LOGGER.log(Level.SEVERE, "Not comparing anything, there was an error");
             return;
+        } finally {
+            entityExtractor.close();
         }
 
         LOGGER.log(Level.INFO, "Starting the markov clustering");
+
+        // Graphs are the same for every inflation factor (and every run), so keep them in a store
+        GraphStore graphStore = new GraphStore(new File("texts/output/graphs.bin"), GraphCache.getVertexLabels());
+        MarkovClusterer.setGraphStore(graphStore);
+
 //        MarkovClusterer mc = new MarkovClusterer(texts);
         TestableMarkovClusterer tmc;
 
@@ -152,6 +162,8 @@ public class MarkovClustererTest {
 //        for (Cluster c : clusters) {
 //            LOGGER.log(Level.INFO, c.getID() + " => " + c.size() + " texts");
 //        }
+
+        graphStore.close();
     }
 
 }
@@ -23,12 +23,15 @@
 package clustering.markov;
 
 import Jama.Matrix;
+import entity_extractor.GraphStore;
 import entity_extractor.TextEntities;
 import gr.demokritos.iit.jinsect.documentModel.comparators.NGramCachedGraphComparator;
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentNGramGraph;
 import gr.demokritos.iit.jinsect.documentModel.representations.DocumentWordGraph;
 import gr.demokritos.iit.jinsect.structs.GraphSimilarity;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
@@ -47,6 +50,7 @@ public class MarkovClusterer {
     //    Map<Cluster, List<Sequence>> hsSequencesPerCluster = new HashMap<>();
     Map<TextEntities, Cluster> hsClusterPerSequence = new HashMap<>();
     List<TextEntities> origSequences;
+    private static GraphStore graphStore = null;
 
     public MarkovClusterer(List<TextEntities> lsSequences) {
         origSequences = new ArrayList<>(lsSequences);
@@ -60,11 +64,39 @@ public class MarkovClusterer {
      */
     public static DocumentWordGraph getGraphFromTextEntities(TextEntities te) {
         DocumentWordGraph g = new DocumentWordGraph();
+
+        if (graphStore == null) {
+            g.setDataString(te.getEntityTextWithPlaceholderSameSize("A"));
+            return g;
+        }
+
+        // Use the stored graph if it was built in a previous run (with the same text and entities)
+        String key = GraphStore.getKey("markov", "A", g,
+                GraphStore.getContentHash(te.getText()) + ":" + GraphStore.getEntitiesHash(te), null);
+        DocumentNGramGraph stored = graphStore.get(key);
+        if (stored instanceof DocumentWordGraph) {
+            return (DocumentWordGraph) stored;
+        }
+
         g.setDataString(te.getEntityTextWithPlaceholderSameSize("A"));
+        try {
+            graphStore.put(key, g);
+        } catch (IOException e) {
+            Logger.getLogger(MarkovClusterer.class.getCanonicalName()).log(Level.SEVERE, null, e);
+        }
 
         return g;
     }
 
+    /**
+     * Set a graph store to load the graphs of the texts from (and save them to), so that they are not built again
+     * for every comparison and every run
+     * @param store Graph store (null to always build the graphs)
+     */
+    public static void setGraphStore(GraphStore store) {
+        graphStore = store;
+    }
+
     public List<Cluster> calculateClusters() {
         // Get clusters of sequences
         List<Cluster> lClusters = getSequenceClusters();
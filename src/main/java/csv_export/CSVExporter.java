@@ -6,118 +6,148 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class CSVExporter {
     private static String separator = ",";
 
-    @SuppressWarnings("SameParameterValue")
-    public static void exportCSV(String filename, List<String> placeholders, List<ComparisonContainer> results) {
+    /**
+     * Write the nearest neighbours of each text to a CSV file, one line for each neighbour with its rank and its
+     * similarity to the text
+     *
+     * @param filename   Name of the CSV file
+     * @param neighbours Neighbours of each text, by title, most similar first (comparisons with one result)
+     */
+    public static void exportNeighbours(String filename, Map<String, List<ComparisonContainer>> neighbours) {
         Logger LOGGER = Logger.getLogger("NamedEntityGraph");
-        StringBuilder sb;
 
         try {
             PrintWriter writer = new PrintWriter(filename, "UTF-8");
-//            writer.println("sep=" + separator);
+            writer.println("Text,Rank,Neighbour,val,cont,size,NVS");
 
-            // Print header for text titles
-            writer.print("Text 1,Text 2,");
+            for (List<ComparisonContainer> textNeighbours : neighbours.values()) {
+                int rank = 1;
 
-            List<String> comparisons = new ArrayList<>();
+                for (ComparisonContainer cont : textNeighbours) {
+                    ComparisonResult res = cont.getResults().get(0);
 
-            // Gather names of comparisons that were made
-            if (Methods.isEnabled(Methods.N_GRAMS))
-                comparisons.add("n-gram graph");
-
-            if (Methods.isEnabled(Methods.WORD_GRAPHS))
-                comparisons.add("word graph");
-
-            if (Methods.isEnabled(Methods.PLACEHOLDER)) {
-                for (String ph : placeholders) {
-                    comparisons.add("PH (" + ph + ")");
+                    writer.println(cont.getText1() + separator + rank + separator + cont.getText2() + separator +
+                            res.getValueSim() + separator + res.getContainmentSim() + separator + res.getSizeSim() +
+                            separator + res.getNVS());
+                    rank++;
                 }
             }
 
-            if (Methods.isEnabled(Methods.PLACEHOLDER_SS)) {
-                for (String ph : placeholders) {
-                    comparisons.add("PHSS (" + ph + ")");
-                }
-            }
+            writer.close();
 
-            if (Methods.isEnabled(Methods.RANDOM))
-                comparisons.add("rand");
+            LOGGER.log(Level.INFO, "Nearest neighbours CSV file written successfully");
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error writing CSV file: " + Arrays.toString(e.getStackTrace()));
+        }
+    }
 
-            if (Methods.isEnabled(Methods.COSINE))
-                comparisons.add("cosine");
+    /**
+     * Get the header line of the CSV file, with the titles of the texts and the similarities of each enabled method
+     *
+     * @param placeholders Placeholders that the placeholder methods were run with
+     * @return Header line (without line separator)
+     */
+    public static String getHeader(List<String> placeholders) {
+        // Print header for text titles
+        StringBuilder sb = new StringBuilder("Text 1,Text 2,");
 
-            if (Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT)) {
-                for (String ph : placeholders) {
-                    comparisons.add("PHEW (" + ph + ")");
-                }
+        List<String> comparisons = new ArrayList<>();
+
+        // Gather names of comparisons that were made
+        if (Methods.isEnabled(Methods.N_GRAMS))
+            comparisons.add("n-gram graph");
+
+        if (Methods.isEnabled(Methods.WORD_GRAPHS))
+            comparisons.add("word graph");
+
+        if (Methods.isEnabled(Methods.PLACEHOLDER)) {
+            for (String ph : placeholders) {
+                comparisons.add("PH (" + ph + ")");
             }
+        }
 
-            // Create headers with graph similarity measures for each comparison
-            sb = new StringBuilder();
-
-            for (String s : comparisons) {
-                // Value similarity header
-                sb.append(s);
-                sb.append(" val");
-                sb.append(separator);
-
-                // Containment similarity header
-                sb.append(s);
-                sb.append(" cont");
-                sb.append(separator);
-
-                // Size similarity header
-                sb.append(s);
-                sb.append(" size");
-                sb.append(separator);
-
-                // Normalized value similarity header
-                sb.append(s);
-                sb.append(" NVS");
-                sb.append(separator);
+        if (Methods.isEnabled(Methods.PLACEHOLDER_SS)) {
+            for (String ph : placeholders) {
+                comparisons.add("PHSS (" + ph + ")");
             }
+        }
 
-            sb.delete(sb.length() - separator.length(), sb.length());
-            writer.println(sb.toString());
-
-            // Print results
-            for (ComparisonContainer cont : results) {
-                sb = new StringBuilder();
-
-                // Compared text filenames
-                sb.append(cont.getText1());
-                sb.append(separator);
-                sb.append(cont.getText2());
-                sb.append(separator);
-
-                // Results
-                for (ComparisonResult res : cont.getResults()) {
-                    sb.append(res.getValueSim());
-                    sb.append(separator);
-                    sb.append(res.getContainmentSim());
-                    sb.append(separator);
-                    sb.append(res.getSizeSim());
-                    sb.append(separator);
-                    sb.append(res.getNVS());
-                    sb.append(separator);
-                }
+        if (Methods.isEnabled(Methods.RANDOM))
+            comparisons.add("rand");
 
-                // Delete last separator of line
-                sb.delete(sb.length() - separator.length(), sb.length());
+        if (Methods.isEnabled(Methods.COSINE))
+            comparisons.add("cosine");
 
-                writer.println(sb.toString());
+        if (Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT)) {
+            for (String ph : placeholders) {
+                comparisons.add("PHEW (" + ph + ")");
             }
+        }
 
-            writer.close();
+        // Create headers with graph similarity measures for each comparison
+        for (String s : comparisons) {
+            // Value similarity header
+            sb.append(s);
+            sb.append(" val");
+            sb.append(separator);
+
+            // Containment similarity header
+            sb.append(s);
+            sb.append(" cont");
+            sb.append(separator);
+
+            // Size similarity header
+            sb.append(s);
+            sb.append(" size");
+            sb.append(separator);
+
+            // Normalized value similarity header
+            sb.append(s);
+            sb.append(" NVS");
+            sb.append(separator);
+        }
 
-            LOGGER.log(Level.INFO, "CSV file written successfully");
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Error writing CSV file: " + Arrays.toString(e.getStackTrace()));
+        sb.delete(sb.length() - separator.length(), sb.length());
+        return sb.toString();
+    }
+
+    /**
+     * Get the line of the CSV file with the results of one comparison
+     *
+     * @param cont Comparison
+     * @return Result line (without line separator)
+     */
+    public static String getRow(ComparisonContainer cont) {
+        StringBuilder sb = new StringBuilder();
+
+        // Compared text filenames
+        sb.append(cont.getText1());
+        sb.append(separator);
+        sb.append(cont.getText2());
+        sb.append(separator);
+
+        // Results
+        for (ComparisonResult res : cont.getResults()) {
+            sb.append(res.getValueSim());
+            sb.append(separator);
+            sb.append(res.getContainmentSim());
+            sb.append(separator);
+            sb.append(res.getSizeSim());
+            sb.append(separator);
+            sb.append(res.getNVS());
+            sb.append(separator);
         }
+
+        // Delete last separator of line
+        sb.delete(sb.length() - separator.length(), sb.length());
+
+        return sb.toString();
     }
 }
@@ -0,0 +1,146 @@
+package csv_export;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes comparisons to a CSV file as they are produced. The comparison threads add the comparisons to a bounded
+ * queue and one writer thread writes them to the file, so the memory that the results need is constant in the number
+ * of pairs. When the queue is full, the comparison threads wait for the writer to catch up. If the writer thread
+ * fails, it keeps emptying the queue (so no comparison thread waits for it forever) and adding comparisons fails.
+ */
+public class CSVStreamWriter implements Consumer<ComparisonContainer> {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    // Marks the end of the comparisons in the queue
+    private final static ComparisonContainer endOfResults = new ComparisonContainer(null, null, null);
+
+    private final String filename;
+    private final BlockingQueue<ComparisonContainer> queue;
+    private final PrintWriter writer;
+    private final Thread writerThread;
+    private volatile Throwable failure;
+    private long rowsWritten;
+
+    /**
+     * Create the CSV file, write its header and start the writer thread
+     *
+     * @param filename     Name of the CSV file
+     * @param placeholders Placeholders that the placeholder methods are run with
+     * @param capacity     Maximum number of comparisons waiting to be written
+     * @throws FileNotFoundException        If the file cannot be created
+     * @throws UnsupportedEncodingException If UTF-8 is not supported
+     */
+    public CSVStreamWriter(String filename, List<String> placeholders, int capacity)
+            throws FileNotFoundException, UnsupportedEncodingException {
+        this.filename = filename;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new PrintWriter(filename, "UTF-8");
+
+        writer.println(CSVExporter.getHeader(placeholders));
+
+        this.writerThread = new Thread(this::writeResults, "CSVStreamWriter");
+        writerThread.start();
+    }
+
+    /**
+     * Add a comparison to be written, waiting if the queue is full
+     *
+     * @param comparison Comparison
+     * @throws IllegalStateException If the writer thread has failed
+     */
+    @Override
+    public void accept(ComparisonContainer comparison) {
+        checkFailure();
+
+        try {
+            queue.put(comparison);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to write comparison", e);
+        }
+    }
+
+    /**
+     * Wait for the comparisons in the queue to be written and close the file. No comparisons can be added afterwards.
+     *
+     * @return Number of comparisons that were written
+     */
+    public long close() {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                queue.put(endOfResults);
+                writerThread.join();
+                break;
+            } catch (InterruptedException e) {
+                // Finish writing the file anyway, the results would be lost otherwise
+                interrupted = true;
+            }
+        }
+
+        writer.close();
+        if (failure != null) {
+            LOGGER.log(Level.SEVERE, "[CSVStreamWriter] Writer thread failed after " + rowsWritten +
+                    " comparisons, CSV file " + filename + " is incomplete");
+        } else if (writer.checkError()) {
+            LOGGER.log(Level.SEVERE, "[CSVStreamWriter] Error writing CSV file " + filename);
+        } else {
+            LOGGER.log(Level.INFO, "[CSVStreamWriter] Wrote " + rowsWritten + " comparisons to " + filename);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return rowsWritten;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("CSV writer thread failed", failure);
+        }
+    }
+
+    /**
+     * Write the comparisons of the queue until the end marker is found. If writing fails, the rest of the queue is
+     * discarded until the end marker.
+     */
+    private void writeResults() {
+        try {
+            ComparisonContainer comparison;
+
+            while ((comparison = queue.take()) != endOfResults) {
+                writer.println(CSVExporter.getRow(comparison));
+                rowsWritten++;
+            }
+
+            return;
+        } catch (InterruptedException e) {
+            failure = e;
+            LOGGER.log(Level.SEVERE, "[CSVStreamWriter] Writer thread interrupted, CSV file is incomplete");
+        } catch (RuntimeException e) {
+            failure = e;
+            LOGGER.log(Level.SEVERE, "[CSVStreamWriter] Error writing comparison, CSV file is incomplete", e);
+        }
+
+        // Release the comparison threads that are waiting for room in the queue, until close() adds the end marker
+        while (true) {
+            try {
+                if (queue.take() == endOfResults) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                // Keep emptying the queue, else close() would wait forever
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package entity_extractor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton that finds all occurrences of a set of entity names in a text in one linear pass.
+ * Matching is case insensitive and only whole words are matched. Nodes are kept in primitive arrays, with the
+ * children of each node in a linked list (the root's children are in a direct lookup table, as it has the most).
+ */
+@SuppressWarnings("WeakerAccess")
+public class AhoCorasickAutomaton {
+    private static final int ROOT = 0;
+
+    // Trie nodes
+    private char[] label;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] fail;
+    private int[] dictLink;     // Closest node reachable by fail links that is the end of an entry
+    private int[] entry;        // Entry that ends at this node, or -1
+    private int[] depth;
+    private int nodesNum;
+    private final int[] rootChildren;
+
+    // Entries
+    private final List<String> names;
+    private final List<String> types;
+
+    private boolean built;
+
+    public AhoCorasickAutomaton() {
+        int capacity = 1024;
+        label = new char[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        entry = new int[capacity];
+        depth = new int[capacity];
+
+        rootChildren = new int[Character.MAX_VALUE + 1];
+        Arrays.fill(rootChildren, -1);
+
+        names = new ArrayList<>();
+        types = new ArrayList<>();
+
+        nodesNum = 0;
+        newNode((char) 0, 0);
+    }
+
+    /**
+     * Add an entity to the dictionary. Must be called before {@link #build()}.
+     *
+     * @param surface Text of the entity as it appears in texts
+     * @param name    Name of the entity
+     * @param type    Type of the entity
+     */
+    public void add(String surface, String name, String type) {
+        if (built) {
+            throw new IllegalStateException("Cannot add entries after the automaton is built");
+        }
+
+        if (surface.isEmpty()) {
+            return;
+        }
+
+        int node = ROOT;
+        for (int i = 0; i < surface.length(); i++) {
+            char c = Character.toLowerCase(surface.charAt(i));
+            int child = getChild(node, c);
+
+            if (child == -1) {
+                child = newNode(c, depth[node] + 1);
+
+                if (node == ROOT) {
+                    rootChildren[c] = child;
+                } else {
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+            }
+
+            node = child;
+        }
+
+        // If the same surface text was added again, keep the first entry
+        if (entry[node] == -1) {
+            entry[node] = names.size();
+            names.add(name);
+            types.add(type);
+        }
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Compute the failure links with a breadth first traversal of the trie
+     */
+    public void build() {
+        fail = new int[nodesNum];
+        dictLink = new int[nodesNum];
+
+        int[] queue = new int[nodesNum];
+        int head = 0;
+        int tail = 0;
+
+        fail[ROOT] = ROOT;
+        dictLink[ROOT] = -1;
+
+        for (int child : rootChildren) {
+            if (child != -1) {
+                fail[child] = ROOT;
+                dictLink[child] = -1;
+                queue[tail++] = child;
+            }
+        }
+
+        while (head < tail) {
+            int node = queue[head++];
+
+            for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+                // Follow the failure links of the parent until a node with the same child is found
+                int f = fail[node];
+                int target = getChild(f, label[child]);
+                while (target == -1 && f != ROOT) {
+                    f = fail[f];
+                    target = getChild(f, label[child]);
+                }
+
+                fail[child] = target == -1 ? ROOT : target;
+                dictLink[child] = entry[fail[child]] != -1 ? fail[child] : dictLink[fail[child]];
+                queue[tail++] = child;
+            }
+        }
+
+        built = true;
+    }
+
+    /**
+     * Find the entities in a text. Only whole words are matched and overlapping matches are resolved by keeping the
+     * leftmost, then longest one.
+     *
+     * @param text Text to search
+     * @return Extracted entities, ordered by offset
+     */
+    public List<ExtractedEntity> findEntities(String text) {
+        if (!built) {
+            throw new IllegalStateException("The automaton must be built before searching");
+        }
+
+        int textLen = text.length();
+
+        // Longest match that ends at each position (start offset and entry), found in one pass over the text
+        int[] matchStarts = new int[16];
+        int[] matchEntries = new int[16];
+        int matchesNum = 0;
+
+        int node = ROOT;
+        for (int i = 0; i < textLen; i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+
+            int next = getChild(node, c);
+            while (next == -1 && node != ROOT) {
+                node = fail[node];
+                next = getChild(node, c);
+            }
+            node = next == -1 ? ROOT : next;
+
+            // Matches must end at a word boundary
+            if (i + 1 < textLen && isWordChar(text.charAt(i + 1))) {
+                continue;
+            }
+
+            // Find the longest entry ending here that also starts at a word boundary
+            int n = entry[node] != -1 ? node : dictLink[node];
+            while (n != -1) {
+                int start = i + 1 - depth[n];
+                if (start == 0 || !isWordChar(text.charAt(start - 1))) {
+                    if (matchesNum == matchStarts.length) {
+                        matchStarts = Arrays.copyOf(matchStarts, matchesNum * 2);
+                        matchEntries = Arrays.copyOf(matchEntries, matchesNum * 2);
+                    }
+
+                    matchStarts[matchesNum] = start;
+                    matchEntries[matchesNum] = n;
+                    matchesNum++;
+                    break;
+                }
+
+                n = dictLink[n];
+            }
+        }
+
+        // Sort matches by start (ascending) and length (descending), then keep the ones that do not overlap
+        Integer[] order = new Integer[matchesNum];
+        for (int i = 0; i < matchesNum; i++) {
+            order[i] = i;
+        }
+
+        final int[] starts = matchStarts;
+        final int[] nodes = matchEntries;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (starts[a] != starts[b]) {
+                    return Integer.compare(starts[a], starts[b]);
+                }
+
+                return Integer.compare(depth[nodes[b]], depth[nodes[a]]);
+            }
+        });
+
+        List<ExtractedEntity> entities = new ArrayList<>();
+        int lastEnd = 0;
+        for (int i : order) {
+            int start = starts[i];
+            int length = depth[nodes[i]];
+
+            if (start >= lastEnd) {
+                int e = entry[nodes[i]];
+                entities.add(new ExtractedEntity(names.get(e), types.get(e), start, length));
+                lastEnd = start + length;
+            }
+        }
+
+        return entities;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    private int getChild(int node, char c) {
+        if (node == ROOT) {
+            return rootChildren[c];
+        }
+
+        for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+            if (label[child] == c) {
+                return child;
+            }
+        }
+
+        return -1;
+    }
+
+    private int newNode(char c, int nodeDepth) {
+        if (nodesNum == label.length) {
+            int capacity = nodesNum * 2;
+            label = Arrays.copyOf(label, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            entry = Arrays.copyOf(entry, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+        }
+
+        int node = nodesNum++;
+        label[node] = c;
+        firstChild[node] = -1;
+        nextSibling[node] = -1;
+        entry[node] = -1;
+        depth[node] = nodeDepth;
+
+        return node;
+    }
+}
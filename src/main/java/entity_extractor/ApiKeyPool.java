@@ -0,0 +1,211 @@
+package entity_extractor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of API keys. Spreads requests across all keys, sending each one to the least loaded key that is not cooling
+ * down after a rejection and still has quota left. Each key has its own rate limiter, so the total request rate is
+ * the sum of the keys' rates. The quota of each key is restored when the (UTC) day changes.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ApiKeyPool {
+    private static final long cooldownTime = 5000;  // Milliseconds that a key is not used after a rejection
+    private static final long dayTime = 24 * 60 * 60 * 1000L;
+
+    private final List<ApiKey> keys;
+    private final int dailyQuota;
+
+    /**
+     * Create a pool with the specified keys
+     *
+     * @param apiKeys           API keys
+     * @param dailyQuota        Number of requests that each key can make per day (negative for unlimited)
+     * @param requestsPerSecond Maximum number of requests per second for each key
+     * @param burst             Maximum number of requests that can be made at once with each key
+     */
+    public ApiKeyPool(List<String> apiKeys, int dailyQuota, double requestsPerSecond, double burst) {
+        this.keys = new ArrayList<>();
+        this.dailyQuota = dailyQuota;
+
+        for (String key : apiKeys) {
+            keys.add(new ApiKey(key, new RateLimiter(requestsPerSecond, burst)));
+        }
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public List<ApiKey> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Get the healthy key with the least requests in flight, waiting for a key to come out of its cooldown if needed.
+     * The returned key must be given back with {@link #release(ApiKey, long, int)} after the request.
+     *
+     * @return API key to use for the next request
+     * @throws InterruptedException  If the thread is interrupted while waiting
+     * @throws IllegalStateException If all keys have run out of quota for today
+     */
+    public synchronized ApiKey acquire() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long nextAvailable = Long.MAX_VALUE;
+            ApiKey best = null;
+
+            for (ApiKey key : keys) {
+                // Restore the quota of the key if a new day has started since it was last restored
+                if (now / dayTime != key.quotaDay) {
+                    key.quotaDay = now / dayTime;
+                    key.remainingQuota = dailyQuota;
+                }
+
+                if (key.remainingQuota == 0) {
+                    continue;
+                }
+
+                if (key.cooldownUntil > now) {
+                    nextAvailable = Math.min(nextAvailable, key.cooldownUntil);
+                    continue;
+                }
+
+                if (best == null || key.inFlight < best.inFlight) {
+                    best = key;
+                }
+            }
+
+            if (best != null) {
+                best.inFlight++;
+                return best;
+            }
+
+            if (nextAvailable == Long.MAX_VALUE) {
+                throw new IllegalStateException("All API keys have run out of quota for today");
+            }
+
+            // All keys with quota are cooling down, wait for the first one to become available
+            wait(Math.max(1, nextAvailable - now));
+        }
+    }
+
+    /**
+     * Give back a key after a request, updating its statistics depending on the response code
+     *
+     * @param key        Key that was used
+     * @param ticket     Ticket of the request from the key's rate limiter (or -1 if the request was not sent)
+     * @param returnCode HTTP status code of the response (or -1 if the request failed without a response)
+     */
+    public synchronized void release(ApiKey key, long ticket, int returnCode) {
+        key.inFlight--;
+
+        if (returnCode == 200) {
+            key.requests++;
+            key.rateLimiter.onSuccess();
+
+            if (key.remainingQuota > 0) {
+                key.remainingQuota--;
+            }
+        } else if (returnCode == 429) {
+            // Key was rejected because of its rate limit, put it in cooldown
+            key.rejections++;
+            key.cooldownUntil = System.currentTimeMillis() + cooldownTime;
+            key.rateLimiter.onThrottled(ticket);
+        } else if (returnCode == 401 || returnCode == 403) {
+            // Key is not valid anymore (or has run out of quota), stop using it until its quota is restored
+            key.rejections++;
+            key.remainingQuota = 0;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Return a report with the throughput and rejections of each key
+     *
+     * @return Statistics string
+     */
+    public synchronized String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+
+        for (ApiKey key : keys) {
+            sb.append(key);
+            sb.append("\n");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * An API key and its usage statistics. The statistics are updated by the pool, so they are read under its lock.
+     */
+    public class ApiKey {
+        private final String key;
+        private final RateLimiter rateLimiter;
+        private final long created;
+        private int remainingQuota;
+        private long quotaDay;
+        private int inFlight;
+        private long requests;
+        private long rejections;
+        private long cooldownUntil;
+
+        private ApiKey(String key, RateLimiter rateLimiter) {
+            this.key = key;
+            this.remainingQuota = dailyQuota;
+            this.rateLimiter = rateLimiter;
+            this.created = System.currentTimeMillis();
+            this.quotaDay = created / dayTime;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public RateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        public int getRemainingQuota() {
+            synchronized (ApiKeyPool.this) {
+                return remainingQuota;
+            }
+        }
+
+        public long getRequests() {
+            synchronized (ApiKeyPool.this) {
+                return requests;
+            }
+        }
+
+        public long getRejections() {
+            synchronized (ApiKeyPool.this) {
+                return rejections;
+            }
+        }
+
+        /**
+         * Get the number of successful requests per second since the key was added to the pool
+         *
+         * @return Requests per second
+         */
+        public double getThroughput() {
+            double seconds = (System.currentTimeMillis() - created) / 1000.0;
+
+            return seconds > 0 ? getRequests() / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            // Only show the end of the key, to not leak it in the logs
+            String name = key.length() > 4 ? "..." + key.substring(key.length() - 4) : key;
+
+            synchronized (ApiKeyPool.this) {
+                return String.format("[ApiKey] %s | requests: %d | rejections: %d | throughput: %.2f req/s | " +
+                        "rate: %.2f req/s | remaining quota: %s", name, requests, rejections, getThroughput(),
+                        rateLimiter.getRate(), remainingQuota < 0 ? "unlimited" : remainingQuota);
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentNGramGraph;
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentWordGraph;
+import gr.demokritos.iit.jinsect.structs.UniqueVertexGraph;
+import salvo.jesus.graph.Edge;
+import salvo.jesus.graph.Vertex;
+import salvo.jesus.graph.VertexImpl;
+import salvo.jesus.graph.WeightedEdgeImpl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Immutable, compact form of a built graph. Vertex labels are interned to int ids in a label dictionary (shared by all
+ * graphs, so the ids of the same label are equal in every graph), and the edges of each level are packed into a sorted
+ * array of long keys (from id in the high 32 bits, to id in the low 32 bits) with their weights in a parallel array.
+ * Uses about 12 bytes per edge, instead of the vertex/edge objects, labels and hash maps of JInsect's graphs.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CompactGraph {
+    private final boolean wordGraph;
+    private final int minSize;
+    private final int maxSize;
+    private final int window;
+    private final int[] verticesNum;
+    private final long[][] edges;
+    private final float[][] weights;
+    private volatile long[][] sourceDegrees;    // Computed when first needed
+
+    CompactGraph(boolean wordGraph, int minSize, int maxSize, int window, int[] verticesNum, long[][] edges,
+                 float[][] weights) {
+        this.wordGraph = wordGraph;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.window = window;
+        this.verticesNum = verticesNum;
+        this.edges = edges;
+        this.weights = weights;
+    }
+
+    /**
+     * Convert a graph to its compact form
+     *
+     * @param g      Graph to convert (it is not modified)
+     * @param labels Dictionary to intern the vertex labels in
+     * @return Compact graph
+     */
+    public static CompactGraph freeze(DocumentNGramGraph g, EntityDictionary labels) {
+        int levelsNum = g.getMaxSize() - g.getMinSize() + 1;
+        int[] verticesNum = new int[levelsNum];
+        long[][] edges = new long[levelsNum][];
+        float[][] weights = new float[levelsNum][];
+
+        for (int level = 0; level < levelsNum; level++) {
+            UniqueVertexGraph graphLevel = g.getGraphLevel(level);
+            Set<Edge> edgeSet = graphLevel.getEdgeSet();
+
+            // Edges share their vertex objects, so each label is looked up in the dictionary only once per level
+            Map<Vertex, Integer> vertexIds = new IdentityHashMap<>();
+            long[] keys = new long[edgeSet.size()];
+            float[] values = new float[keys.length];
+            int edgesNum = 0;
+
+            for (Edge e : edgeSet) {
+                keys[edgesNum] = edgeKey(getId(vertexIds, labels, e.getVertexA()), getId(vertexIds, labels, e.getVertexB()));
+                values[edgesNum] = e instanceof WeightedEdgeImpl ? (float) ((WeightedEdgeImpl) e).getWeight() : 1.0f;
+                edgesNum++;
+            }
+
+            verticesNum[level] = graphLevel.getVerticesCount();
+            edgesNum = sortEdges(keys, values, edgesNum);
+            edges[level] = edgesNum == keys.length ? keys : Arrays.copyOf(keys, edgesNum);
+            weights[level] = edgesNum == values.length ? values : Arrays.copyOf(values, edgesNum);
+        }
+
+        return new CompactGraph(g instanceof DocumentWordGraph, g.getMinSize(), g.getMaxSize(), g.getWindowSize(),
+                verticesNum, edges, weights);
+    }
+
+    private static int getId(Map<Vertex, Integer> vertexIds, EntityDictionary labels, Vertex v) {
+        Integer id = vertexIds.get(v);
+
+        if (id == null) {
+            id = labels.getId(v.getLabel());
+            vertexIds.put(v, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Create a copy of the graph with its vertices relabeled. The mapping must not map two vertices of the graph to
+     * the same id, so the derived graph is the one that would be built from the relabeled text.
+     *
+     * @param mapping Function from the old id of each vertex to its new id
+     * @return Relabeled graph
+     */
+    public CompactGraph relabel(IntUnaryOperator mapping) {
+        long[][] newEdges = new long[edges.length][];
+        float[][] newWeights = new float[edges.length][];
+
+        for (int level = 0; level < edges.length; level++) {
+            long[] keys = new long[edges[level].length];
+            float[] values = Arrays.copyOf(weights[level], keys.length);
+
+            for (int i = 0; i < keys.length; i++) {
+                long key = edges[level][i];
+                keys[i] = edgeKey(mapping.applyAsInt(getFrom(key)), mapping.applyAsInt(getTo(key)));
+            }
+
+            int edgesNum = sortEdges(keys, values, keys.length);
+            newEdges[level] = edgesNum == keys.length ? keys : Arrays.copyOf(keys, edgesNum);
+            newWeights[level] = edgesNum == values.length ? values : Arrays.copyOf(values, edgesNum);
+        }
+
+        return new CompactGraph(wordGraph, minSize, maxSize, window, verticesNum, newEdges, newWeights);
+    }
+
+    /**
+     * Create a copy of the graph with the weights of its edges multiplied by the factors of a weighting. The edge
+     * arrays are shared with this graph (they are never modified), and so are the weights of levels that do not change.
+     *
+     * @param weighting Weighting of the edges
+     * @return Graph with the new weights
+     */
+    public CompactGraph reweight(EdgeWeightPolicy.Weighting weighting) {
+        float[][] newWeights = new float[edges.length][];
+
+        for (int level = 0; level < edges.length; level++) {
+            newWeights[level] = weights[level];
+
+            for (int i = 0; i < edges[level].length; i++) {
+                long key = edges[level][i];
+                float factor = weighting.getFactor(getFrom(key), getTo(key));
+
+                if (factor != 1) {
+                    if (newWeights[level] == weights[level]) {
+                        newWeights[level] = Arrays.copyOf(weights[level], weights[level].length);
+                    }
+
+                    newWeights[level][i] *= factor;
+                }
+            }
+        }
+
+        return new CompactGraph(wordGraph, minSize, maxSize, window, verticesNum, edges, newWeights);
+    }
+
+    /**
+     * Sort edges by key (keeping the weights in the same order) and remove duplicate keys, in place
+     *
+     * @param keys     Edge keys, sorted in place
+     * @param values   Edge weights
+     * @param edgesNum Number of edges in the arrays
+     * @return Number of edges after removing duplicates (the rest of the arrays is unused)
+     */
+    static int sortEdges(long[] keys, float[] values, int edgesNum) {
+        long[] unsortedKeys = Arrays.copyOf(keys, edgesNum);
+        float[] unsortedValues = Arrays.copyOf(values, edgesNum);
+        Arrays.sort(keys, 0, edgesNum);
+
+        // Remove duplicates, then put each weight at the position of its key
+        int unique = 0;
+        for (int i = 0; i < edgesNum; i++) {
+            if (unique == 0 || keys[unique - 1] != keys[i]) {
+                keys[unique++] = keys[i];
+            }
+        }
+
+        for (int i = 0; i < edgesNum; i++) {
+            values[Arrays.binarySearch(keys, 0, unique, unsortedKeys[i])] = unsortedValues[i];
+        }
+
+        return unique;
+    }
+
+    /**
+     * Convert the compact graph back to a JInsect graph (vertices without edges are not kept)
+     *
+     * @param labels Dictionary that the vertex labels were interned in
+     * @return Graph
+     * @throws Exception If a vertex or edge could not be added to the graph
+     */
+    public DocumentNGramGraph thaw(EntityDictionary labels) throws Exception {
+        return thaw(labels::getString);
+    }
+
+    /**
+     * Convert the compact graph back to a JInsect graph (vertices without edges are not kept)
+     *
+     * @param labels Function from the id of each vertex to its label (must give different labels to different ids)
+     * @return Graph
+     * @throws Exception If a vertex or edge could not be added to the graph
+     */
+    DocumentNGramGraph thaw(IntFunction<String> labels) throws Exception {
+        DocumentNGramGraph g = wordGraph
+                ? new DocumentWordGraph(minSize, maxSize, window)
+                : new DocumentNGramGraph(minSize, maxSize, window);
+
+        for (int level = 0; level < edges.length; level++) {
+            UniqueVertexGraph graphLevel = g.getGraphLevel(level);
+            Map<Integer, Vertex> vertices = new HashMap<>();
+
+            for (int i = 0; i < edges[level].length; i++) {
+                Vertex from = getVertex(graphLevel, vertices, labels, getFrom(edges[level][i]));
+                Vertex to = getVertex(graphLevel, vertices, labels, getTo(edges[level][i]));
+
+                graphLevel.addEdge(new WeightedEdgeImpl(from, to, weights[level][i]));
+            }
+        }
+
+        return g;
+    }
+
+    private static Vertex getVertex(UniqueVertexGraph graphLevel, Map<Integer, Vertex> vertices,
+                                    IntFunction<String> labels, int id) throws Exception {
+        Vertex v = vertices.get(id);
+
+        if (v == null) {
+            v = new VertexImpl(labels.apply(id));
+            graphLevel.add(v);
+            vertices.put(id, v);
+        }
+
+        return v;
+    }
+
+    static long edgeKey(int from, int to) {
+        return ((long) from << 32) | (to & 0xFFFFFFFFL);
+    }
+
+    static int getFrom(long edgeKey) {
+        return (int) (edgeKey >>> 32);
+    }
+
+    static int getTo(long edgeKey) {
+        return (int) edgeKey;
+    }
+
+    public int getLevelsNum() {
+        return edges.length;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getEdgesNum(int level) {
+        return edges[level].length;
+    }
+
+    public int getVerticesNum(int level) {
+        return verticesNum[level];
+    }
+
+    /**
+     * Get the sorted edge keys of a level (the array must not be modified)
+     */
+    long[] getEdges(int level) {
+        return edges[level];
+    }
+
+    /**
+     * Get the edge weights of a level, in the order of the edge keys (the array must not be modified)
+     */
+    float[] getWeights(int level) {
+        return weights[level];
+    }
+
+    /**
+     * Get the source vertices of the edges of a level with their number of outgoing edges, as keys with the vertex id
+     * in the high 32 bits and the out-degree in the low 32 bits, sorted by vertex id. They are found once, when first
+     * needed (or by {@link #computeSourceDegrees()}), and counted in {@link #getSizeBytes()} from then on.
+     *
+     * @param level Level
+     * @return Source vertex keys (the array must not be modified)
+     */
+    long[] getSourceDegrees(int level) {
+        return computeSourceDegrees()[level];
+    }
+
+    /**
+     * Find the source vertices of all levels with their out-degrees (see {@link #getSourceDegrees(int)}), if they
+     * were not found yet
+     *
+     * @return Source vertex keys of each level
+     */
+    long[][] computeSourceDegrees() {
+        long[][] degrees = sourceDegrees;
+
+        if (degrees == null) {
+            // Computing them twice in parallel gives the same arrays, so no lock is needed
+            degrees = new long[edges.length][];
+
+            for (int l = 0; l < edges.length; l++) {
+                long[] levelEdges = edges[l];
+                long[] keys = new long[levelEdges.length];
+                int keysNum = 0;
+
+                // The edges are sorted by source vertex, so the edges of each source are consecutive
+                for (int i = 0; i < levelEdges.length; ) {
+                    int from = getFrom(levelEdges[i]);
+                    int j = i + 1;
+                    while (j < levelEdges.length && getFrom(levelEdges[j]) == from) {
+                        j++;
+                    }
+
+                    keys[keysNum++] = edgeKey(from, j - i);
+                    i = j;
+                }
+
+                degrees[l] = Arrays.copyOf(keys, keysNum);
+            }
+
+            sourceDegrees = degrees;
+        }
+
+        return degrees;
+    }
+
+    /**
+     * Get the number of bytes that the graph uses on the heap (not counting the label dictionary), including the
+     * source vertex degrees if they were found
+     *
+     * @return Size in bytes
+     */
+    public long getSizeBytes() {
+        long size = 64 + 16L * verticesNum.length;
+
+        for (int level = 0; level < edges.length; level++) {
+            size += 32 + 12L * edges[level].length;
+        }
+
+        long[][] degrees = sourceDegrees;
+        if (degrees != null) {
+            size += 16 + 8L * degrees.length;
+
+            for (long[] levelDegrees : degrees) {
+                size += 16 + 8L * levelDegrees.length;
+            }
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,260 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.comparators.NGramCachedGraphComparator;
+import gr.demokritos.iit.jinsect.structs.GraphSimilarity;
+
+/**
+ * Calculates the similarity of two compact graphs, with the same measures as JInsect's graph comparators. The edges of
+ * each level are sorted, so the common edges are found with a merge of the two edge arrays instead of looking up each
+ * edge in a hash map, and nothing is allocated for each comparison.
+ * <p>
+ * For each level (n-gram size) that both graphs have:
+ * <ul>
+ * <li>Value similarity: sum of min(w1, w2) / max(w1, w2) over the common edges, divided by the larger edge count</li>
+ * <li>Containment similarity: number of common edges, divided by the smaller edge count</li>
+ * <li>Size similarity: smaller edge count divided by the larger one</li>
+ * </ul>
+ * The similarity of the graphs is the average of the levels, weighted by their n-gram size. Both graphs must have
+ * their vertex labels in the same dictionary. Not thread-safe, each thread should use its own comparator.
+ * <p>
+ * The measures are not defined for a level without edges (they divide by its edge count), so pairs of graphs where
+ * a compared level is empty in either graph are converted back to JInsect graphs and compared by JInsect's comparator,
+ * which gives the same results as the JInsect graphs for them, whatever they are (e.g. NaN). Only the graphs of texts
+ * with fewer words than the n-gram size have empty levels, so this is rare and the graphs are small.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CompactGraphComparator {
+    // When one edge array is this many times larger than the other, search for the edges of the small one in it
+    private final static int gallopRatio = 16;
+
+    private final NGramCachedGraphComparator jinsectComparator = new NGramCachedGraphComparator();
+    private int commonEdges;    // Common edges found by the last merge
+
+    /**
+     * Calculate the similarity of two graphs
+     *
+     * @param g1     First graph
+     * @param g2     Second graph
+     * @param result Similarity object to write the result to (so that it can be reused between comparisons)
+     * @return The result object
+     */
+    public GraphSimilarity getSimilarityBetween(CompactGraph g1, CompactGraph g2, GraphSimilarity result) {
+        if (hasEmptyLevel(g1, g2)) {
+            return getJInsectSimilarity(g1, g2, result);
+        }
+
+        double valueSim = 0;
+        double containmentSim = 0;
+        double sizeSim = 0;
+        int totalImportance = 0;
+
+        int minSize = Math.max(g1.getMinSize(), g2.getMinSize());
+        int maxSize = Math.min(g1.getMaxSize(), g2.getMaxSize());
+
+        for (int n = minSize; n <= maxSize; n++) {
+            long[] edges1 = g1.getEdges(n - g1.getMinSize());
+            long[] edges2 = g2.getEdges(n - g2.getMinSize());
+            float[] weights1 = g1.getWeights(n - g1.getMinSize());
+            float[] weights2 = g2.getWeights(n - g2.getMinSize());
+
+            int minEdges = Math.min(edges1.length, edges2.length);
+            int maxEdges = Math.max(edges1.length, edges2.length);
+            totalImportance += n;
+
+            // Merge with the smaller array first, so that it is the one that is searched for in the larger one
+            double ratioSum = edges1.length <= edges2.length
+                    ? mergeEdges(edges1, weights1, edges2, weights2)
+                    : mergeEdges(edges2, weights2, edges1, weights1);
+
+            valueSim += n * (ratioSum / maxEdges);
+            containmentSim += n * ((double) commonEdges / minEdges);
+            sizeSim += n * ((double) minEdges / maxEdges);
+        }
+
+        if (totalImportance > 0) {
+            valueSim /= totalImportance;
+            containmentSim /= totalImportance;
+            sizeSim /= totalImportance;
+        }
+
+        result.ValueSimilarity = valueSim;
+        result.ContainmentSimilarity = containmentSim;
+        result.SizeSimilarity = sizeSim;
+
+        return result;
+    }
+
+    /**
+     * Check if a level that both graphs have is empty in either of them
+     *
+     * @param g1 First graph
+     * @param g2 Second graph
+     * @return True if a compared level has no edges
+     */
+    static boolean hasEmptyLevel(CompactGraph g1, CompactGraph g2) {
+        int minSize = Math.max(g1.getMinSize(), g2.getMinSize());
+        int maxSize = Math.min(g1.getMaxSize(), g2.getMaxSize());
+
+        for (int n = minSize; n <= maxSize; n++) {
+            if (g1.getEdgesNum(n - g1.getMinSize()) == 0 || g2.getEdgesNum(n - g2.getMinSize()) == 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compare two graphs with JInsect's comparator, converting them back to JInsect graphs. The labels of the vertices
+     * do not change the similarity, so they are the ids instead of the strings of the dictionary.
+     *
+     * @param g1     First graph
+     * @param g2     Second graph
+     * @param result Similarity object to write the result to
+     * @return The result object
+     */
+    private GraphSimilarity getJInsectSimilarity(CompactGraph g1, CompactGraph g2, GraphSimilarity result) {
+        GraphSimilarity sim;
+        try {
+            sim = jinsectComparator.getSimilarityBetween(g1.thaw(String::valueOf), g2.thaw(String::valueOf));
+        } catch (Exception e) {
+            // Salvo's graphs throw Exception when adding vertices/edges
+            throw new IllegalStateException("Could not convert compact graphs to compare them", e);
+        }
+
+        result.ValueSimilarity = sim.ValueSimilarity;
+        result.ContainmentSimilarity = sim.ContainmentSimilarity;
+        result.SizeSimilarity = sim.SizeSimilarity;
+
+        return result;
+    }
+
+    /**
+     * Calculate only the size similarity of two graphs, from the edge counts of their levels (without comparing their
+     * edges). It is an upper bound of their value similarity, because in each level the common edges (and so the sum
+     * of their weight ratios) are at most the smaller edge count. Graphs with an empty level are compared by JInsect
+     * (see {@link #hasEmptyLevel(CompactGraph, CompactGraph)}), so it is not a bound for them.
+     *
+     * @param g1 First graph
+     * @param g2 Second graph
+     * @return Size similarity, the same as the one of {@link #getSimilarityBetween(CompactGraph, CompactGraph,
+     * GraphSimilarity)} if neither graph has an empty level
+     */
+    public static double getSizeSimilarity(CompactGraph g1, CompactGraph g2) {
+        double sizeSim = 0;
+        int totalImportance = 0;
+
+        int minSize = Math.max(g1.getMinSize(), g2.getMinSize());
+        int maxSize = Math.min(g1.getMaxSize(), g2.getMaxSize());
+
+        for (int n = minSize; n <= maxSize; n++) {
+            int edges1 = g1.getEdges(n - g1.getMinSize()).length;
+            int edges2 = g2.getEdges(n - g2.getMinSize()).length;
+
+            totalImportance += n;
+            if (edges1 > 0 && edges2 > 0) {
+                sizeSim += n * ((double) Math.min(edges1, edges2) / Math.max(edges1, edges2));
+            }
+        }
+
+        return totalImportance > 0 ? sizeSim / totalImportance : 0;
+    }
+
+    /**
+     * Calculate the normalized value similarity (value similarity divided by size similarity) of a result
+     *
+     * @param sim Similarity of two graphs
+     * @return Normalized value similarity, or 0 if the size similarity is 0
+     */
+    public static double getNormalizedValueSimilarity(GraphSimilarity sim) {
+        return sim.SizeSimilarity == 0 ? 0 : sim.ValueSimilarity / sim.SizeSimilarity;
+    }
+
+    /**
+     * Find the common edges of two sorted edge arrays, and sum the ratios of their weights. The number of common
+     * edges is saved in commonEdges.
+     *
+     * @param small        Edge keys of the smaller level
+     * @param smallWeights Weights of the edges of the smaller level
+     * @param large        Edge keys of the larger level
+     * @param largeWeights Weights of the edges of the larger level
+     * @return Sum of min(w1, w2) / max(w1, w2) for the common edges
+     */
+    private double mergeEdges(long[] small, float[] smallWeights, long[] large, float[] largeWeights) {
+        double ratioSum = 0;
+        int common = 0;
+        int i = 0;
+        int j = 0;
+
+        if ((long) small.length * gallopRatio < large.length) {
+            // Binary search each edge of the small array in the rest of the large one
+            while (i < small.length && j < large.length) {
+                int found = binarySearch(large, j, small[i]);
+
+                if (found >= 0) {
+                    ratioSum += weightRatio(smallWeights[i], largeWeights[found]);
+                    common++;
+                    j = found + 1;
+                } else {
+                    j = -found - 1;
+                }
+
+                i++;
+            }
+        } else {
+            while (i < small.length && j < large.length) {
+                long a = small[i];
+                long b = large[j];
+
+                if (a < b) {
+                    i++;
+                } else if (a > b) {
+                    j++;
+                } else {
+                    ratioSum += weightRatio(smallWeights[i], largeWeights[j]);
+                    common++;
+                    i++;
+                    j++;
+                }
+            }
+        }
+
+        commonEdges = common;
+        return ratioSum;
+    }
+
+    /**
+     * Exponential search for a key in a sorted array, starting from an index
+     *
+     * @return Index of the key, or (-(insertion point) - 1) if it is not in the array
+     */
+    private static int binarySearch(long[] a, int from, long key) {
+        // Find a range that contains the key by doubling the step, then search in it
+        int step = 1;
+        int hi = from;
+        while (hi < a.length && a[hi] < key) {
+            from = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+
+        hi = Math.min(hi, a.length - 1);
+        while (from <= hi) {
+            int mid = (from + hi) >>> 1;
+
+            if (a[mid] < key) {
+                from = mid + 1;
+            } else if (a[mid] > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -from - 1;
+    }
+
+    private static double weightRatio(float w1, float w2) {
+        return w1 < w2 ? (double) w1 / w2 : (double) w2 / w1;
+    }
+}
@@ -0,0 +1,169 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.comparators.NGramCachedGraphComparator;
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentNGramGraph;
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentWordGraph;
+import gr.demokritos.iit.jinsect.structs.GraphSimilarity;
+import utils.VerySimpleFormatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that the compact graph comparator gives the same similarities as JInsect's comparator, for the n-gram and
+ * word graphs of every ordered pair of texts in the input folder (including each text with itself), and measures the
+ * time per pair of both. Some short texts are added to the input texts, so that graphs with empty levels and empty
+ * graphs are compared with each other and with the input texts, on both sides.
+ */
+public class CompactGraphComparatorTest {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final static double tolerance = 1e-6;   // Weights are floats in compact graphs
+    private final static int repetitions = 5;       // Times to compare all pairs when measuring the time
+
+    // Texts whose graphs have empty levels (or no edges at all)
+    private final static String[] shortTexts = {"", "x", "xy", "abc", "one", "one two", "two one two", "aaaa aaaa"};
+
+    public static void main(String[] args) {
+        CompactGraphComparatorTest test = new CompactGraphComparatorTest();
+
+        try {
+            test.start(args.length > 0 ? args[0] : "texts/input");
+        } catch (IOException e) {
+            test.LOGGER.log(Level.SEVERE, "[CompactGraphComparatorTest] Problem reading input texts: " + e.getMessage());
+        }
+    }
+
+    private void start(String inputFolder) throws IOException {
+        LOGGER.setLevel(Level.FINEST);
+        LOGGER.setUseParentHandlers(false);
+
+        Handler consoleHandler = new ConsoleHandler();
+        consoleHandler.setLevel(Level.INFO);
+        consoleHandler.setFormatter(new VerySimpleFormatter());
+        LOGGER.addHandler(consoleHandler);
+
+        File[] files = new File(inputFolder).listFiles();
+        if (files == null) {
+            throw new IOException("Not a folder: " + inputFolder);
+        }
+
+        List<String> texts = new ArrayList<>(Arrays.asList(shortTexts));
+        for (File file : files) {
+            if (file.isFile()) {
+                texts.add(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            }
+        }
+
+        List<DocumentNGramGraph> nGramGraphs = new ArrayList<>();
+        List<DocumentNGramGraph> wordGraphs = new ArrayList<>();
+        for (String text : texts) {
+            DocumentNGramGraph nGramGraph = new DocumentNGramGraph();
+            nGramGraph.setDataString(text);
+            nGramGraphs.add(nGramGraph);
+
+            DocumentWordGraph wordGraph = new DocumentWordGraph();
+            wordGraph.setDataString(text);
+            wordGraphs.add(wordGraph);
+        }
+
+        LOGGER.log(Level.INFO, "[CompactGraphComparatorTest] Comparing " + texts.size() + " texts (" +
+                shortTexts.length + " of them short)");
+        boolean ok = compareAll("N-gram graphs", nGramGraphs);
+        ok &= compareAll("Word graphs", wordGraphs);
+
+        LOGGER.log(ok ? Level.INFO : Level.SEVERE, "[CompactGraphComparatorTest] " + (ok ? "All similarities match" : "Some similarities do not match"));
+    }
+
+    /**
+     * Compare all ordered pairs of graphs with both comparators, log the largest difference of each similarity and
+     * the time per (unordered) pair
+     *
+     * @param name   Name of the graphs, for the log
+     * @param graphs Graphs to compare
+     * @return True if all the similarities are equal (within the tolerance)
+     */
+    private boolean compareAll(String name, List<DocumentNGramGraph> graphs) {
+        EntityDictionary labels = new EntityDictionary();
+        List<CompactGraph> compactGraphs = new ArrayList<>();
+        for (DocumentNGramGraph g : graphs) {
+            compactGraphs.add(CompactGraph.freeze(g, labels));
+        }
+
+        NGramCachedGraphComparator jinsectComparator = new NGramCachedGraphComparator();
+        CompactGraphComparator compactComparator = new CompactGraphComparator();
+        GraphSimilarity compactSim = new GraphSimilarity();
+
+        // Check that the results are equal
+        double maxValueDiff = 0;
+        double maxContainmentDiff = 0;
+        double maxSizeDiff = 0;
+        for (int i = 0; i < graphs.size(); i++) {
+            for (int j = 0; j < graphs.size(); j++) {
+                GraphSimilarity sim = jinsectComparator.getSimilarityBetween(graphs.get(i), graphs.get(j));
+                compactComparator.getSimilarityBetween(compactGraphs.get(i), compactGraphs.get(j), compactSim);
+
+                maxValueDiff = Math.max(maxValueDiff, difference(sim.ValueSimilarity, compactSim.ValueSimilarity));
+                maxContainmentDiff = Math.max(maxContainmentDiff, difference(sim.ContainmentSimilarity, compactSim.ContainmentSimilarity));
+                maxSizeDiff = Math.max(maxSizeDiff, difference(sim.SizeSimilarity, compactSim.SizeSimilarity));
+            }
+        }
+
+        LOGGER.log(Level.INFO, String.format("[CompactGraphComparatorTest] %s max difference | value: %.2e | " +
+                "containment: %.2e | size: %.2e", name, maxValueDiff, maxContainmentDiff, maxSizeDiff));
+
+        // Measure the time per pair (the first repetition also warms up the JIT)
+        long pairs = 0;
+        long jinsectTime = 0;
+        long compactTime = 0;
+        for (int r = 0; r < repetitions; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < graphs.size(); i++) {
+                for (int j = i + 1; j < graphs.size(); j++) {
+                    jinsectComparator.getSimilarityBetween(graphs.get(i), graphs.get(j));
+                }
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < graphs.size(); i++) {
+                for (int j = i + 1; j < graphs.size(); j++) {
+                    compactComparator.getSimilarityBetween(compactGraphs.get(i), compactGraphs.get(j), compactSim);
+                }
+            }
+            long end = System.nanoTime();
+
+            if (r > 0) {
+                jinsectTime += middle - start;
+                compactTime += end - middle;
+                pairs += (long) graphs.size() * (graphs.size() - 1) / 2;
+            }
+        }
+
+        if (pairs > 0) {
+            LOGGER.log(Level.INFO, String.format("[CompactGraphComparatorTest] %s time per pair | JInsect: %.1f us | " +
+                    "compact: %.1f us", name, jinsectTime / 1e3 / pairs, compactTime / 1e3 / pairs));
+        }
+
+        return maxValueDiff <= tolerance && maxContainmentDiff <= tolerance && maxSizeDiff <= tolerance;
+    }
+
+    /**
+     * Get the difference of two similarities. Two NaN similarities (for example of two empty graphs) are equal, and
+     * a NaN similarity is infinitely far from a number.
+     */
+    private static double difference(double a, double b) {
+        if (Double.isNaN(a) || Double.isNaN(b)) {
+            return Double.isNaN(a) && Double.isNaN(b) ? 0 : Double.POSITIVE_INFINITY;
+        }
+
+        return Math.abs(a - b);
+    }
+}
@@ -0,0 +1,374 @@
+package entity_extractor;
+
+import utils.Percentage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the comparisons of all pairs of texts on a work-stealing pool. The triangle of pairs (i < j) is split into
+ * square tiles of pairs, and the tiles are split recursively into tasks, so threads that run out of work steal tiles
+ * from the others and all cores stay busy until the last pair, even when some pairs take much longer than others.
+ * Each thread compares its pairs with its own {@link PairComparer}, and the time that each thread spends comparing
+ * (busy) and waiting for work or the other threads (idle) is reported.
+ * When the graphs of all texts do not fit in memory, the pairs can be compared one pair of blocks of texts at a time.
+ * A given list of pairs can also be compared, split into ranges of pairs in the same way.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ComparisonScheduler {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final static int tilesPerThread = 16;   // Tiles to split the pairs into, for each thread
+    private final static int maxTileSize = 256;
+    private final static int pairsPerTask = 64;     // Pairs of a list that a task compares without splitting
+
+    private final int threadsNum;
+    private final Map<Thread, Worker> workers;
+    private final AtomicInteger nextWorkerId;
+    private final AtomicLong pairsDone;
+
+    /**
+     * Create a scheduler
+     *
+     * @param threadsNum Number of threads to compare the texts with
+     */
+    public ComparisonScheduler(int threadsNum) {
+        this.threadsNum = threadsNum;
+        this.workers = new ConcurrentHashMap<>();
+        this.nextWorkerId = new AtomicInteger();
+        this.pairsDone = new AtomicLong();
+    }
+
+    /**
+     * Compare all pairs of texts
+     *
+     * @param textsNum        Number of texts
+     * @param comparerFactory Creates the comparer of each thread
+     */
+    public void run(int textsNum, final Supplier<PairComparer> comparerFactory) {
+        final long pairsNum = (long) textsNum * (textsNum - 1) / 2;
+        int tileSize = getTileSize(pairsNum);
+        List<int[]> tiles = getTiles(0, textsNum, 0, textsNum, tileSize);
+
+        LOGGER.log(Level.INFO, String.format("[ComparisonScheduler] Going to do %d text comparisons in %d tiles of " +
+                "%dx%d texts with %d threads", pairsNum, tiles.size(), tileSize, tileSize, threadsNum));
+
+        ForkJoinPool pool = new ForkJoinPool(threadsNum);
+        long start = System.nanoTime();
+
+        try {
+            pool.invoke(new TileTask(tiles, 0, tiles.size(), pairsNum, comparerFactory));
+        } finally {
+            pool.shutdown();
+        }
+
+        logReport(System.nanoTime() - start);
+    }
+
+    /**
+     * Compare all pairs of texts one pair of blocks at a time, so only the graphs of two blocks have to be in memory
+     * (block nested loop). For each outer block, the pairs inside it and then the pairs with each later (inner) block
+     * are compared, loading the inner blocks one by one. The block after the outer one is compared last and kept, as
+     * it is the next outer block, so every block is loaded once for each outer block before it and once as outer.
+     *
+     * @param blocks          Blocks of texts
+     * @param comparerFactory Creates the comparer of each thread
+     */
+    public void run(GraphBlocks blocks, final Supplier<PairComparer> comparerFactory) {
+        int textsNum = blocks.getTextsNum();
+        int blocksNum = blocks.size();
+        final long pairsNum = (long) textsNum * (textsNum - 1) / 2;
+
+        LOGGER.log(Level.INFO, String.format("[ComparisonScheduler] Going to do %d text comparisons in %d blocks " +
+                "of texts with %d threads", pairsNum, blocksNum, threadsNum));
+
+        ForkJoinPool pool = new ForkJoinPool(threadsNum);
+        long start = System.nanoTime();
+
+        try {
+            boolean outerLoaded = false;
+
+            for (int outer = 0; outer < blocksNum; outer++) {
+                if (!outerLoaded) {
+                    blocks.load(outer, pool);
+                }
+
+                // Pairs inside the outer block, then the later blocks, with the next block last
+                List<Integer> innerBlocks = new ArrayList<>();
+                innerBlocks.add(outer);
+                for (int inner = outer + 2; inner < blocksNum; inner++) {
+                    innerBlocks.add(inner);
+                }
+                if (outer + 1 < blocksNum) {
+                    innerBlocks.add(outer + 1);
+                }
+
+                for (int inner : innerBlocks) {
+                    if (inner != outer) {
+                        blocks.load(inner, pool);
+                    }
+
+                    int outerSize = blocks.getEnd(outer) - blocks.getStart(outer);
+                    int innerSize = blocks.getEnd(inner) - blocks.getStart(inner);
+                    long blockPairs = inner == outer ? (long) outerSize * (outerSize - 1) / 2 : (long) outerSize * innerSize;
+                    List<int[]> tiles = getTiles(blocks.getStart(outer), blocks.getEnd(outer),
+                            blocks.getStart(inner), blocks.getEnd(inner), getTileSize(blockPairs));
+
+                    pool.invoke(new TileTask(tiles, 0, tiles.size(), pairsNum, comparerFactory));
+
+                    if (inner != outer && inner != outer + 1) {
+                        blocks.unload(inner);
+                    }
+                }
+
+                blocks.unload(outer);
+                outerLoaded = outer + 1 < blocksNum;
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        LOGGER.log(Level.INFO, String.format("[ComparisonScheduler] Loaded %d blocks in %.2f seconds (%.1f loads " +
+                        "per block)", blocks.getLoads(), blocks.getLoadTime() / 1e9,
+                blocksNum > 0 ? (double) blocks.getLoads() / blocksNum : 0));
+
+        logReport(System.nanoTime() - start);
+    }
+
+    /**
+     * Compare the pairs of a list
+     *
+     * @param pairs           Pairs of text indices
+     * @param comparerFactory Creates the comparer of each thread
+     */
+    public void runPairs(List<int[]> pairs, final Supplier<PairComparer> comparerFactory) {
+        LOGGER.log(Level.INFO, String.format("[ComparisonScheduler] Going to do %d listed text comparisons with %d " +
+                "threads", pairs.size(), threadsNum));
+
+        ForkJoinPool pool = new ForkJoinPool(threadsNum);
+        long start = System.nanoTime();
+
+        try {
+            pool.invoke(new PairTask(pairs, 0, pairs.size(), comparerFactory));
+        } finally {
+            pool.shutdown();
+        }
+
+        logReport(System.nanoTime() - start);
+    }
+
+    /**
+     * Log the report of the workers, sorted by id
+     */
+    private void logReport(long wallTime) {
+        List<Worker> result = new ArrayList<>(workers.values());
+        result.sort(Comparator.comparingInt(w -> w.id));
+        LOGGER.log(Level.INFO, getReport(result, wallTime));
+    }
+
+    private int getTileSize(long pairsNum) {
+        // Enough tiles for the threads to balance the work, but large enough that each tile is worth a task
+        int size = (int) Math.sqrt(pairsNum / ((double) threadsNum * tilesPerThread));
+
+        return Math.max(1, Math.min(maxTileSize, size));
+    }
+
+    /**
+     * Split the pairs (i, j) with i < j of a range of rows and a range of columns into square tiles, as (row start,
+     * row end, column start, column end). Tiles without any such pairs are skipped.
+     */
+    private static List<int[]> getTiles(int rowStart, int rowEnd, int columnStart, int columnEnd, int tileSize) {
+        List<int[]> tiles = new ArrayList<>();
+
+        for (int row = rowStart; row < rowEnd; row += tileSize) {
+            for (int column = columnStart; column < columnEnd; column += tileSize) {
+                int tileColumnEnd = Math.min(columnEnd, column + tileSize);
+
+                if (row < tileColumnEnd - 1) {
+                    tiles.add(new int[]{row, Math.min(rowEnd, row + tileSize), column, tileColumnEnd});
+                }
+            }
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Get the worker of the current thread, creating it (and its comparer) on the first tile that the thread runs
+     */
+    private Worker getWorker(Supplier<PairComparer> comparerFactory) {
+        Thread thread = Thread.currentThread();
+        Worker worker = workers.get(thread);
+
+        if (worker == null) {
+            worker = new Worker(nextWorkerId.getAndIncrement(), comparerFactory.get());
+            workers.put(thread, worker);
+        }
+
+        return worker;
+    }
+
+    /**
+     * Create a report with the comparisons and the busy and idle time of each worker
+     *
+     * @param workers  Workers
+     * @param wallTime Time that all the comparisons took, in nanoseconds
+     * @return Report string
+     */
+    private String getReport(List<Worker> workers, long wallTime) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[ComparisonScheduler] Compared texts in %.2f seconds", wallTime / 1e9));
+
+        long totalBusy = 0;
+        for (Worker worker : workers) {
+            long busy = worker.busyTime;
+            totalBusy += busy;
+
+            sb.append(String.format("%n[ComparisonScheduler] Worker %2d: %9d comparisons | busy: %8.2f s | " +
+                            "idle: %8.2f s", worker.id, worker.comparisonsDone, busy / 1e9,
+                    Math.max(0, wallTime - busy) / 1e9));
+        }
+
+        // Threads that never got a tile were idle all the time
+        if (wallTime > 0) {
+            sb.append(String.format("%n[ComparisonScheduler] Utilization: %.1f%% of %d threads",
+                    Percentage.percent(totalBusy, wallTime * threadsNum), threadsNum));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Task that compares the pairs of a range of tiles, splitting the range in two while it has more than one tile
+     */
+    private class TileTask extends RecursiveAction {
+        private final List<int[]> tiles;
+        private final int from;
+        private final int to;
+        private final long pairsNum;
+        private final Supplier<PairComparer> comparerFactory;
+
+        TileTask(List<int[]> tiles, int from, int to, long pairsNum, Supplier<PairComparer> comparerFactory) {
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+            this.pairsNum = pairsNum;
+            this.comparerFactory = comparerFactory;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+
+                invokeAll(new TileTask(tiles, from, middle, pairsNum, comparerFactory),
+                        new TileTask(tiles, middle, to, pairsNum, comparerFactory));
+                return;
+            }
+
+            if (to == from) {
+                return;
+            }
+
+            Worker worker = getWorker(comparerFactory);
+            PairComparer comparer = worker.comparer;
+            int[] tile = tiles.get(from);
+            long pairs = 0;
+            long start = System.nanoTime();
+
+            for (int i = tile[0]; i < tile[1]; i++) {
+                for (int j = Math.max(i + 1, tile[2]); j < tile[3]; j++) {
+                    comparer.compare(i, j);
+                    pairs++;
+                }
+            }
+
+            worker.addStatistics(pairs, System.nanoTime() - start);
+            logProgress(pairsDone.addAndGet(pairs), pairs, pairsNum);
+        }
+    }
+
+    /**
+     * Task that compares the pairs of a range of a list of pairs, splitting the range in two while it is large
+     */
+    private class PairTask extends RecursiveAction {
+        private final List<int[]> pairs;
+        private final int from;
+        private final int to;
+        private final Supplier<PairComparer> comparerFactory;
+
+        PairTask(List<int[]> pairs, int from, int to, Supplier<PairComparer> comparerFactory) {
+            this.pairs = pairs;
+            this.from = from;
+            this.to = to;
+            this.comparerFactory = comparerFactory;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > pairsPerTask) {
+                int middle = (from + to) >>> 1;
+
+                invokeAll(new PairTask(pairs, from, middle, comparerFactory),
+                        new PairTask(pairs, middle, to, comparerFactory));
+                return;
+            }
+
+            if (to == from) {
+                return;
+            }
+
+            Worker worker = getWorker(comparerFactory);
+            long start = System.nanoTime();
+
+            for (int p = from; p < to; p++) {
+                worker.comparer.compare(pairs.get(p)[0], pairs.get(p)[1]);
+            }
+
+            worker.addStatistics(to - from, System.nanoTime() - start);
+            logProgress(pairsDone.addAndGet(to - from), to - from, pairs.size());
+        }
+    }
+
+    /**
+     * Log the progress whenever another 10% of the pairs is done
+     */
+    private void logProgress(long done, long justDone, long pairsNum) {
+        long step = Math.max(1, pairsNum / 10);
+
+        if (done / step != (done - justDone) / step || done == pairsNum) {
+            LOGGER.log(Level.INFO, String.format("[ComparisonScheduler] Progress: %.3f%%",
+                    Percentage.percent(done, pairsNum)));
+        }
+    }
+
+    /**
+     * Comparer of a thread, with the statistics of the comparisons that the thread did with it
+     */
+    private static class Worker {
+        private final int id;
+        private final PairComparer comparer;
+        private long busyTime;          // Time spent comparing, in nanoseconds
+        private long comparisonsDone;
+
+        Worker(int id, PairComparer comparer) {
+            this.id = id;
+            this.comparer = comparer;
+        }
+
+        void addStatistics(long comparisons, long time) {
+            comparisonsDone += comparisons;
+            busyTime += time;
+        }
+    }
+}
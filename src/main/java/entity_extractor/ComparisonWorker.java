@@ -5,92 +5,90 @@ import csv_export.ComparisonResult;
 import gr.demokritos.iit.jinsect.documentModel.comparators.NGramCachedGraphComparator;
 import gr.demokritos.iit.jinsect.structs.GraphSimilarity;
 import utils.Methods;
-import utils.Percentage;
 import utils.tf_idf.CosineSimilarity;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ComparisonWorker implements Runnable {
+/**
+ * Compares pairs of texts with all the enabled methods. The graphs are compared with JInsect's comparator, or with
+ * {@link CompactGraphComparator} if the compact graphs are used (see {@link GraphCache#setCompactGraphs(boolean)}).
+ * Each thread of the comparison scheduler has its own worker, so the comparator and similarity objects are reused for
+ * all the pairs of the thread. The results are passed to a sink as soon as each pair is compared, which must be safe
+ * to call from all the threads. With a similarity join, only the pairs that can reach its threshold are compared, and
+ * only the ones that reach it are passed on.
+ */
+public class ComparisonWorker implements PairComparer {
     private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
 
     private final ArrayList<String> errors;
-    private final int id;
-    private final int cores;
-    private final int textsLen;
     private final ArrayList<String> placeholders;
-    private final ArrayList<TextEntities> texts;
+    private final List<TextEntities> texts;
     private final Map<String, GraphCache> cacheMap;
-    private final List<ComparisonContainer> allResults;
-    private final List<ComparisonContainer> comparisonResults;
+    private final Consumer<ComparisonContainer> resultSink;
+    private final SimilarityJoin join;
     private final Map<String, double[]> textTerms;
+    private final NGramCachedGraphComparator jinsectComparator;
+    private final CompactGraphComparator comparator;
+    private final GraphSimilarity compactSim;
     private String myLog;
     private CosineSimilarity cs;
 
-    public ComparisonWorker(int id, int cores, int textsLen, ArrayList<String> placeholders, ArrayList<String> errors,
-                            ArrayList<TextEntities> texts, Map<String, GraphCache> cacheMap,
-                            List<ComparisonContainer> allResults, Map<String, double[]> textTerms) {
-        this.id = id;
-        this.cores = cores;
-        this.textsLen = textsLen;
+    public ComparisonWorker(ArrayList<String> placeholders, ArrayList<String> errors, List<TextEntities> texts,
+                            Map<String, GraphCache> cacheMap, Map<String, double[]> textTerms,
+                            Consumer<ComparisonContainer> resultSink, SimilarityJoin join) {
         this.placeholders = placeholders;
         this.errors = errors;
         this.texts = texts;
         this.cacheMap = cacheMap;
-        this.allResults = allResults;
         this.textTerms = textTerms;
+        this.resultSink = resultSink;
+        this.join = join;
 
         if (Methods.isEnabled(Methods.COSINE)) {
             cs = new CosineSimilarity();
         }
 
-        this.comparisonResults = new ArrayList<>();
+        this.jinsectComparator = new NGramCachedGraphComparator();
+        this.comparator = new CompactGraphComparator();
+        this.compactSim = new GraphSimilarity();
     }
 
+    /**
+     * Compare two texts with all the enabled methods and pass the results to the result sink
+     *
+     * @param i Index of the first text
+     * @param j Index of the second text
+     */
     @Override
-    public void run() {
-        ArrayList<Integer> compGroups = new ArrayList<>();
-        int comparisonsToDo = 0;
-
-        // Find which comparisons to do
-        for (int i = id; i < textsLen - 1; i++) {
-            if (i % cores == id) {
-                comparisonsToDo += textsLen - i - 1;
-                compGroups.add(i);
-            }
+    public void compare(int i, int j) {
+        TextEntities text1 = texts.get(i);
+        TextEntities text2 = texts.get(j);
+
+        if (join != null && join.canPrune(
+                cacheMap.get(text1.getTitle()).getCompactGraph(join.getMethod(), join.getPlaceholder()),
+                cacheMap.get(text2.getTitle()).getCompactGraph(join.getMethod(), join.getPlaceholder()))) {
+            return;
         }
 
-        LOGGER.log(Level.INFO, "[Worker " + id + "] Going to do " + comparisonsToDo + " text comparisons");
-
-        int comparisonsDone = 0;
-        for (Integer i : compGroups) {
-            // Do the comparisons for this i
-            for (int j = i + 1; j < textsLen; j++) {
-                TextEntities text1 = texts.get(i);
-                TextEntities text2 = texts.get(j);
-
-                myLog = "Comparing " + text1.getTitle() + " with " + text2.getTitle() + "\n";
-
-                try {
-                    compareTexts(text1.getTitle(), text2.getTitle());
-                } catch (StackOverflowError e) {
-                    synchronized (errors) {
-                        errors.add(text1.getTitle() + " & " + text2.getTitle());
-                    }
-                }
-                LOGGER.log(Level.FINE, myLog);
-            }
+        myLog = "Comparing " + text1.getTitle() + " with " + text2.getTitle() + "\n";
 
-            // Print progress
-            comparisonsDone += textsLen - i - 1;
-            LOGGER.log(Level.INFO, String.format("[Worker " + id + "] Progress: %.3f%%", Percentage.percent(comparisonsDone, comparisonsToDo)));
-        }
+        try {
+            ComparisonContainer comparison = compareTexts(text1.getTitle(), text2.getTitle());
 
-        allResults.addAll(comparisonResults);
-        LOGGER.log(Level.INFO, "[Worker " + id + "] Finished");
+            if (join == null || join.accept(comparison)) {
+                resultSink.accept(comparison);
+            }
+        } catch (StackOverflowError e) {
+            synchronized (errors) {
+                errors.add(text1.getTitle() + " & " + text2.getTitle());
+            }
+        }
+        LOGGER.log(Level.FINE, myLog);
     }
 
     /**
@@ -98,26 +96,25 @@ public class ComparisonWorker implements Runnable {
      *
      * @param title1 Title of first text to compare
      * @param title2 Title of second text to compare
+     * @return Results of the comparison
      */
-    private void compareTexts(String title1, String title2) {
-        // Create comparator and graph similarity objects
-        NGramCachedGraphComparator comparator = new NGramCachedGraphComparator();   //todo: is this correct to use this for word graphs? and to reuse it?
-        GraphSimilarity sim;
+    private ComparisonContainer compareTexts(String title1, String title2) {
         ArrayList<ComparisonResult> results = new ArrayList<>();
+        GraphSimilarity sim;
 
         GraphCache text1Graphs = cacheMap.get(title1);
         GraphCache text2Graphs = cacheMap.get(title2);
 
         if (Methods.isEnabled(Methods.N_GRAMS)) {
             // Compare normal texts with n-gram graphs
-            sim = comparator.getSimilarityBetween(text1Graphs.getnGramNormalText(), text2Graphs.getnGramNormalText());
+            sim = compareGraphs(text1Graphs, text2Graphs, Methods.N_GRAMS, null);
             myLog += "N-gram similarity:\t" + sim.toString() + "\n";
             results.add(new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
         }
 
         if (Methods.isEnabled(Methods.WORD_GRAPHS)) {
             // Compare normal texts with word graphs
-            sim = comparator.getSimilarityBetween(text1Graphs.getWordGraphNormalText(), text2Graphs.getWordGraphNormalText());
+            sim = compareGraphs(text1Graphs, text2Graphs, Methods.WORD_GRAPHS, null);
             myLog += "Word similarity:\t" + sim.toString() + "\n";
             results.add(new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
         }
@@ -125,7 +122,7 @@ public class ComparisonWorker implements Runnable {
         if (Methods.isEnabled(Methods.PLACEHOLDER)) {
             // Compare with named entity graph placeholder method
             for (String ph : placeholders) {
-                sim = comparator.getSimilarityBetween(text1Graphs.getWordGraphPH(ph), text2Graphs.getWordGraphPH(ph));
+                sim = compareGraphs(text1Graphs, text2Graphs, Methods.PLACEHOLDER, ph);
                 myLog += "Placeholder (" + ph + "):\t" + sim.toString() + "\n";
                 results.add(new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
             }
@@ -134,7 +131,7 @@ public class ComparisonWorker implements Runnable {
         if (Methods.isEnabled(Methods.PLACEHOLDER_SS)) {
             // Compare with named entity graph placeholder same size method
             for (String ph : placeholders) {
-                sim = comparator.getSimilarityBetween(text1Graphs.getWordGraphPHSS(ph), text2Graphs.getWordGraphPHSS(ph));
+                sim = compareGraphs(text1Graphs, text2Graphs, Methods.PLACEHOLDER_SS, ph);
                 myLog += "PHSameSize (" + ph + "):\t\t" + sim.toString() + "\n";
                 results.add(new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
             }
@@ -142,7 +139,7 @@ public class ComparisonWorker implements Runnable {
 
         if (Methods.isEnabled(Methods.RANDOM)) {
             // Compare with named entity graph random word method
-            sim = comparator.getSimilarityBetween(text1Graphs.getWordGraphRand(), text2Graphs.getWordGraphRand());
+            sim = compareGraphs(text1Graphs, text2Graphs, Methods.RANDOM, null);
             myLog += "Random words:\t\t" + sim.toString() + "\n";
             results.add(new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
         }
@@ -156,13 +153,33 @@ public class ComparisonWorker implements Runnable {
         if (Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT)) {
             // Compare with named entity graph placeholder extra weight method
             for (String ph : placeholders) {
-                sim = comparator.getSimilarityBetween(text1Graphs.getWordGraphPHEW(ph), text2Graphs.getWordGraphPHEW(ph));
+                sim = compareGraphs(text1Graphs, text2Graphs, Methods.PLACEHOLDER_EXTRA_WEIGHT, ph);
                 myLog += "PH Extra Weight (" + ph + "):\t" + sim.toString() + "\n";
                 results.add(new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
             }
         }
 
-        // Add results to the saved results list
-        comparisonResults.add(new ComparisonContainer(title1, title2, results));
+        return new ComparisonContainer(title1, title2, results);
+    }
+
+    /**
+     * Compare the graphs of two texts for one method, with the comparator of the graphs that the comparisons use
+     *
+     * @param text1Graphs Graphs of the first text
+     * @param text2Graphs Graphs of the second text
+     * @param method      Method of the graphs
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @return Similarity of the graphs (with the compact graphs, the same object is reused for every comparison)
+     */
+    private GraphSimilarity compareGraphs(GraphCache text1Graphs, GraphCache text2Graphs, int method,
+                                          String placeholder) {
+        if (GraphCache.usesCompactGraphs()) {
+            comparator.getSimilarityBetween(text1Graphs.getCompactGraph(method, placeholder),
+                    text2Graphs.getCompactGraph(method, placeholder), compactSim);
+            return compactSim;
+        }
+
+        return jinsectComparator.getSimilarityBetween(text1Graphs.getGraph(method, placeholder),
+                text2Graphs.getGraph(method, placeholder));
     }
 }
@@ -0,0 +1,169 @@
+package entity_extractor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Offline entity extractor which finds the entities of a gazetteer (dictionary of entity names and types) in texts,
+ * using an Aho-Corasick automaton. The gazetteer can be harvested from texts that were processed by another extractor
+ * (e.g. the cached OpenCalais responses).
+ * <p>
+ * Gazetteer file format: one entity per line, "surface text[TAB]name[TAB]type" (if the surface text is omitted, the
+ * name is used as the surface text)
+ */
+public class DictionaryExtractor implements EntityExtractor {
+    private static final String separator = "\t";
+
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+    private final AhoCorasickAutomaton automaton;
+
+    /**
+     * Create an extractor with the entities of a gazetteer file
+     *
+     * @param gazetteer Gazetteer file
+     * @throws IOException If the gazetteer could not be read
+     */
+    public DictionaryExtractor(File gazetteer) throws IOException {
+        this.automaton = new AhoCorasickAutomaton();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(gazetteer), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(separator);
+
+                if (parts.length == 3) {
+                    automaton.add(parts[0], parts[1], parts[2]);
+                } else if (parts.length == 2) {
+                    automaton.add(parts[0], parts[0], parts[1]);
+                } else if (!line.isEmpty()) {
+                    LOGGER.log(Level.WARNING, "Skipping invalid gazetteer line: " + line);
+                }
+            }
+        }
+
+        automaton.build();
+        LOGGER.log(Level.INFO, "[DictionaryExtractor] Loaded " + automaton.size() + " entities from " + gazetteer);
+    }
+
+    /**
+     * Create an extractor with the entities that were found in the given texts
+     *
+     * @param texts Texts with extracted entities
+     */
+    public DictionaryExtractor(List<TextEntities> texts) {
+        this.automaton = new AhoCorasickAutomaton();
+
+        for (TextEntities t : texts) {
+            for (int i = 0; i < t.getEntitiesNum(); i++) {
+                automaton.add(getSurface(t, i), t.getEntityName(i), t.getEntityType(i));
+            }
+        }
+
+        automaton.build();
+        LOGGER.log(Level.INFO, "[DictionaryExtractor] Loaded " + automaton.size() + " entities from " + texts.size() + " texts");
+    }
+
+    /**
+     * Write a gazetteer file with the entities that were found in the given texts
+     *
+     * @param texts Texts with extracted entities
+     * @param out   Gazetteer file to write
+     * @throws IOException If the file could not be written
+     */
+    public static void writeGazetteer(List<TextEntities> texts, File out) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8")))) {
+            for (TextEntities t : texts) {
+                for (int i = 0; i < t.getEntitiesNum(); i++) {
+                    String surface = getSurface(t, i);
+                    String name = t.getEntityName(i);
+                    String type = t.getEntityType(i);
+
+                    // Tabs and new lines were replaced with spaces in the text, but may exist in the name/type
+                    if (!surface.isEmpty() && !name.contains(separator) && !type.contains(separator)) {
+                        writer.println(surface + separator + name + separator + type);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the text of an entity as it appears in the text
+     *
+     * @param t Text
+     * @param i Index of the entity in the text
+     * @return Surface text of the entity
+     */
+    private static String getSurface(TextEntities t, int i) {
+        int offset = t.getEntityOffset(i);
+        int end = Math.min(t.getText().length(), offset + t.getEntityLength(i));
+
+        return offset < end ? t.getText().substring(offset, end).trim() : "";
+    }
+
+    @Override
+    public TextEntities getEntities(File input) {
+        TextEntities entities = new TextEntities();
+
+        try {
+            entities.setText(new String(Files.readAllBytes(input.toPath()), "UTF-8"));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error while reading file: " + e.getMessage());
+            throw new RuntimeException("Could not read " + input, e);
+        }
+
+        entities.setTitle(input.getName());
+
+        for (ExtractedEntity e : automaton.findEntities(entities.getText())) {
+            entities.addEntity(e);
+        }
+
+        return entities;
+    }
+
+    @Override
+    public List<TextEntities> getEntities(List<File> inputs) {
+        List<TextEntities> texts = new ArrayList<>(inputs.size());
+        List<Future<TextEntities>> futures = new ArrayList<>(inputs.size());
+
+        // Extraction is CPU bound, so use a thread for each core
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        for (final File input : inputs) {
+            futures.add(executor.submit(new Callable<TextEntities>() {
+                @Override
+                public TextEntities call() throws Exception {
+                    return getEntities(input);
+                }
+            }));
+        }
+
+        executor.shutdown();
+
+        // Collect the results in the same order as the input files
+        try {
+            for (Future<TextEntities> f : futures) {
+                texts.add(f.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException("Error while getting entities", e);
+        }
+
+        return texts;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the automaton is in memory
+    }
+}
@@ -0,0 +1,388 @@
+package entity_extractor;
+
+import csv_export.ComparisonContainer;
+import csv_export.ComparisonResult;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds groups of exact and near-duplicate texts, so that only one representative of each group has to be compared
+ * with the texts of the other groups. Exact duplicates are found by their text, and near-duplicates by estimating the
+ * Jaccard similarity of their word shingles with MinHash signatures (candidate pairs are found with locality sensitive
+ * hashing, so the texts do not have to be compared all-pairs).
+ * <p>
+ * The groups are formed around their representatives (leader clustering): a text joins the group of the most similar
+ * earlier representative that is at least as similar as the threshold, else it starts a new group. Similarity is not
+ * transitive, so a text is never grouped through a chain of near-duplicates with a text below the threshold.
+ * <p>
+ * Only exact duplicates are identical, so inside a group the texts are still compared: once for each pair of distinct
+ * texts of the group, and once for each text that has exact duplicates (with itself, which gives the results of its
+ * duplicates). The results of the representatives are copied to the members of their groups only across groups.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DuplicateDetector {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final int shingleSize;
+    private final int hashesNum;
+    private final int bands;
+    private final double threshold;
+    private final long[] seeds;
+
+    private List<TextEntities> texts;
+    private int[] group;    // Index of the representative of each text's group, which is the group's first text
+
+    // Found once, after the duplicates are found
+    private Map<String, List<String>> groupMembers;     // Titles of the members of each group, by representative
+    private Map<String, List<String>> exactMembers;     // Titles of the exact duplicates of each distinct text
+    private Map<String, String> groupOf;                // Title of the representative of each text's group
+    private Map<String, String> exactOf;                // Title of the first text with each text's content
+    private List<TextEntities> textsToCompare;
+    private List<int[]> groupPairs;
+
+    /**
+     * Create a duplicate detector
+     *
+     * @param shingleSize Number of words in each shingle
+     * @param hashesNum   Number of hash functions for the MinHash signatures
+     * @param bands       Number of bands for locality sensitive hashing (must divide hashesNum)
+     * @param threshold   Minimum estimated Jaccard similarity for two texts to be considered near-duplicates
+     */
+    public DuplicateDetector(int shingleSize, int hashesNum, int bands, double threshold) {
+        if (hashesNum % bands != 0) {
+            throw new IllegalArgumentException("Number of bands must divide the number of hashes");
+        }
+
+        this.shingleSize = shingleSize;
+        this.hashesNum = hashesNum;
+        this.bands = bands;
+        this.threshold = threshold;
+
+        // Fixed seed so that the groups are the same on every run
+        Random r = new Random(42);
+        this.seeds = new long[hashesNum];
+        for (int i = 0; i < hashesNum; i++) {
+            seeds[i] = r.nextLong();
+        }
+    }
+
+    /**
+     * Find the groups of duplicate texts
+     *
+     * @param texts Texts to search for duplicates
+     */
+    public void findDuplicates(List<TextEntities> texts) {
+        int textsNum = texts.size();
+        this.texts = texts;
+        this.group = new int[textsNum];
+
+        // Exact duplicates, which are in the group of the first text with the same content
+        int[] exactFirst = new int[textsNum];
+        Map<String, Integer> firstWithText = new HashMap<>();
+        for (int i = 0; i < textsNum; i++) {
+            Integer first = firstWithText.get(texts.get(i).getText());
+
+            if (first == null) {
+                firstWithText.put(texts.get(i).getText(), i);
+                exactFirst[i] = i;
+            } else {
+                exactFirst[i] = first;
+            }
+        }
+
+        // Near-duplicates, only for texts that are not exact duplicates of a previous text. The buckets hold only
+        // representatives, so a text is compared only with the representatives that it shares a bucket with.
+        int rows = hashesNum / bands;
+        long[][] signatures = new long[textsNum][];
+        List<Map<Long, List<Integer>>> buckets = new ArrayList<>(bands);
+        for (int b = 0; b < bands; b++) {
+            buckets.add(new HashMap<Long, List<Integer>>());
+        }
+
+        long[] bandHashes = new long[bands];
+        for (int i = 0; i < textsNum; i++) {
+            if (exactFirst[i] != i) {
+                group[i] = group[exactFirst[i]];
+                continue;
+            }
+
+            signatures[i] = getSignature(texts.get(i).getText());
+
+            // Join the most similar representative that falls in the same bucket for any band
+            int best = i;
+            double bestSimilarity = threshold;
+            for (int b = 0; b < bands; b++) {
+                long bandHash = 1;
+                for (int h = b * rows; h < (b + 1) * rows; h++) {
+                    bandHash = bandHash * 31 + signatures[i][h];
+                }
+                bandHashes[b] = bandHash;
+
+                for (int representative : buckets.get(b).getOrDefault(bandHash, Collections.emptyList())) {
+                    double similarity = getSimilarity(signatures[representative], signatures[i]);
+
+                    if (similarity > bestSimilarity || (similarity == bestSimilarity && best == i)) {
+                        best = representative;
+                        bestSimilarity = similarity;
+                    }
+                }
+            }
+            group[i] = best;
+
+            // A text that starts a new group is a candidate representative for the next texts
+            if (best == i) {
+                for (int b = 0; b < bands; b++) {
+                    buckets.get(b).computeIfAbsent(bandHashes[b], h -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+
+        findGroups(exactFirst);
+
+        LOGGER.log(Level.INFO, "[DuplicateDetector] Found " + getDuplicatesNum() + " duplicate texts in " + textsNum +
+                " texts (" + (textsNum - exactMembers.size()) + " exact duplicates)");
+    }
+
+    /**
+     * Find the members of each group and of each set of exact duplicates, the texts to compare and the pairs of them
+     * that are compared inside the groups
+     *
+     * @param exactFirst Index of the first text with the same content, for each text
+     */
+    private void findGroups(int[] exactFirst) {
+        groupMembers = new HashMap<>();
+        exactMembers = new HashMap<>();
+        groupOf = new HashMap<>();
+        exactOf = new HashMap<>();
+
+        for (int i = 0; i < texts.size(); i++) {
+            String title = texts.get(i).getTitle();
+            String groupTitle = texts.get(group[i]).getTitle();
+            String exactTitle = texts.get(exactFirst[i]).getTitle();
+
+            groupMembers.computeIfAbsent(groupTitle, t -> new ArrayList<>()).add(title);
+            exactMembers.computeIfAbsent(exactTitle, t -> new ArrayList<>()).add(title);
+            groupOf.put(title, groupTitle);
+            exactOf.put(title, exactTitle);
+        }
+
+        // The representatives first (they are compared all-pairs), then the other distinct texts of the groups
+        textsToCompare = new ArrayList<>(getRepresentatives());
+        for (int i = 0; i < texts.size(); i++) {
+            if (exactFirst[i] == i && group[i] != i) {
+                textsToCompare.add(texts.get(i));
+            }
+        }
+
+        Map<String, List<Integer>> distinctOfGroup = new HashMap<>();
+        for (int i = 0; i < textsToCompare.size(); i++) {
+            String title = textsToCompare.get(i).getTitle();
+            distinctOfGroup.computeIfAbsent(groupOf.get(title), t -> new ArrayList<>()).add(i);
+        }
+
+        groupPairs = new ArrayList<>();
+        for (List<Integer> distinct : distinctOfGroup.values()) {
+            for (int a = 0; a < distinct.size(); a++) {
+                int i = distinct.get(a);
+
+                if (exactMembers.get(textsToCompare.get(i).getTitle()).size() > 1) {
+                    groupPairs.add(new int[]{i, i});
+                }
+
+                for (int b = a + 1; b < distinct.size(); b++) {
+                    groupPairs.add(new int[]{i, distinct.get(b)});
+                }
+            }
+        }
+        groupPairs.sort(Comparator.comparingInt((int[] pair) -> pair[0]).thenComparingInt(pair -> pair[1]));
+    }
+
+    /**
+     * Get one text from each group of duplicates (and every text that has no duplicates), in the original order
+     *
+     * @return Representative texts
+     */
+    public List<TextEntities> getRepresentatives() {
+        List<TextEntities> representatives = new ArrayList<>();
+
+        for (int i = 0; i < texts.size(); i++) {
+            if (group[i] == i) {
+                representatives.add(texts.get(i));
+            }
+        }
+
+        return representatives;
+    }
+
+    /**
+     * Get the texts whose graphs are compared: the representatives first (in the original order, see
+     * {@link #getRepresentatives()}), followed by the other distinct texts of the groups
+     *
+     * @return Texts to compare
+     */
+    public List<TextEntities> getTextsToCompare() {
+        return textsToCompare;
+    }
+
+    /**
+     * Get the pairs of texts that are compared inside the groups, as indices of {@link #getTextsToCompare()}: each
+     * pair of distinct texts of the same group, and (i, i) for each text that has exact duplicates
+     *
+     * @return Pairs of text indices
+     */
+    public List<int[]> getGroupPairs() {
+        return groupPairs;
+    }
+
+    /**
+     * Get the number of texts that are duplicates of another text (and will not be compared with the other groups)
+     *
+     * @return Number of duplicate texts
+     */
+    public int getDuplicatesNum() {
+        return texts.size() - groupMembers.size();
+    }
+
+    /**
+     * Expand one comparison of two compared texts to all the pairs of texts that it stands for: the pairs of the
+     * members of their groups if they are the representatives of different groups, the pairs of their exact duplicates
+     * if they are in the same group, and the pairs of the exact duplicates of a text if it was compared with itself
+     *
+     * @param comparison Comparison between two texts of {@link #getTextsToCompare()}
+     * @param sink       Receives the comparisons between the texts
+     */
+    public void expandComparison(ComparisonContainer comparison, Consumer<ComparisonContainer> sink) {
+        String title1 = comparison.getText1();
+        String title2 = comparison.getText2();
+
+        if (title1.equals(title2)) {
+            List<String> members = exactMembers.get(title1);
+
+            for (int i = 0; i < members.size(); i++) {
+                for (int j = i + 1; j < members.size(); j++) {
+                    sink.accept(new ComparisonContainer(members.get(i), members.get(j), comparison.getResults()));
+                }
+            }
+            return;
+        }
+
+        Map<String, List<String>> members = groupOf.get(title1).equals(groupOf.get(title2)) ? exactMembers : groupMembers;
+        for (String member1 : members.get(title1)) {
+            for (String member2 : members.get(title2)) {
+                sink.accept(new ComparisonContainer(member1, member2, comparison.getResults()));
+            }
+        }
+    }
+
+    /**
+     * Expand the nearest neighbours of the compared texts to all texts. The candidate neighbours of each text are the
+     * members of the groups of its representative's neighbours (from the comparisons across groups), and the members
+     * of its group that were compared with its content (from the comparisons inside the group), of which the k most
+     * similar are kept.
+     *
+     * @param neighbours      Neighbours of each representative from the comparisons across groups, by title, most
+     *                        similar first (comparisons with one result)
+     * @param groupNeighbours Neighbours of each distinct text of a group from the comparisons inside its group, by
+     *                        title, most similar first (a text is its own neighbour if it has exact duplicates)
+     * @param k               Number of neighbours to keep for each text
+     * @param measure         Similarity measure that the neighbours are ranked by (one of {@link NearestNeighbours})
+     * @return Neighbours of each text, by title, in the order of the texts
+     */
+    public Map<String, List<ComparisonContainer>> expandNeighbours(Map<String, List<ComparisonContainer>> neighbours,
+                                                                   Map<String, List<ComparisonContainer>> groupNeighbours,
+                                                                   int k, int measure) {
+        Comparator<ComparisonContainer> mostSimilarFirst = Comparator.comparingDouble(c -> {
+            ComparisonResult result = c.getResults().get(0);
+            return -(measure == NearestNeighbours.VALUE_SIMILARITY ? result.getValueSim() : result.getNVS());
+        });
+        Map<String, List<ComparisonContainer>> expanded = new LinkedHashMap<>();
+
+        for (TextEntities text : texts) {
+            String title = text.getTitle();
+            List<ComparisonContainer> candidates = new ArrayList<>();
+
+            // Inside the group, a neighbour stands for its exact duplicates
+            for (ComparisonContainer c : groupNeighbours.getOrDefault(exactOf.get(title), Collections.emptyList())) {
+                for (String member : exactMembers.get(c.getText2())) {
+                    if (!member.equals(title)) {
+                        candidates.add(new ComparisonContainer(title, member, c.getResults()));
+                    }
+                }
+            }
+
+            // Across groups, a neighbour stands for its whole group
+            for (ComparisonContainer c : neighbours.get(groupOf.get(title))) {
+                for (String member : groupMembers.get(c.getText2())) {
+                    candidates.add(new ComparisonContainer(title, member, c.getResults()));
+                }
+            }
+
+            // Stable sort, so equally similar candidates keep the order of the neighbour lists
+            candidates.sort(mostSimilarFirst);
+            expanded.put(title, new ArrayList<>(candidates.subList(0, Math.min(k, candidates.size()))));
+        }
+
+        return expanded;
+    }
+
+    /**
+     * Calculate the MinHash signature of a text's word shingles
+     *
+     * @param text Text
+     * @return Signature
+     */
+    private long[] getSignature(String text) {
+        long[] signature = new long[hashesNum];
+        Arrays.fill(signature, Long.MAX_VALUE);
+
+        StringTokenizer st = new StringTokenizer(text.toLowerCase(), " ");
+        long[] words = new long[st.countTokens()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = st.nextToken().hashCode();
+        }
+
+        // Texts shorter than a shingle are a single shingle
+        int shinglesNum = Math.max(1, words.length - shingleSize + 1);
+        for (int s = 0; s < shinglesNum; s++) {
+            long shingle = 17;
+            for (int w = s; w < Math.min(words.length, s + shingleSize); w++) {
+                shingle = shingle * 1000003 + words[w];
+            }
+
+            for (int h = 0; h < hashesNum; h++) {
+                long value = mix(shingle ^ seeds[h]);
+                if (value < signature[h]) {
+                    signature[h] = value;
+                }
+            }
+        }
+
+        return signature;
+    }
+
+    /**
+     * Estimate the Jaccard similarity of two texts by the fraction of equal values in their signatures
+     */
+    private double getSimilarity(long[] sig1, long[] sig2) {
+        int equal = 0;
+        for (int h = 0; h < hashesNum; h++) {
+            if (sig1[h] == sig2[h]) {
+                equal++;
+            }
+        }
+
+        return (double) equal / hashesNum;
+    }
+
+    /**
+     * Hash mixing function (finalizer of SplitMix64)
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,51 @@
+package entity_extractor;
+
+import utils.tf_idf.DocumentParser;
+
+/**
+ * Rule for weighting the edges of a text's graph while it is constructed, e.g. to make the edges that touch entities
+ * weigh more. Vertices are identified by their id in the vertex label dictionary of {@link GraphCache#getVertexLabels()},
+ * so a policy must add the labels of the vertices it gives a factor to (e.g. entities) to the dictionary when it
+ * prepares the weighting of a text (vertices that are not in the dictionary have the id -1).
+ * Policies should describe their parameters in toString(), because it is part of the key of the graphs in the graph
+ * store.
+ */
+public interface EdgeWeightPolicy {
+    /**
+     * Prepare the weighting of the graphs of a text
+     *
+     * @param text Text that the graphs are built from
+     * @param dp   Document parser with the TF-IDF of the texts
+     * @return Weighting of the edges of the text's graphs
+     */
+    Weighting forText(TextEntities text, DocumentParser dp);
+
+    /**
+     * Weighting of the edges of one text's graphs
+     */
+    interface Weighting {
+        /**
+         * Get the factor to multiply the weight of an edge with
+         *
+         * @param from Vertex id of the start of the edge
+         * @param to   Vertex id of the end of the edge
+         * @return Weight factor (1 to keep the weight)
+         */
+        float getFactor(int from, int to);
+
+        /**
+         * Get the factor to multiply the weight of an edge of a JInsect graph with. The labels are looked up in the
+         * vertex label dictionary without adding them to it, as the vertices that the weighting gives a factor to
+         * are added to it when the weighting is prepared.
+         *
+         * @param from Vertex label of the start of the edge
+         * @param to   Vertex label of the end of the edge
+         * @return Weight factor (1 to keep the weight)
+         */
+        default float getFactor(String from, String to) {
+            EntityDictionary labels = GraphCache.getVertexLabels();
+
+            return getFactor(labels.findId(from), labels.findId(to));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package entity_extractor;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Corpus-wide dictionary that interns strings (entity names and types, or graph vertex labels) to int ids, so that
+ * each distinct string is kept in memory only once no matter how many texts it appears in. Safe to use from multiple
+ * threads; lookups do not lock, and adding a new string only locks the map bin of that string, so many threads can
+ * fill the dictionary at the same time (e.g. while building graphs in parallel).
+ */
+@SuppressWarnings("WeakerAccess")
+public class EntityDictionary {
+    // The strings are kept in fixed size chunks, so that growing the dictionary does not copy them
+    private final static int chunkBits = 12;
+    private final static int chunkSize = 1 << chunkBits;
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    private final AtomicInteger nextId;
+    private final boolean keepHashes;
+    private volatile Chunk[] chunks;
+
+    public EntityDictionary() {
+        this(true);
+    }
+
+    /**
+     * Create a dictionary
+     *
+     * @param keepHashes If true, the hash string of each string is kept too (for {@link #getHash(int)})
+     */
+    public EntityDictionary(boolean keepHashes) {
+        this.ids = new ConcurrentHashMap<>();
+        this.nextId = new AtomicInteger();
+        this.keepHashes = keepHashes;
+        this.chunks = new Chunk[16];
+    }
+
+    /**
+     * Get the id of a string, adding it to the dictionary if it does not exist
+     *
+     * @param s String
+     * @return Id of the string
+     */
+    public int getId(String s) {
+        Integer id = ids.get(s);
+        if (id != null) {
+            return id;
+        }
+
+        // The string is written to its chunk inside computeIfAbsent, so it is visible to anyone who gets its id
+        return ids.computeIfAbsent(s, key -> {
+            int newId = nextId.getAndIncrement();
+            Chunk chunk = getChunk(newId >>> chunkBits);
+
+            chunk.strings[newId & (chunkSize - 1)] = key;
+            if (keepHashes) {
+                chunk.hashes[newId & (chunkSize - 1)] = "" + key.hashCode();
+            }
+
+            return newId;
+        });
+    }
+
+    /**
+     * Get the id of a string without adding it to the dictionary
+     *
+     * @param s String
+     * @return Id of the string, or -1 if it is not in the dictionary
+     */
+    public int findId(String s) {
+        Integer id = ids.get(s);
+
+        return id != null ? id : -1;
+    }
+
+    private Chunk getChunk(int index) {
+        Chunk[] current = chunks;
+        Chunk chunk = index < current.length ? current[index] : null;
+
+        if (chunk == null) {
+            synchronized (this) {
+                if (index >= chunks.length) {
+                    chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, index + 1));
+                }
+
+                chunk = chunks[index];
+                if (chunk == null) {
+                    chunk = new Chunk(keepHashes);
+                    chunks[index] = chunk;
+                }
+            }
+        }
+
+        return chunk;
+    }
+
+    public String getString(int id) {
+        return chunks[id >>> chunkBits].strings[id & (chunkSize - 1)];
+    }
+
+    /**
+     * Get the hash string of a string in the dictionary (same as {@link ExtractedEntity#getHash()} for names)
+     *
+     * @param id Id of the string
+     * @return Hash string
+     * @throws IllegalStateException If the dictionary does not keep hashes
+     */
+    public String getHash(int id) {
+        if (!keepHashes) {
+            throw new IllegalStateException("The dictionary does not keep hashes");
+        }
+
+        return chunks[id >>> chunkBits].hashes[id & (chunkSize - 1)];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Strings (and hash strings) of a range of ids
+     */
+    private static class Chunk {
+        private final String[] strings;
+        private final String[] hashes;
+
+        Chunk(boolean keepHashes) {
+            this.strings = new String[chunkSize];
+            this.hashes = keepHashes ? new String[chunkSize] : null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package entity_extractor;
+
+import utils.tf_idf.DocumentParser;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Multiplies the weight of the edges that touch any entity of the text by a constant factor
+ */
+public class EntityEdgeWeightPolicy implements EdgeWeightPolicy {
+    private final float factor;
+
+    /**
+     * Create the policy
+     *
+     * @param factor Factor to multiply the weight of the edges that touch entities with
+     */
+    public EntityEdgeWeightPolicy(float factor) {
+        this.factor = factor;
+    }
+
+    @Override
+    public Weighting forText(TextEntities text, DocumentParser dp) {
+        final Set<Integer> entityIds = new HashSet<>();
+        for (int i = 0; i < text.getEntitiesNum(); i++) {
+            entityIds.add(GraphCache.getEntityVertexId(text, i));
+        }
+
+        return (from, to) -> entityIds.contains(from) || entityIds.contains(to) ? factor : 1;
+    }
+
+    @Override
+    public String toString() {
+        return "entity*" + factor;
+    }
+}
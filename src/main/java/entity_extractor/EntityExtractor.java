@@ -1,7 +1,22 @@
 package entity_extractor;
 
 import java.io.File;
+import java.util.List;
 
 public interface EntityExtractor {
     TextEntities getEntities(File input);
+
+    /**
+     * Get the entities of multiple files. The returned list is in the same order as the input files.
+     *
+     * @param inputs Files to get entities for
+     * @return Text entities of each file
+     */
+    List<TextEntities> getEntities(List<File> inputs);
+
+    /**
+     * Release the resources of the extractor (e.g. pooled connections and open stores), after all the entities were
+     * extracted. The extractor cannot be used afterwards.
+     */
+    void close();
 }
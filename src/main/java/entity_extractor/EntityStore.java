@@ -0,0 +1,311 @@
+package entity_extractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only store of extracted entities, keyed by the SHA-1 hash of the document's content, so renamed or duplicate
+ * files still find their entities. The file is memory-mapped for reading in chunks of 1 GB (a single mapping cannot be
+ * larger than 2 GB), and the few records that cross the end of a chunk are read from the file instead. The file has
+ * the following layout:
+ * <p>
+ * Header: magic (int), version (int)
+ * <p>
+ * Records: record length (int, not including itself), key (20 bytes), flags (byte), text (int length + UTF-8 bytes),
+ * number of entities (int) and for each entity: name (int length + UTF-8 bytes), type (int length + UTF-8 bytes),
+ * offset (int), length (int)
+ */
+@SuppressWarnings("WeakerAccess")
+public class EntityStore {
+    private static final int MAGIC = 0x4E454745;    // "NEGE"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int KEY_SIZE = 20;
+    private static final byte FLAG_HAS_ENTITIES = 1;
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, Long> index;
+    private final List<MappedByteBuffer> chunks;
+    private long mappedSize;
+    private long size;
+
+    /**
+     * Open (or create) a store
+     *
+     * @param storeFile File of the store
+     * @throws IOException If the file could not be opened or is not a valid store
+     */
+    public EntityStore(File storeFile) throws IOException {
+        this.file = new RandomAccessFile(storeFile, "rw");
+        this.channel = file.getChannel();
+        this.index = new HashMap<>();
+        this.chunks = new ArrayList<>();
+
+        if (channel.size() == 0) {
+            // New store, write the header
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.write(header, 0);
+        }
+
+        this.size = channel.size();
+        map();
+
+        ByteBuffer header = read(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a valid entity store: " + storeFile);
+        }
+
+        buildIndex();
+    }
+
+    /**
+     * Compute the key of a file, which is the SHA-1 hash of its content
+     *
+     * @param input File to compute the key for
+     * @return Hex string of the hash
+     * @throws IOException If the file could not be read
+     */
+    public static String getKey(File input) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return bytesToHex(md.digest(Files.readAllBytes(input.toPath())));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the entities that are saved for a key
+     *
+     * @param key           Key of the document
+     * @param needsEntities If true, records that were saved without entities are ignored
+     * @return Text entities (without title) or null if the key is not in the store
+     */
+    public synchronized TextEntities get(String key, boolean needsEntities) {
+        Long position = index.get(key);
+        if (position == null) {
+            return null;
+        }
+
+        ByteBuffer buf;
+        try {
+            if (position >= mappedSize) {
+                // Record was added after the file was mapped
+                map();
+            }
+
+            int recordLength = read(position, 4).getInt();
+            buf = read(position + 4 + KEY_SIZE, recordLength - KEY_SIZE);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error while reading entity store: " + e.getMessage());
+            return null;
+        }
+
+        byte flags = buf.get();
+        if (needsEntities && (flags & FLAG_HAS_ENTITIES) == 0) {
+            return null;
+        }
+
+        TextEntities entities = new TextEntities();
+        entities.setText(readString(buf));
+
+        int entitiesNum = buf.getInt();
+        for (int i = 0; i < entitiesNum; i++) {
+            String name = readString(buf);
+            String type = readString(buf);
+            int offset = buf.getInt();
+            int length = buf.getInt();
+
+            entities.addEntity(name, type, offset, length);
+        }
+
+        return entities;
+    }
+
+    /**
+     * Append the entities of a document to the store
+     *
+     * @param key         Key of the document
+     * @param entities    Text entities
+     * @param hasEntities True if the entities were extracted (false if only the text was kept)
+     * @throws IOException If the record could not be written
+     */
+    public synchronized void put(String key, TextEntities entities, boolean hasEntities) throws IOException {
+        byte[] keyBytes = hexToBytes(key);
+        byte[] text = entities.getText().getBytes(StandardCharsets.UTF_8);
+
+        // Encode the entities first to know the record's length
+        int entitiesNum = entities.getEntitiesNum();
+        byte[][] names = new byte[entitiesNum][];
+        byte[][] types = new byte[entitiesNum][];
+        int recordLength = KEY_SIZE + 1 + 4 + text.length + 4;
+
+        for (int i = 0; i < entitiesNum; i++) {
+            names[i] = entities.getEntityName(i).getBytes(StandardCharsets.UTF_8);
+            types[i] = entities.getEntityType(i).getBytes(StandardCharsets.UTF_8);
+
+            recordLength += 4 + names[i].length + 4 + types[i].length + 8;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + recordLength);
+        buf.putInt(recordLength);
+        buf.put(keyBytes);
+        buf.put(hasEntities ? FLAG_HAS_ENTITIES : 0);
+        buf.putInt(text.length).put(text);
+        buf.putInt(entitiesNum);
+
+        for (int i = 0; i < entitiesNum; i++) {
+            buf.putInt(names[i].length).put(names[i]);
+            buf.putInt(types[i].length).put(types[i]);
+            buf.putInt(entities.getEntityOffset(i));
+            buf.putInt(entities.getEntityLength(i));
+        }
+
+        buf.flip();
+
+        long position = size;
+        while (buf.hasRemaining()) {
+            channel.write(buf, size + buf.position());
+        }
+
+        size += 4 + recordLength;
+
+        // A newer record for the same key replaces the old one
+        index.put(key, position);
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * Map the file to memory, in chunks. Only the last chunk (if the file has grown since it was mapped) and the new
+     * chunks are mapped again.
+     *
+     * @throws IOException If the file could not be mapped
+     */
+    private void map() throws IOException {
+        int chunk = (int) (mappedSize >>> CHUNK_BITS);
+        while (chunks.size() > chunk) {
+            chunks.remove(chunks.size() - 1);
+        }
+
+        for (long start = (long) chunk << CHUNK_BITS; start < size; start += CHUNK_SIZE) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start)));
+        }
+
+        mappedSize = size;
+    }
+
+    /**
+     * Get a region of the file as a buffer. The region is a slice of the mapped chunk that contains it, or is read from
+     * the file if it crosses the end of a chunk.
+     *
+     * @param position Position of the region in the file (must be mapped)
+     * @param length   Length of the region
+     * @return Buffer with the region, from position 0
+     * @throws IOException If the region could not be read
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        int chunk = (int) (position >>> CHUNK_BITS);
+        int offset = (int) (position & (CHUNK_SIZE - 1));
+
+        if (offset + (long) length <= chunks.get(chunk).capacity()) {
+            ByteBuffer buf = chunks.get(chunk).duplicate();
+            buf.position(offset).limit(offset + length);
+            return buf.slice();
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of entity store at " + (position + buf.position()));
+            }
+        }
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Scan all records to find the position of each key. If the last record is incomplete (e.g. the program was
+     * stopped while writing it), it is removed.
+     *
+     * @throws IOException If the file could not be truncated
+     */
+    private void buildIndex() throws IOException {
+        long position = HEADER_SIZE;
+        byte[] keyBytes = new byte[KEY_SIZE];
+
+        while (position + 4 <= size) {
+            int recordLength = read(position, 4).getInt();
+            if (recordLength <= 0 || position + 4 + recordLength > size) {
+                break;
+            }
+
+            read(position + 4, KEY_SIZE).get(keyBytes);
+
+            index.put(bytesToHex(keyBytes), position);
+            position += 4 + recordLength;
+        }
+
+        if (position != size) {
+            LOGGER.log(Level.WARNING, "Entity store has an incomplete record at the end, removing it");
+            channel.truncate(position);
+            size = position;
+            mappedSize = Math.min(mappedSize, size);
+            map();
+        }
+
+        LOGGER.log(Level.FINE, "[EntityStore] Loaded index with " + index.size() + " documents");
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return bytes;
+    }
+}
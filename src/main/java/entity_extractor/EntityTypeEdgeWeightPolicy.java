@@ -0,0 +1,57 @@
+package entity_extractor;
+
+import utils.tf_idf.DocumentParser;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Multiplies the weight of the edges that touch entities by a factor that depends on the type of the entity. If both
+ * vertices of an edge are entities, the larger factor is used.
+ */
+public class EntityTypeEdgeWeightPolicy implements EdgeWeightPolicy {
+    private final Map<String, Float> typeFactors;
+    private final float defaultFactor;
+
+    /**
+     * Create the policy
+     *
+     * @param typeFactors   Factor of each entity type (e.g. "Person" to 3)
+     * @param defaultFactor Factor of the entity types that are not in the map
+     */
+    public EntityTypeEdgeWeightPolicy(Map<String, Float> typeFactors, float defaultFactor) {
+        this.typeFactors = new TreeMap<>(typeFactors);
+        this.defaultFactor = defaultFactor;
+    }
+
+    @Override
+    public Weighting forText(TextEntities text, DocumentParser dp) {
+        final Map<Integer, Float> entityFactors = new HashMap<>();
+        for (int i = 0; i < text.getEntitiesNum(); i++) {
+            Float factor = typeFactors.get(text.getEntityType(i));
+            float f = factor != null ? factor : defaultFactor;
+
+            // An entity name can appear with more than one type
+            int id = GraphCache.getEntityVertexId(text, i);
+            Float previous = entityFactors.get(id);
+            entityFactors.put(id, previous != null ? Math.max(previous, f) : f);
+        }
+
+        return (from, to) -> {
+            Float fromFactor = entityFactors.get(from);
+            Float toFactor = entityFactors.get(to);
+
+            if (fromFactor == null) {
+                return toFactor != null ? toFactor : 1;
+            }
+
+            return toFactor != null ? Math.max(fromFactor, toFactor) : fromFactor;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "type" + typeFactors + "*" + defaultFactor;
+    }
+}
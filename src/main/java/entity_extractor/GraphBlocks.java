@@ -0,0 +1,267 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentNGramGraph;
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentWordGraph;
+import utils.Methods;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Splits the texts to compare into blocks of consecutive texts whose graphs fit in a memory limit, for comparing all
+ * pairs of a corpus whose graphs do not all fit in memory (block nested loop, see
+ * {@link ComparisonScheduler#run(GraphBlocks, java.util.function.Supplier)}). The size of the graphs of each text
+ * is estimated from its length before they are built, with an upper bound on the edges of each graph, so a loaded
+ * block does not go over the limit. Loading a block reads its graphs from the graph store or builds them, and
+ * unloading it evicts them from the graph caches.
+ */
+@SuppressWarnings("WeakerAccess")
+public class GraphBlocks {
+    private final List<TextEntities> texts;
+    private final Map<String, GraphCache> caches;
+    private final List<String> placeholders;
+    private final int[] blockStarts;    // Index of the first text of each block, and the number of texts at the end
+
+    // Statistics
+    private int loads;
+    private long loadTime;
+
+    /**
+     * Split texts into blocks
+     *
+     * @param texts        Texts to compare
+     * @param caches       Graph caches of the texts, by title (they must exist when the blocks are loaded)
+     * @param placeholders Placeholders to use for methods that replace words with placeholders
+     * @param blockBytes   Maximum estimated size of the graphs of a block, in bytes
+     */
+    public GraphBlocks(List<TextEntities> texts, Map<String, GraphCache> caches, List<String> placeholders,
+                       long blockBytes) {
+        this.texts = texts;
+        this.caches = caches;
+        this.placeholders = placeholders;
+
+        // Put consecutive texts in the same block until the next text does not fit (each block has at least one)
+        List<Integer> starts = new ArrayList<>();
+        long size = 0;
+        for (int i = 0; i < texts.size(); i++) {
+            long textSize = estimateGraphsSize(texts.get(i), placeholders);
+
+            if (starts.isEmpty() || size + textSize > blockBytes) {
+                starts.add(i);
+                size = 0;
+            }
+
+            size += textSize;
+        }
+
+        this.blockStarts = new int[starts.size() + 1];
+        for (int b = 0; b < starts.size(); b++) {
+            blockStarts[b] = starts.get(b);
+        }
+        blockStarts[starts.size()] = texts.size();
+    }
+
+    /**
+     * Estimate the size of the graphs of a text for all enabled methods (in the form that the comparisons use, see
+     * {@link GraphCache#setCompactGraphs(boolean)}), from the number of characters and words of the text. It is an
+     * upper bound if every unit (character or word) adds at most a vertex and a window of edges.
+     *
+     * @param text         Text
+     * @param placeholders Placeholders to use for methods that replace words with placeholders
+     * @return Estimated size in bytes
+     */
+    public static long estimateGraphsSize(TextEntities text, List<String> placeholders) {
+        String s = text.getText();
+
+        int words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            boolean wordChar = Character.isLetterOrDigit(c) || c == '_';
+
+            if (wordChar && !inWord) {
+                words++;
+            }
+            inWord = wordChar;
+        }
+
+        return estimateGraphsSize(s.length(), words, placeholders);
+    }
+
+    /**
+     * Estimate the size of the graphs of all enabled methods of a text of a file, before its entities are extracted.
+     * A UTF-8 file has at least as many bytes as characters, and a text has at most one word for every two characters,
+     * so it is not less than the estimate of the text.
+     *
+     * @param file         File of the text
+     * @param placeholders Placeholders to use for methods that replace words with placeholders
+     * @return Estimated size in bytes
+     */
+    public static long estimateGraphsSize(File file, List<String> placeholders) {
+        long characters = file.length();
+
+        return estimateGraphsSize(characters, (characters + 1) / 2, placeholders);
+    }
+
+    /**
+     * Estimate the size of the graphs of all enabled methods of a text with the given number of characters and words
+     *
+     * @param characters   Number of characters of the text
+     * @param words        Number of words of the text
+     * @param placeholders Placeholders to use for methods that replace words with placeholders
+     * @return Estimated size in bytes
+     */
+    private static long estimateGraphsSize(long characters, long words, List<String> placeholders) {
+        long size = 0;
+
+        for (int method : Methods.methods.keySet()) {
+            if (Methods.isEnabled(method)) {
+                DocumentNGramGraph params = method == Methods.N_GRAMS ? new DocumentNGramGraph() : new DocumentWordGraph();
+                long units = method == Methods.N_GRAMS ? characters : words;
+
+                size += getGraphsNum(method, placeholders.size()) * estimateGraphSize(params, units,
+                        method == GraphCache.getSourceDegreesMethod());
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Get the number of graphs that a method has for each text, including the graphs that they are derived from (the
+     * template placeholder's compact graph if there is more than one placeholder, and the placeholder method's graphs
+     * for the extra weight method)
+     *
+     * @param method          Method
+     * @param placeholdersNum Number of placeholders
+     * @return Number of graphs
+     */
+    private static int getGraphsNum(int method, int placeholdersNum) {
+        switch (method) {
+            case Methods.N_GRAMS:
+            case Methods.WORD_GRAPHS:
+            case Methods.RANDOM:
+                return 1;
+            case Methods.PLACEHOLDER:
+            case Methods.PLACEHOLDER_SS:
+                return GraphCache.usesCompactGraphs() && placeholdersNum > 1 ? placeholdersNum + 1 : placeholdersNum;
+            case Methods.PLACEHOLDER_EXTRA_WEIGHT:
+                // The placeholder method's graphs are counted with that method, if it is enabled
+                return Methods.isEnabled(Methods.PLACEHOLDER)
+                        ? placeholdersNum
+                        : placeholdersNum + getGraphsNum(Methods.PLACEHOLDER, placeholdersNum);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Estimate the size of a graph with the given parameters, as a compact graph (see
+     * {@link CompactGraph#getSizeBytes()}) or as a JInsect graph (see {@link GraphMemoryBudget#estimateSize(long, long)})
+     *
+     * @param params        Graph with the parameters of the graph
+     * @param units         Number of units (characters or words) of the text
+     * @param sourceDegrees True if the compact graph has its source vertex degrees (at most one for each unit)
+     * @return Estimated size in bytes
+     */
+    private static long estimateGraphSize(DocumentNGramGraph params, long units, boolean sourceDegrees) {
+        int levels = params.getMaxSize() - params.getMinSize() + 1;
+        long edges = units * params.getWindowSize();
+
+        if (!GraphCache.usesCompactGraphs()) {
+            return levels * GraphMemoryBudget.estimateSize(units, edges);
+        }
+
+        long size = 64 + 16L * levels + levels * (32 + 12L * edges);
+        if (sourceDegrees) {
+            size += 16 + 8L * levels + levels * (16 + 8L * units);
+        }
+
+        return size;
+    }
+
+    public int size() {
+        return blockStarts.length - 1;
+    }
+
+    public int getTextsNum() {
+        return texts.size();
+    }
+
+    /**
+     * Get the index of the first text of a block
+     *
+     * @param block Block
+     * @return Text index
+     */
+    public int getStart(int block) {
+        return blockStarts[block];
+    }
+
+    /**
+     * Get the index after the last text of a block
+     *
+     * @param block Block
+     * @return Text index
+     */
+    public int getEnd(int block) {
+        return blockStarts[block + 1];
+    }
+
+    /**
+     * Read or build the graphs of all texts of a block (each text is a separate task of the pool)
+     *
+     * @param block Block
+     * @param pool  Pool to load the graphs with
+     */
+    void load(int block, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        for (int i = getStart(block); i < getEnd(block); i++) {
+            GraphCache cache = caches.get(texts.get(i).getTitle());
+
+            tasks.add(pool.submit(() -> cache.calculateGraphs(placeholders)));
+        }
+
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        loads++;
+        loadTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Evict the graphs of all texts of a block
+     *
+     * @param block Block
+     */
+    void unload(int block) {
+        for (int i = getStart(block); i < getEnd(block); i++) {
+            caches.get(texts.get(i).getTitle()).evictAll();
+        }
+    }
+
+    /**
+     * Get the number of times that a block was loaded
+     *
+     * @return Number of loads
+     */
+    public int getLoads() {
+        return loads;
+    }
+
+    /**
+     * Get the time spent loading blocks
+     *
+     * @return Time in nanoseconds
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+}
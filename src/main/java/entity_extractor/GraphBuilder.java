@@ -0,0 +1,175 @@
+package entity_extractor;
+
+import utils.Methods;
+import utils.tf_idf.DocumentParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds the graphs of many texts in parallel. Every graph of every text (one for each method and placeholder) is a
+ * separate task, so the work is spread over all cores even when there are fewer texts than cores. The graph caches are
+ * published in a concurrent map, and the time spent building the graphs of each method is recorded.
+ */
+@SuppressWarnings("WeakerAccess")
+public class GraphBuilder {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    // Methods that use graphs, and whether each one uses placeholders
+    private final static int[] graphMethods = {Methods.N_GRAMS, Methods.WORD_GRAPHS, Methods.PLACEHOLDER,
+            Methods.PLACEHOLDER_SS, Methods.RANDOM, Methods.PLACEHOLDER_EXTRA_WEIGHT};
+    private final static String[] methodNames = {"N-grams", "Word graph", "Placeholder", "Placeholder SS", "Random",
+            "Placeholder EW"};
+    private final static boolean[] usesPlaceholders = {false, false, true, true, false, true};
+
+    private final List<String> placeholders;
+    private final DocumentParser dp;
+    private final GraphMemoryBudget budget;
+    private final GraphStore store;
+    private final int threadsNum;
+
+    // Statistics for each method
+    private final AtomicLong[] buildTimes;
+    private final AtomicInteger[] graphsBuilt;
+
+    /**
+     * Create a graph builder
+     *
+     * @param placeholders Placeholders to use for methods that replace words with placeholders
+     * @param dp           Document parser with the TF-IDF of all the texts
+     * @param budget       Memory budget for the graph caches that are created
+     * @param store        Graph store to load the graphs from and save them to (null to always build them)
+     * @param threadsNum   Number of threads to build the graphs with
+     */
+    public GraphBuilder(List<String> placeholders, DocumentParser dp, GraphMemoryBudget budget, GraphStore store,
+                        int threadsNum) {
+        this.placeholders = placeholders;
+        this.dp = dp;
+        this.budget = budget;
+        this.store = store;
+        this.threadsNum = threadsNum;
+
+        this.buildTimes = new AtomicLong[graphMethods.length];
+        this.graphsBuilt = new AtomicInteger[graphMethods.length];
+        for (int m = 0; m < graphMethods.length; m++) {
+            buildTimes[m] = new AtomicLong();
+            graphsBuilt[m] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Build the graphs of the given texts. Texts that already have a graph cache in the map (e.g. built by the
+     * ingestion pipeline) only get the graphs that use the top terms, the rest get all the graphs.
+     *
+     * @param texts  Texts to build the graphs of
+     * @param graphs Map to put the graph caches in, by text title
+     */
+    public void build(List<TextEntities> texts, ConcurrentMap<String, GraphCache> graphs) {
+        ExecutorService executor = Executors.newFixedThreadPool(threadsNum);
+        List<Future<?>> futures = new ArrayList<>();
+
+        long start = System.nanoTime();
+
+        for (TextEntities text : texts) {
+            GraphCache cache = graphs.get(text.getTitle());
+            boolean allGraphs = cache == null;
+
+            if (allGraphs) {
+                cache = new GraphCache(text, dp, budget, store);
+                graphs.put(text.getTitle(), cache);
+            } else {
+                cache.setDocumentParser(dp);
+            }
+
+            for (int m = 0; m < graphMethods.length; m++) {
+                int method = graphMethods[m];
+                boolean usesTopTerms = method == Methods.PLACEHOLDER || method == Methods.PLACEHOLDER_EXTRA_WEIGHT;
+
+                if (!Methods.isEnabled(method) || (!allGraphs && !usesTopTerms)) {
+                    continue;
+                }
+
+                if (usesPlaceholders[m]) {
+                    for (String ph : placeholders) {
+                        futures.add(executor.submit(new BuildTask(cache, m, ph)));
+                    }
+                } else {
+                    futures.add(executor.submit(new BuildTask(cache, m, null)));
+                }
+            }
+        }
+
+        executor.shutdown();
+
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException("Error while building graphs", e);
+        }
+
+        LOGGER.log(Level.INFO, getReport(System.nanoTime() - start));
+    }
+
+    /**
+     * Create a report with the number of graphs and the time spent building them for each method
+     *
+     * @param wallTime Total time that building the graphs took, in nanoseconds
+     * @return Report string
+     */
+    private String getReport(long wallTime) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[GraphBuilder] Built graphs in %.2f seconds with %d threads", wallTime / 1e9, threadsNum));
+
+        long totalTime = 0;
+        for (int m = 0; m < graphMethods.length; m++) {
+            int built = graphsBuilt[m].get();
+            long time = buildTimes[m].get();
+            totalTime += time;
+
+            if (built > 0) {
+                sb.append(String.format("%n[GraphBuilder] %-15s %6d graphs | %8.2f s | %7.2f ms/graph",
+                        methodNames[m], built, time / 1e9, time / 1e6 / built));
+            }
+        }
+
+        sb.append(String.format("%n[GraphBuilder] Vertex label dictionary: %d labels", GraphCache.getVertexLabels().size()));
+
+        if (wallTime > 0) {
+            sb.append(String.format("%n[GraphBuilder] Parallelism: %.1fx", (double) totalTime / wallTime));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Task that builds one graph of a text
+     */
+    private class BuildTask implements Runnable {
+        private final GraphCache cache;
+        private final int methodIndex;
+        private final String placeholder;
+
+        BuildTask(GraphCache cache, int methodIndex, String placeholder) {
+            this.cache = cache;
+            this.methodIndex = methodIndex;
+            this.placeholder = placeholder;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            cache.calculateGraph(graphMethods[methodIndex], placeholder);
+
+            buildTimes[methodIndex].addAndGet(System.nanoTime() - start);
+            graphsBuilt[methodIndex].incrementAndGet();
+        }
+    }
+}
@@ -5,273 +5,882 @@ import gr.demokritos.iit.jinsect.documentModel.representations.DocumentWordGraph
 import gr.demokritos.iit.jinsect.structs.UniqueVertexGraph;
 import org.javatuples.Pair;
 import salvo.jesus.graph.Edge;
+import salvo.jesus.graph.Vertex;
+import salvo.jesus.graph.VertexImpl;
 import salvo.jesus.graph.WeightedEdgeImpl;
 import utils.Methods;
 import utils.tf_idf.DocumentParser;
 
+import java.io.IOException;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Graphs of a text for all comparison methods. Each graph is built once, on first use (or in advance with the
+ * calculate methods), even if multiple threads ask for it at the same time, and is kept until the shared memory budget
+ * evicts it to make room for other graphs. The compact graphs of the placeholder methods are derived from one graph
+ * per method instead of being built for every placeholder (when there is more than one), and the extra weight graphs
+ * are derived from the placeholder graphs.
+ */
 @SuppressWarnings("WeakerAccess")
 public class GraphCache {
-    private DocumentNGramGraph nGramNormalText;
-    private DocumentWordGraph wordGraphNormalText;
-    private Map<String, DocumentWordGraph> wordGraphPH;
-    private Map<String, DocumentWordGraph> wordGraphPHEW;   // Placeholder w/ extra weight for edges that touch entities
-    private Map<String, DocumentWordGraph> wordGraphPHSS;
-    private DocumentWordGraph wordGraphRand;
+    // Vertex labels of the compact graphs of all texts and methods, so the same word or entity has the same id in all
+    private final static EntityDictionary vertexLabels = new EntityDictionary(false);
+
+    // Placeholder of the graphs that the graphs of the other placeholders are derived from
+    private final static String templatePlaceholder = "PHTEMPLATE";
+
+    // Weighting of the edges of the placeholder extra weight method's graphs
+    private static volatile EdgeWeightPolicy extraWeightPolicy = new EntityEdgeWeightPolicy(2);
+
+    // Whether the comparisons use the compact graphs instead of the JInsect graphs
+    private static volatile boolean compactGraphs = false;
+
+    // Method whose compact graphs are built with their source vertex degrees (-1 for none)
+    private static volatile int sourceDegreesMethod = -1;
 
-    private DocumentParser dp;
-    private TextEntities text;
+    // Number of placeholders that the graphs of the placeholder methods are built with
+    private static volatile int placeholdersNum = 1;
 
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+    private final Map<String, Slot> slots;
+    private final GraphMemoryBudget budget;
+    private final GraphStore store;
+
+    private volatile DocumentParser dp;
+    private volatile List<String> topTerms;
+    private volatile String contentHash;
+    private volatile String entitiesHash;
+    private final TextEntities text;
+
+    /**
+     * Create a graph cache without a memory limit
+     *
+     * @param text Text to create the graphs of
+     * @param dp   Document parser with the TF-IDF of the texts (only needed for the methods that use top terms)
+     */
     public GraphCache(TextEntities text, DocumentParser dp) {
-        this.wordGraphPH = new HashMap<>();
-        this.wordGraphPHSS = new HashMap<>();
-        this.wordGraphPHEW = new HashMap<>();
-        this.nGramNormalText = null;
-        this.wordGraphNormalText = null;
-        this.wordGraphRand = null;
+        this(text, dp, new GraphMemoryBudget(Long.MAX_VALUE));
+    }
+
+    /**
+     * Create a graph cache
+     *
+     * @param text   Text to create the graphs of
+     * @param dp     Document parser with the TF-IDF of the texts (only needed for the methods that use top terms)
+     * @param budget Memory budget, shared with the graph caches of the other texts
+     */
+    public GraphCache(TextEntities text, DocumentParser dp, GraphMemoryBudget budget) {
+        this(text, dp, budget, null);
+    }
+
+    /**
+     * Create a graph cache that loads its graphs from a graph store, and saves the graphs it builds to it
+     *
+     * @param text   Text to create the graphs of
+     * @param dp     Document parser with the TF-IDF of the texts (only needed for the methods that use top terms)
+     * @param budget Memory budget, shared with the graph caches of the other texts
+     * @param store  Graph store, opened with {@link #getVertexLabels()} (null to always build the graphs)
+     */
+    public GraphCache(TextEntities text, DocumentParser dp, GraphMemoryBudget budget, GraphStore store) {
+        this.slots = new ConcurrentHashMap<>();
+        this.budget = budget;
+        this.store = store;
 
         this.dp = dp;
+        this.topTerms = null;
+        this.contentHash = null;
+        this.entitiesHash = null;
         this.text = text;
     }
 
     /**
      * Using the DocumentParser, get the text's words, sorted from highest
-     * to lowest ranking
+     * to lowest ranking. The terms are calculated once and shared by all the graphs of the text.
      *
-     * @param te Text Entities object
      * @return List of strings, which are the terms in the ranked order
      */
-    private List<String> getTopTerms(TextEntities te) {
-        List<Pair<String, Double>> termsWithRanks = dp.getSortedDocumentTerms(te.getTitle());
+    private List<String> getTopTerms() {
+        List<String> terms = topTerms;
 
-        List<String> terms = new ArrayList<>();
+        if (terms == null) {
+            List<Pair<String, Double>> termsWithRanks = dp.getSortedDocumentTerms(text.getTitle());
 
-        if (termsWithRanks != null && !termsWithRanks.isEmpty()) {
-            for (Pair<String, Double> p : termsWithRanks) {
-                terms.add(p.getValue0());
+            terms = new ArrayList<>();
+
+            if (termsWithRanks != null && !termsWithRanks.isEmpty()) {
+                for (Pair<String, Double> p : termsWithRanks) {
+                    terms.add(p.getValue0());
+                }
             }
+
+            topTerms = terms;
         }
 
         return terms;
     }
 
+    public void setDocumentParser(DocumentParser dp) {
+        this.dp = dp;
+        this.topTerms = null;
+    }
+
     /**
-     * Calculate graphs for all methods and save them. Takes up a lot of memory...
+     * Calculate graphs for all methods and save them, in the compact form that the comparisons use. Takes up a lot of
+     * memory...
      *
      * @param placeholders Placeholders to use for methods that replace words with placeholders
      */
     public void calculateGraphs(List<String> placeholders) {
-        List<String> topTerms = null;
-        if (Methods.isEnabled(Methods.PLACEHOLDER)) {
-            // Get top terms for this text (only placeholder method uses top terms)
-            topTerms = getTopTerms(text);
-        }
+        calculateIndependentGraphs(placeholders);
+        calculateTopTermGraphs(placeholders);
+    }
 
+    /**
+     * Calculate the graphs of the methods that do not use the top terms of the text, so they can be calculated
+     * before the TF-IDF of the documents is known
+     *
+     * @param placeholders Placeholders to use for methods that replace words with placeholders
+     */
+    public void calculateIndependentGraphs(List<String> placeholders) {
         if (Methods.isEnabled(Methods.N_GRAMS)) {
             // N-gram graph for the normal text
-            nGramNormalText = new DocumentNGramGraph();
-            nGramNormalText.setDataString(text.getText());
+            calculateGraph(Methods.N_GRAMS, null);
         }
 
         if (Methods.isEnabled(Methods.WORD_GRAPHS)) {
             // Word graph for the normal text
-            wordGraphNormalText = new DocumentWordGraph();
-            wordGraphNormalText.setDataString(text.getText());
+            calculateGraph(Methods.WORD_GRAPHS, null);
         }
 
-        if (Methods.isEnabled(Methods.PLACEHOLDER) || Methods.isEnabled(Methods.PLACEHOLDER_SS) || Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT)) {
+        if (Methods.isEnabled(Methods.PLACEHOLDER_SS)) {
             for (String ph : placeholders) {
-                DocumentWordGraph g;
+                // Word graph for placeholder same size method
+                calculateGraph(Methods.PLACEHOLDER_SS, ph);
+            }
+        }
 
-                if (Methods.isEnabled(Methods.PLACEHOLDER)) {
-                    // Word graph for placeholder method
-                    g = new DocumentWordGraph();
+        if (Methods.isEnabled(Methods.RANDOM)) {
+            // Word graph for random method
+            calculateGraph(Methods.RANDOM, null);
+        }
+    }
 
-                    // If top terms exist, use method which uses them
-                    if (topTerms != null && !topTerms.isEmpty()) {
-                        g.setDataString(text.getEntityTextWithPlaceholders(ph, topTerms));
-                    } else {
-                        g.setDataString(text.getEntityTextWithPlaceholders(ph));
-                    }
+    /**
+     * Calculate the graphs of the methods that use the top terms of the text (ranked by TF-IDF), so the document
+     * parser must have parsed all documents before calling this
+     *
+     * @param placeholders Placeholders to use for methods that replace words with placeholders
+     */
+    public void calculateTopTermGraphs(List<String> placeholders) {
+        for (String ph : placeholders) {
+            if (Methods.isEnabled(Methods.PLACEHOLDER)) {
+                // Word graph for placeholder method
+                calculateGraph(Methods.PLACEHOLDER, ph);
+            }
 
-                    wordGraphPH.put(ph, g);
-                }
+            if (Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT)) {
+                // Word graph for placeholder extra weight method
+                calculateGraph(Methods.PLACEHOLDER_EXTRA_WEIGHT, ph);
+            }
+        }
+    }
 
-                if (Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT)) {
-                    // Word graph for placeholder extra weight method
-                    g = new DocumentWordGraph();
-                    createPlaceholderExtraWeightGraph(g, ph, topTerms);
+    /**
+     * Calculate and save the graph of one method that the comparisons use (the compact graph if
+     * {@link #usesCompactGraphs()}, else the JInsect graph), if it is not cached already. Graphs of different methods
+     * (or placeholders) of the same text can be calculated in parallel.
+     *
+     * @param method      Method of the graph (one of the graph methods of {@link Methods})
+     * @param placeholder Placeholder, for the methods that use one
+     */
+    public void calculateGraph(int method, String placeholder) {
+        if (compactGraphs) {
+            getCompactGraph(method, placeholder);
+        } else {
+            getGraph(method, placeholder);
+        }
+    }
 
-                    wordGraphPHEW.put(ph, g);
-                }
+    /**
+     * Remove all the graphs of this text from the cache and the memory budget
+     */
+    public void evictAll() {
+        for (Slot slot : slots.values()) {
+            budget.remove(slot);
+        }
+    }
+
+    /**
+     * Get the graph of a method from the cache, building it if it is not cached. If multiple threads ask for the
+     * same graph at the same time, only one of them builds it and the rest wait for it.
+     *
+     * @param method      Method of the graph (one of the graph methods of {@link Methods})
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @return The graph
+     */
+    public DocumentNGramGraph getGraph(int method, String placeholder) {
+        return (DocumentNGramGraph) getCached(method, placeholder, false);
+    }
 
-                if (Methods.isEnabled(Methods.PLACEHOLDER_SS)) {
-                    // Word graph for placeholder same size method
-                    g = new DocumentWordGraph();
-                    g.setDataString(text.getEntityTextWithPlaceholderSameSize(ph));
-                    wordGraphPHSS.put(ph, g);
+    /**
+     * Get the compact (frozen) graph of a method from the cache, creating it if it is not cached. It is cached
+     * separately from the normal graph, so the normal graph does not have to be kept in memory for it.
+     *
+     * @param method      Method of the graph (one of the graph methods of {@link Methods})
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @return The compact graph, with its vertex labels in the dictionary of {@link #getVertexLabels()}
+     */
+    public CompactGraph getCompactGraph(int method, String placeholder) {
+        return (CompactGraph) getCached(method, placeholder, true);
+    }
+
+    /**
+     * Set the edge weighting policy of the placeholder extra weight method, for all texts. Graphs that were already
+     * built keep their weights.
+     *
+     * @param policy Edge weighting policy
+     */
+    public static void setExtraWeightPolicy(EdgeWeightPolicy policy) {
+        extraWeightPolicy = policy;
+    }
+
+    /**
+     * Set whether the comparisons use the compact graphs (compared with {@link CompactGraphComparator}) instead of the
+     * JInsect graphs (compared with JInsect's comparator), for all texts. The similarity join and the nearest neighbour
+     * search need the compact graphs. Graphs that were already built are kept.
+     *
+     * @param compact True to use the compact graphs
+     */
+    public static void setCompactGraphs(boolean compact) {
+        compactGraphs = compact;
+    }
+
+    public static boolean usesCompactGraphs() {
+        return compactGraphs;
+    }
+
+    /**
+     * Set the method whose compact graphs are built with the source vertex degrees that the similarity join bounds
+     * use (see {@link CompactGraph#getSourceDegrees(int)}), so that they are counted in the memory budget. Degrees
+     * that are found later, for graphs of other methods, are not counted until the graph is built again.
+     *
+     * @param method Graph method (one of the graph methods of {@link Methods}), or -1 for none
+     */
+    public static void setSourceDegreesMethod(int method) {
+        sourceDegreesMethod = method;
+    }
+
+    public static int getSourceDegreesMethod() {
+        return sourceDegreesMethod;
+    }
+
+    /**
+     * Set the number of placeholders that the graphs of the placeholder methods are built with, for all texts. The
+     * compact graphs are derived from the graph of a template placeholder only if there is more than one, else the
+     * template graph would just be built in addition to the graph of the placeholder.
+     *
+     * @param num Number of placeholders
+     */
+    public static void setPlaceholdersNum(int num) {
+        placeholdersNum = num;
+    }
+
+    /**
+     * Get the id of an entity's vertex in word graphs, in the vertex label dictionary
+     *
+     * @param text Text of the entity
+     * @param i    Index of the entity in the text
+     * @return Vertex id
+     */
+    public static int getEntityVertexId(TextEntities text, int i) {
+        String hash = text.getEntityHash(i);
+
+        // Word graphs remove the - from the start of entity hash codes
+        return vertexLabels.getId(hash.startsWith("-") ? hash.substring(1) : hash);
+    }
+
+    /**
+     * Corpus dictionary with the vertex labels of the compact graphs of all texts and methods. It is filled by the
+     * threads that build the graphs, as they convert them to compact graphs.
+     *
+     * @return Vertex label dictionary
+     */
+    public static EntityDictionary getVertexLabels() {
+        return vertexLabels;
+    }
+
+    private Object getCached(int method, String placeholder, boolean compact) {
+        Slot slot = getSlot(method, placeholder, compact);
+        Object g;
+        boolean built = false;
+        boolean rebuilt = false;
+
+        // Get the graph that this one is derived from before locking the slot, because getting it may update the
+        // budget, which must not happen while holding a slot
+        CompactGraph base = null;
+        DocumentNGramGraph baseGraph = null;
+        synchronized (slot) {
+            g = slot.graph;
+        }
+
+        if (g == null) {
+            if (compact) {
+                base = getBaseGraph(method, placeholder);
+            } else if (method == Methods.PLACEHOLDER_EXTRA_WEIGHT) {
+                baseGraph = getGraph(Methods.PLACEHOLDER, placeholder);
+            }
+        }
+
+        synchronized (slot) {
+            g = slot.graph;
+
+            if (g == null) {
+                if (compact) {
+                    CompactGraph cg = base != null
+                            ? deriveCompactGraph(method, placeholder, base)
+                            : loadOrBuildCompactGraph(method, placeholder);
+                    if (method == sourceDegreesMethod) {
+                        // Find them now, so that they are counted in the size of the graph in the budget
+                        cg.computeSourceDegrees();
+                    }
+                    slot.size = cg.getSizeBytes();
+                    g = cg;
+                } else {
+                    DocumentNGramGraph dg = baseGraph != null
+                            ? deriveGraph(placeholder, baseGraph)
+                            : loadOrBuildGraph(method, placeholder);
+                    slot.size = GraphMemoryBudget.estimateSize(dg);
+                    g = dg;
                 }
+
+                rebuilt = slot.everBuilt;
+                built = true;
+
+                slot.graph = g;
+                slot.everBuilt = true;
             }
         }
 
-        if (Methods.isEnabled(Methods.RANDOM)) {
-            // Word graph for random method
-            wordGraphRand = new DocumentWordGraph();
-            wordGraphRand.setDataString(text.getEntityTextWithRandomWord());
+        // Update the budget after releasing the slot, because eviction locks the slots of other graphs
+        if (built) {
+            budget.added(slot, rebuilt);
+        } else {
+            budget.used(slot);
         }
+
+        return g;
+    }
+
+    private Slot getSlot(int method, String placeholder, boolean compact) {
+        String key = placeholder == null ? String.valueOf(method) : method + ":" + placeholder;
+        if (compact) {
+            key = "c" + key;
+        }
+
+        Slot slot = slots.get(key);
+
+        if (slot == null) {
+            Slot newSlot = new Slot();
+            slot = slots.putIfAbsent(key, newSlot);
+
+            if (slot == null) {
+                slot = newSlot;
+            }
+        }
+
+        return slot;
     }
 
     /**
-     * Create the graph for the Placeholder Extra Weight method
+     * Load a graph from the graph store, or build it and save it to the store if it is not there
      *
-     * @param g        Graph to initialize
-     * @param ph       Placeholder word
-     * @param topTerms Top terms list
+     * @param method      Method of the graph
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @return The graph
      */
-    private void createPlaceholderExtraWeightGraph(DocumentWordGraph g, String ph, List<String> topTerms) {
-        // If top terms exist, use method which uses them
-        if (topTerms != null && !topTerms.isEmpty()) {
-            // Add the text to the graph
-            g.setDataString(text.getEntityTextWithPlaceholders(ph, topTerms));
-
-            // Edit the graph to make edges that touch entities weigh double
-            UniqueVertexGraph graphLevel = g.getGraphLevel(0);
-
-            // Create list of this text's entity hash codes
-            List<String> entities = new ArrayList<>();
-            for (ExtractedEntity ent : text.getEntities()) {
-                String hash = ent.hashCode() + "";
-                if (hash.startsWith("-")) {
-                    // Remove - from start of entity hashcode because on word graphs it is removed already
-                    hash = hash.substring(1, hash.length());
-                }
+    private DocumentNGramGraph loadOrBuildGraph(int method, String placeholder) {
+        if (!isStored(method)) {
+            return buildGraph(method, placeholder);
+        }
+
+        String key = getStoreKey(method, placeholder);
+
+        DocumentNGramGraph g = store.get(key);
+        if (g == null) {
+            g = buildGraph(method, placeholder);
+
+            try {
+                store.put(key, g);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error while saving graph of " + text.getTitle() + ": " + e.getMessage());
+            }
+        }
+
+        return g;
+    }
 
-                entities.add(hash);
+    /**
+     * Create the compact form of a graph. Word graphs are built directly from the words of the text. Other graphs are
+     * converted from the normal graph if it is cached, else read directly from the graph store, else converted from a
+     * newly built normal graph (without caching it).
+     *
+     * @param method      Method of the graph
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @return The compact graph
+     */
+    private CompactGraph loadOrBuildCompactGraph(int method, String placeholder) {
+        if (method != Methods.N_GRAMS) {
+            DocumentWordGraph params = new DocumentWordGraph();
+
+            if (TokenGraphBuilder.canBuild(params)) {
+                return TokenGraphBuilder.build(getReplacedWords(method, placeholder), params, vertexLabels);
             }
+        }
 
-            // For all of the graph's edges
-            Set<Edge> edgeSet = graphLevel.getEdgeSet();
-            for (Edge e : edgeSet) {
-                // Check if this edge contains any entities
-                if ((entities.contains(e.getVertexA().getLabel()) || entities.contains(e.getVertexB().getLabel())) && e instanceof WeightedEdgeImpl) {
-                    // Double the weight of this edge because it touches an entity
-                    WeightedEdgeImpl wEdge = (WeightedEdgeImpl) e;
-                    wEdge.setWeight(wEdge.getWeight() * 2);
-                }
+        Slot slot = getSlot(method, placeholder, false);
+        DocumentNGramGraph g;
+
+        synchronized (slot) {
+            g = (DocumentNGramGraph) slot.graph;
+        }
+
+        if (g == null && isStored(method)) {
+            CompactGraph cg = store.getCompact(getStoreKey(method, placeholder));
+
+            if (cg != null) {
+                return cg;
             }
-        } else {
-            // There is no point running this method without TF-IDF as all weights will be increased,
-            // so just run the normal Placeholder instead...
-            g.setDataString(text.getEntityTextWithPlaceholders(ph));
         }
+
+        if (g == null) {
+            g = loadOrBuildGraph(method, placeholder);
+        }
+
+        return CompactGraph.freeze(g, vertexLabels);
     }
 
     /**
-     * Return an n-gram graph of the normal text. If it does not exist, create it and return it
+     * Get the words of the text that the word graph of a method is built from (the same words as in the text that
+     * the build methods render)
      *
-     * @return N-gram graph
+     * @param method      Method of the graph (a word graph method, except the extra weight one)
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @return Words of the text
      */
-    public DocumentNGramGraph getnGramNormalText() {
-        if (nGramNormalText == null) {
-            DocumentNGramGraph g = new DocumentNGramGraph();
-            g.setDataString(text.getText());
+    private String[] getReplacedWords(int method, String placeholder) {
+        switch (method) {
+            case Methods.WORD_GRAPHS:
+                return text.getReplacedWords(TextEntities.RENDER_KEEP, null, null);
+            case Methods.PLACEHOLDER:
+                List<String> topTerms = getTopTerms();
+
+                return text.getReplacedWords(TextEntities.RENDER_PLACEHOLDER, placeholder, topTerms.isEmpty() ? null : topTerms);
+            case Methods.PLACEHOLDER_SS:
+                return text.getReplacedWords(TextEntities.RENDER_SAME_SIZE, placeholder, null);
+            case Methods.RANDOM:
+                return text.getReplacedWords(TextEntities.RENDER_RANDOM, null, null);
+            default:
+                throw new IllegalArgumentException("Method " + method + " is not built from the words of the text");
+        }
+    }
 
-            return g;
-        } else {
-            return nGramNormalText;
+    /**
+     * Get the compact graph that the graph of a placeholder method can be derived from, without rendering and
+     * parsing the text again. If there is more than one placeholder (see {@link #setPlaceholdersNum(int)}), the graphs
+     * of all placeholders are derived from one graph built with a template placeholder (by relabeling its placeholder
+     * vertices), and the extra weight graph is derived from the placeholder graph (by weighting its edges with the
+     * extra weight policy).
+     *
+     * @param method      Method of the graph
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @return Base graph, or null if the graph has to be built from the text
+     */
+    private CompactGraph getBaseGraph(int method, String placeholder) {
+        switch (method) {
+            case Methods.PLACEHOLDER:
+            case Methods.PLACEHOLDER_SS:
+                if (placeholdersNum < 2 || placeholder.equals(templatePlaceholder) ||
+                        !canRelabel(method, placeholder) || !canRelabel(method, templatePlaceholder)) {
+                    return null;
+                }
+
+                return getCompactGraph(method, templatePlaceholder);
+            case Methods.PLACEHOLDER_EXTRA_WEIGHT:
+                return getCompactGraph(Methods.PLACEHOLDER, placeholder);
+            default:
+                return null;
         }
     }
 
     /**
-     * Return a word graph of the normal text. If it does not exist, create it and return it
+     * Check if the placeholder vertices of a graph can be relabeled to a placeholder. It has to stay one word when
+     * the graph is built (so only word characters), and must not be the same as any word that is kept in the text
+     * (entity hashes, which are numbers, and top terms), else relabeling would not give the same graph as building.
      *
-     * @return Word graph
+     * @param method      Method of the graph
+     * @param placeholder Placeholder
+     * @return True if the graph can be derived by relabeling
      */
-    public DocumentWordGraph getWordGraphNormalText() {
-        if (wordGraphNormalText == null) {
-            DocumentWordGraph g = new DocumentWordGraph();
-            g.setDataString(text.getText());
+    private boolean canRelabel(int method, String placeholder) {
+        if (!TokenGraphBuilder.isToken(placeholder)) {
+            return false;
+        }
 
-            return g;
-        } else {
-            return wordGraphNormalText;
+        boolean hasLetter = false;
+        for (int i = 0; i < placeholder.length(); i++) {
+            hasLetter |= Character.isLetter(placeholder.charAt(i));
+        }
+
+        if (!hasLetter) {
+            return false;
+        }
+
+        if (method == Methods.PLACEHOLDER) {
+            for (String term : getTopTerms()) {
+                if (term.equalsIgnoreCase(placeholder)) {
+                    return false;
+                }
+            }
         }
+
+        return true;
     }
 
     /**
-     * Return a word graph of the placeholder method text. If it does not exist, create it and return it
+     * Derive the compact graph of a placeholder method from its base graph (see {@link #getBaseGraph(int, String)})
      *
-     * @param placeholder Placeholder to use in text
-     * @return Word graph
+     * @param method      Method of the graph
+     * @param placeholder Placeholder
+     * @param base        Base graph
+     * @return The derived graph
      */
-    public DocumentWordGraph getWordGraphPH(String placeholder) {
-        DocumentWordGraph g = wordGraphPH.get(placeholder);
+    private CompactGraph deriveCompactGraph(int method, String placeholder, CompactGraph base) {
+        int templateId = vertexLabels.getId(templatePlaceholder);
+
+        switch (method) {
+            case Methods.PLACEHOLDER:
+                int placeholderId = vertexLabels.getId(placeholder);
+
+                return base.relabel(id -> id == templateId ? placeholderId : id);
+            case Methods.PLACEHOLDER_SS:
+                // Each word was replaced with the template repeated to the word's length
+                Map<Integer, Integer> newIds = new HashMap<>();
+
+                return base.relabel(id -> newIds.computeIfAbsent(id, oldId -> {
+                    String label = vertexLabels.getString(oldId);
+
+                    return isRepetition(label, templatePlaceholder)
+                            ? vertexLabels.getId(repeat(placeholder, label.length()))
+                            : oldId;
+                }));
+            case Methods.PLACEHOLDER_EXTRA_WEIGHT:
+                // Without top terms all weights would be increased, so the method is the same as the placeholder one
+                if (getTopTerms().isEmpty()) {
+                    return base.reweight((from, to) -> 1);
+                }
 
-        if (g == null) {
-            g = new DocumentWordGraph();
+                return base.reweight(extraWeightPolicy.forText(text, dp));
+            default:
+                throw new IllegalArgumentException("Graph of method " + method + " cannot be derived");
+        }
+    }
 
-            // Get top terms for this text
-            List<String> topTerms = getTopTerms(text);
+    private static boolean isRepetition(String s, String word) {
+        if (s.isEmpty()) {
+            return false;
+        }
 
-            // If top terms exist, use method which uses them
-            if (topTerms != null && !topTerms.isEmpty()) {
-                g.setDataString(text.getEntityTextWithPlaceholders(placeholder, topTerms));
-            } else {
-                g.setDataString(text.getEntityTextWithPlaceholders(placeholder));
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != word.charAt(i % word.length())) {
+                return false;
             }
         }
 
+        return true;
+    }
+
+    private static String repeat(String word, int length) {
+        StringBuilder sb = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            sb.append(word.charAt(i % word.length()));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Check if the graphs of a method are loaded from (and saved to) the graph store. Random word graphs are never
+     * stored, as they are different every time they are built.
+     *
+     * @param method Method of the graph
+     * @return True if the graph store is used for the method
+     */
+    private boolean isStored(int method) {
+        return store != null && method != Methods.RANDOM;
+    }
+
+    private String getStoreKey(int method, String placeholder) {
+        // The top terms depend on the whole corpus, so they are part of the key of the methods that use them
+        boolean usesTopTerms = method == Methods.PLACEHOLDER || method == Methods.PLACEHOLDER_EXTRA_WEIGHT;
+        DocumentNGramGraph params = method == Methods.N_GRAMS ? new DocumentNGramGraph() : new DocumentWordGraph();
+
+        // Graphs with a different edge weighting are different graphs
+        String methodKey = method == Methods.PLACEHOLDER_EXTRA_WEIGHT ? method + ":" + extraWeightPolicy : String.valueOf(method);
+
+        // Only the normal text's graphs do not depend on the entities
+        boolean usesEntities = method != Methods.N_GRAMS && method != Methods.WORD_GRAPHS;
+
+        return GraphStore.getKey(methodKey, placeholder, params,
+                usesEntities ? getContentHash() + ":" + getEntitiesHash() : getContentHash(),
+                usesTopTerms ? getTopTerms() : null);
+    }
+
+    private String getContentHash() {
+        String hash = contentHash;
+
+        if (hash == null) {
+            hash = GraphStore.getContentHash(text.getText());
+            contentHash = hash;
+        }
+
+        return hash;
+    }
+
+    private String getEntitiesHash() {
+        String hash = entitiesHash;
+
+        if (hash == null) {
+            hash = GraphStore.getEntitiesHash(text);
+            entitiesHash = hash;
+        }
+
+        return hash;
+    }
+
+    private DocumentNGramGraph buildGraph(int method, String placeholder) {
+        switch (method) {
+            case Methods.N_GRAMS:
+                return buildNGramGraph();
+            case Methods.WORD_GRAPHS:
+                return buildWordGraph();
+            case Methods.PLACEHOLDER:
+                return buildPHGraph(placeholder);
+            case Methods.PLACEHOLDER_SS:
+                return buildPHSSGraph(placeholder);
+            case Methods.RANDOM:
+                return buildRandomGraph();
+            case Methods.PLACEHOLDER_EXTRA_WEIGHT:
+                return buildPHEWGraph(placeholder);
+            default:
+                throw new IllegalArgumentException("Method " + method + " does not use graphs");
+        }
+    }
+
+    private DocumentNGramGraph buildNGramGraph() {
+        DocumentNGramGraph g = new DocumentNGramGraph();
+        g.setDataString(text.getText());
+
+        return g;
+    }
+
+    private DocumentWordGraph buildWordGraph() {
+        DocumentWordGraph g = new DocumentWordGraph();
+        g.setDataString(text.getText());
+
+        return g;
+    }
+
+    private DocumentWordGraph buildPHGraph(String placeholder) {
+        DocumentWordGraph g = new DocumentWordGraph();
+
+        // Get top terms for this text
+        List<String> topTerms = getTopTerms();
+
+        // If top terms exist, use method which uses them
+        if (!topTerms.isEmpty()) {
+            g.setDataString(text.getEntityTextWithPlaceholders(placeholder, topTerms));
+        } else {
+            g.setDataString(text.getEntityTextWithPlaceholders(placeholder));
+        }
+
+        return g;
+    }
+
+    private DocumentWordGraph buildPHSSGraph(String placeholder) {
+        DocumentWordGraph g = new DocumentWordGraph();
+        g.setDataString(text.getEntityTextWithPlaceholderSameSize(placeholder));
+
+        return g;
+    }
+
+    private DocumentWordGraph buildPHEWGraph(String placeholder) {
+        DocumentWordGraph g = buildPHGraph(placeholder);
+        weightPlaceholderExtraWeightGraph(g);
+
+        return g;
+    }
+
+    private DocumentWordGraph buildRandomGraph() {
+        DocumentWordGraph g = new DocumentWordGraph();
+        g.setDataString(text.getEntityTextWithRandomWord());
+
         return g;
     }
 
     /**
-     * Return a word graph of the placeholder same size method text. If it does not exist, create it and return it
+     * Derive the graph of the Placeholder Extra Weight method from the graph of the Placeholder method, by copying it
+     * and weighting the edges of the copy, without rendering and parsing the text again (the placeholder graph is not
+     * modified, so it can stay cached)
      *
-     * @param placeholder Placeholder to use in text
-     * @return Word graph
+     * @param placeholder Placeholder word
+     * @param base        Placeholder method graph of the same placeholder
+     * @return The extra weight graph
      */
-    public DocumentWordGraph getWordGraphPHSS(String placeholder) {
-        DocumentWordGraph g = wordGraphPHSS.get(placeholder);
+    private DocumentWordGraph deriveGraph(String placeholder, DocumentNGramGraph base) {
+        DocumentWordGraph g = new DocumentWordGraph(base.getMinSize(), base.getMaxSize(), base.getWindowSize());
 
-        if (g == null) {
-            g = new DocumentWordGraph();
-            g.setDataString(text.getEntityTextWithPlaceholderSameSize(placeholder));
+        try {
+            for (int level = 0; level <= base.getMaxSize() - base.getMinSize(); level++) {
+                copyLevel(base.getGraphLevel(level), g.getGraphLevel(level));
+            }
+        } catch (Exception e) {
+            // Salvo's graphs throw Exception when adding vertices/edges
+            LOGGER.log(Level.SEVERE, "Error while copying placeholder graph of " + text.getTitle() +
+                    ", building it again: " + e.getMessage());
+            return buildPHEWGraph(placeholder);
         }
 
+        weightPlaceholderExtraWeightGraph(g);
         return g;
     }
 
+    private static void copyLevel(UniqueVertexGraph from, UniqueVertexGraph to) throws Exception {
+        // Edges share their vertex objects, so the copy must share the copied vertices in the same way
+        Map<Vertex, Vertex> copies = new IdentityHashMap<>();
+
+        for (Object v : from.getVertexSet()) {
+            Vertex copy = new VertexImpl(((Vertex) v).getLabel());
+            to.add(copy);
+            copies.put((Vertex) v, copy);
+        }
+
+        Set<Edge> edgeSet = from.getEdgeSet();
+        for (Edge e : edgeSet) {
+            double weight = e instanceof WeightedEdgeImpl ? ((WeightedEdgeImpl) e).getWeight() : 1.0;
+
+            to.addEdge(new WeightedEdgeImpl(copies.get(e.getVertexA()), copies.get(e.getVertexB()), weight));
+        }
+    }
+
+    /**
+     * Weight the edges of a Placeholder method graph for the Placeholder Extra Weight method, in place
+     *
+     * @param g Graph of the placeholder method
+     */
+    private void weightPlaceholderExtraWeightGraph(DocumentWordGraph g) {
+        // There is no point running this method without TF-IDF as all weights will be increased,
+        // so the graph stays the same as the normal Placeholder one
+        if (getTopTerms().isEmpty()) {
+            return;
+        }
+
+        // Weight the edges of the graph with the extra weight policy (e.g. make edges that touch entities weigh more)
+        EdgeWeightPolicy.Weighting weighting = extraWeightPolicy.forText(text, dp);
+        UniqueVertexGraph graphLevel = g.getGraphLevel(0);
+
+        // For all of the graph's edges
+        Set<Edge> edgeSet = graphLevel.getEdgeSet();
+        for (Edge e : edgeSet) {
+            if (e instanceof WeightedEdgeImpl) {
+                // Look the labels up without adding them, the dictionary is only for the labels of compact graphs
+                float factor = weighting.getFactor(e.getVertexA().getLabel(), e.getVertexB().getLabel());
+
+                if (factor != 1) {
+                    WeightedEdgeImpl wEdge = (WeightedEdgeImpl) e;
+                    wEdge.setWeight(wEdge.getWeight() * factor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return an n-gram graph of the normal text
+     *
+     * @return N-gram graph
+     */
+    public DocumentNGramGraph getnGramNormalText() {
+        return getGraph(Methods.N_GRAMS, null);
+    }
+
     /**
-     * Return a word graph of the placeholder extra weight method text. If it does not exist, create it and return it
+     * Return a word graph of the normal text
+     *
+     * @return Word graph
+     */
+    public DocumentWordGraph getWordGraphNormalText() {
+        return (DocumentWordGraph) getGraph(Methods.WORD_GRAPHS, null);
+    }
+
+    /**
+     * Return a word graph of the placeholder method text
      *
      * @param placeholder Placeholder to use in text
      * @return Word graph
      */
-    public DocumentWordGraph getWordGraphPHEW(String placeholder) {
-        DocumentWordGraph g = wordGraphPHEW.get(placeholder);
+    public DocumentWordGraph getWordGraphPH(String placeholder) {
+        return (DocumentWordGraph) getGraph(Methods.PLACEHOLDER, placeholder);
+    }
 
-        if (g == null) {
-            g = new DocumentWordGraph();
-            createPlaceholderExtraWeightGraph(g, placeholder, getTopTerms(text));
-        }
+    /**
+     * Return a word graph of the placeholder same size method text
+     *
+     * @param placeholder Placeholder to use in text
+     * @return Word graph
+     */
+    public DocumentWordGraph getWordGraphPHSS(String placeholder) {
+        return (DocumentWordGraph) getGraph(Methods.PLACEHOLDER_SS, placeholder);
+    }
 
-        return g;
+    /**
+     * Return a word graph of the placeholder extra weight method text
+     *
+     * @param placeholder Placeholder to use in text
+     * @return Word graph
+     */
+    public DocumentWordGraph getWordGraphPHEW(String placeholder) {
+        return (DocumentWordGraph) getGraph(Methods.PLACEHOLDER_EXTRA_WEIGHT, placeholder);
     }
 
     /**
-     * Return a word graph of the random method text. If it does not exist, create it and return it
+     * Return a word graph of the random method text
      *
      * @return Word graph
      */
     public DocumentWordGraph getWordGraphRand() {
-        if (wordGraphRand == null) {
-            DocumentWordGraph g = new DocumentWordGraph();
-            g.setDataString(text.getEntityTextWithRandomWord());
+        return (DocumentWordGraph) getGraph(Methods.RANDOM, null);
+    }
 
-            return g;
-        } else {
-            return wordGraphRand;
+    /**
+     * Cache entry for the graph of one method (and placeholder)
+     */
+    static class Slot {
+        private Object graph;   // DocumentNGramGraph or CompactGraph, null if it was not built yet or was evicted
+        private long size;
+        private boolean everBuilt;
+
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Remove the graph from the cache (it will be built again if it is needed)
+         */
+        synchronized void evict() {
+            graph = null;
         }
     }
 }
@@ -0,0 +1,168 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentNGramGraph;
+import gr.demokritos.iit.jinsect.structs.UniqueVertexGraph;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory budget shared by the graph caches of all texts. Keeps track of the estimated size of every graph that is in
+ * a cache, and when the total goes over the budget evicts the least recently used graphs (of any text). Also counts
+ * the hits, misses and rebuilds (misses for graphs that had been built before and were evicted) of the caches.
+ */
+@SuppressWarnings("WeakerAccess")
+public class GraphMemoryBudget {
+    // Rough estimates of the heap used by each vertex (with its label) and edge of a graph
+    private final static long vertexBytes = 200;
+    private final static long edgeBytes = 150;
+
+    private final long budgetBytes;
+    private final LinkedHashMap<GraphCache.Slot, Boolean> slots;   // In access order, least recently used first
+    private long usedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a memory budget
+     *
+     * @param budgetBytes Maximum estimated size of all the cached graphs, in bytes (Long.MAX_VALUE for no limit)
+     */
+    public GraphMemoryBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.slots = new LinkedHashMap<>(16, 0.75f, true);
+        this.usedBytes = 0;
+    }
+
+    /**
+     * Estimate the heap size of a graph, from its number of vertices and edges in all levels
+     *
+     * @param g Graph
+     * @return Estimated size in bytes
+     */
+    public static long estimateSize(DocumentNGramGraph g) {
+        long size = 0;
+
+        for (int level = 0; level <= g.getMaxSize() - g.getMinSize(); level++) {
+            UniqueVertexGraph graphLevel = g.getGraphLevel(level);
+
+            size += estimateSize(graphLevel.getVerticesCount(), graphLevel.getEdgeSet().size());
+        }
+
+        return size;
+    }
+
+    /**
+     * Estimate the heap size of a graph level with the given number of vertices and edges
+     *
+     * @param vertices Number of vertices
+     * @param edges    Number of edges
+     * @return Estimated size in bytes
+     */
+    public static long estimateSize(long vertices, long edges) {
+        return vertices * vertexBytes + edges * edgeBytes;
+    }
+
+    /**
+     * Add a graph that was just built to the budget, evicting other graphs if the budget is exceeded. The graph itself
+     * is never evicted here, even if it is larger than the budget, because it is about to be used.
+     *
+     * @param slot    Slot of the graph
+     * @param rebuilt True if the graph had been built before and was evicted
+     */
+    void added(GraphCache.Slot slot, boolean rebuilt) {
+        misses.incrementAndGet();
+        if (rebuilt) {
+            rebuilds.incrementAndGet();
+        }
+
+        synchronized (this) {
+            slots.put(slot, Boolean.TRUE);
+            usedBytes += slot.getSize();
+
+            Iterator<GraphCache.Slot> it = slots.keySet().iterator();
+            while (usedBytes > budgetBytes && it.hasNext()) {
+                GraphCache.Slot eldest = it.next();
+                if (eldest == slot) {
+                    continue;
+                }
+
+                it.remove();
+                usedBytes -= eldest.getSize();
+                eldest.evict();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Mark a cached graph as used
+     *
+     * @param slot Slot of the graph
+     */
+    void used(GraphCache.Slot slot) {
+        hits.incrementAndGet();
+
+        synchronized (this) {
+            // Only move it to the end if it was not evicted in the meantime
+            if (slots.containsKey(slot)) {
+                slots.get(slot);
+            }
+        }
+    }
+
+    /**
+     * Remove a graph from the budget and its cache
+     *
+     * @param slot Slot of the graph
+     */
+    void remove(GraphCache.Slot slot) {
+        synchronized (this) {
+            if (slots.remove(slot) != null) {
+                usedBytes -= slot.getSize();
+            }
+
+            slot.evict();
+        }
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRebuilds() {
+        return rebuilds.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getCachedGraphsNum() {
+        return slots.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[GraphMemoryBudget] %d graphs cached (%.1f MB of %s) | hits: %d | misses: %d | " +
+                        "rebuilds: %d | evictions: %d", getCachedGraphsNum(), getUsedBytes() / 1e6,
+                budgetBytes == Long.MAX_VALUE ? "unlimited" : String.format("%.1f MB", budgetBytes / 1e6),
+                getHits(), getMisses(), getRebuilds(), getEvictions());
+    }
+}
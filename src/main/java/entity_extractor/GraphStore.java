@@ -0,0 +1,773 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentNGramGraph;
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentWordGraph;
+import gr.demokritos.iit.jinsect.structs.UniqueVertexGraph;
+import salvo.jesus.graph.Edge;
+import salvo.jesus.graph.Vertex;
+import salvo.jesus.graph.VertexImpl;
+import salvo.jesus.graph.WeightedEdgeImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only store of built graphs, so that repeated runs on the same texts do not have to build them again. Each
+ * graph is keyed by the SHA-1 hash of the method, its parameters and the content hash of the text (see
+ * {@link #getKey(String, String, DocumentNGramGraph, String, List)}).
+ * <p>
+ * The vertex labels are kept once, in a label dictionary next to the store (the store file with ".labels" appended),
+ * and records refer to them by their index in it. When the store is opened, the labels are interned in the vertex
+ * label dictionary of the compact graphs in the same order, so if that dictionary is empty (as when the store is
+ * opened before building any graphs), the indices are the ids of the compact graphs too. Then the edges of a record
+ * are already the sorted edge keys of its compact graph, and are read from the memory-mapped file with a single bulk
+ * copy, without decoding any labels or sorting.
+ * <p>
+ * The file is mapped in chunks of 1 GB (a single mapping cannot be larger than 2 GB), which are mapped again only when
+ * the file has grown, and each record is a slice of its chunk (the few records that cross the end of a chunk are read
+ * instead).
+ * <p>
+ * Header: magic (int), version (int)
+ * <p>
+ * Records: record length (int, not including itself), key (20 bytes), type (byte, 0 for n-gram and 1 for word graphs),
+ * min n-gram size (int), max n-gram size (int), window (int), number of levels (int), highest label index of the
+ * record (int, -1 if it has no vertices) and for each level: number of vertices V (int), label indices of the vertices
+ * (V ints, sorted), number of edges E (int), edge keys (E longs, from index in the high 32 bits and to index in the low
+ * 32 bits, sorted), weights (E floats)
+ * <p>
+ * Label dictionary: magic (int), version (int), then for each label: length L (int), label (L bytes of UTF-8)
+ */
+@SuppressWarnings("WeakerAccess")
+public class GraphStore {
+    private static final int MAGIC = 0x4E454747;    // "NEGG"
+    private static final int LABELS_MAGIC = 0x4E45474C;     // "NEGL"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int KEY_SIZE = 20;
+    private static final byte TYPE_NGRAM = 0;
+    private static final byte TYPE_WORD = 1;
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final RandomAccessFile labelsFile;
+    private final FileChannel labelsChannel;
+    private final EntityDictionary labels;
+    private final Map<String, Long> index;
+    private final List<MappedByteBuffer> chunks;
+    private long mappedSize;
+    private long size;
+
+    // Label dictionary of the store, as the ids of its labels in the vertex label dictionary
+    private int[] labelIds;         // Id of each label of the store, by its index
+    private int[] labelIndices;     // Index in the store of each id of the vertex label dictionary (-1 if not stored)
+    private int labelsNum;
+    private int sameIdsNum;         // Number of labels (from the first one) whose index is the same as their id
+    private long labelsSize;
+
+    private final AtomicInteger graphsRead = new AtomicInteger();
+    private final AtomicInteger graphsWritten = new AtomicInteger();
+
+    /**
+     * Open (or create) a store. A store of an older version is replaced by a new one.
+     *
+     * @param storeFile File of the store
+     * @param labels    Vertex label dictionary of the compact graphs (e.g. {@link GraphCache#getVertexLabels()})
+     * @throws IOException If the files could not be opened or are not a valid store
+     */
+    public GraphStore(File storeFile, EntityDictionary labels) throws IOException {
+        this.file = new RandomAccessFile(storeFile, "rw");
+        this.channel = file.getChannel();
+        this.labelsFile = new RandomAccessFile(storeFile.getPath() + ".labels", "rw");
+        this.labelsChannel = labelsFile.getChannel();
+        this.labels = labels;
+        this.index = new HashMap<>();
+        this.chunks = new ArrayList<>();
+        this.labelIds = new int[1024];
+        this.labelIndices = new int[0];
+
+        try {
+            boolean isNew = channel.size() == 0;
+
+            if (!openHeader(channel, MAGIC) || !openHeader(labelsChannel, LABELS_MAGIC)) {
+                // Records refer to the labels by their index, so neither file can be kept without the other
+                if (!isNew) {
+                    LOGGER.log(Level.WARNING, "Graph store " + storeFile + " has an older version or no labels, " +
+                            "creating a new one");
+                }
+
+                createHeader(channel, MAGIC);
+                createHeader(labelsChannel, LABELS_MAGIC);
+            }
+        } catch (IOException e) {
+            close();
+            throw new IOException("Not a valid graph store: " + storeFile, e);
+        }
+
+        this.size = channel.size();
+        this.labelsSize = labelsChannel.size();
+        readLabels();
+        buildIndex();
+    }
+
+    /**
+     * Check the header of a file of the store
+     *
+     * @param fileChannel File
+     * @param magic       Magic number that the file should start with
+     * @return True if the file has a header of this version, false if it is empty or has an older version
+     * @throws IOException If the file could not be read or is not a file of the store
+     */
+    private static boolean openHeader(FileChannel fileChannel, int magic) throws IOException {
+        if (fileChannel.size() == 0) {
+            return false;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        fileChannel.read(header, 0);
+        header.flip();
+
+        if (header.remaining() < HEADER_SIZE || header.getInt() != magic) {
+            throw new IOException("Wrong magic number");
+        }
+
+        return header.getInt() == VERSION;
+    }
+
+    private static void createHeader(FileChannel fileChannel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(magic).putInt(VERSION).flip();
+
+        fileChannel.truncate(0);
+        while (header.hasRemaining()) {
+            fileChannel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Compute the key of a graph
+     *
+     * @param method      Name of the method the graph is for
+     * @param placeholder Placeholder of the method (or null)
+     * @param params      Graph with the n-gram sizes and window of the graph to store (only its parameters are used)
+     * @param contentHash Content hash of the text (e.g. {@link #getContentHash(String)})
+     * @param topTerms    Top terms that the method kept in the text (or null)
+     * @return Hex string of the key
+     */
+    public static String getKey(String method, String placeholder, DocumentNGramGraph params, String contentHash,
+                                List<String> topTerms) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append('\0');
+        sb.append(placeholder).append('\0');
+        sb.append(params.getMinSize()).append(',').append(params.getMaxSize()).append(',').append(params.getWindowSize());
+        sb.append('\0').append(contentHash);
+
+        if (topTerms != null) {
+            for (String term : topTerms) {
+                sb.append('\0').append(term);
+            }
+        }
+
+        return getContentHash(sb.toString());
+    }
+
+    /**
+     * Compute the SHA-1 hash of a string
+     *
+     * @param content String to hash
+     * @return Hex string of the hash
+     */
+    public static String getContentHash(String content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return bytesToHex(md.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compute the SHA-1 hash of the entities of a text (their names and positions). The graphs of the methods that
+     * replace words with entities depend on them, so it is part of their content hash: the same text can get
+     * different entities from a different extractor or a newer run of the same one.
+     *
+     * @param text Text with its entities
+     * @return Hex string of the hash
+     */
+    public static String getEntitiesHash(TextEntities text) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < text.getEntitiesNum(); i++) {
+            sb.append(text.getEntityName(i)).append('\0');
+            sb.append(text.getEntityOffset(i)).append(',').append(text.getEntityLength(i)).append('\0');
+        }
+
+        return getContentHash(sb.toString());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the record of a graph, as a slice of the mapped file that starts at the key, with its position at the type
+     * byte (after the key)
+     *
+     * @param key Key of the graph
+     * @return Buffer of the record or null if the key is not in the store
+     * @throws IOException If the file could not be mapped or the record could not be read
+     */
+    synchronized ByteBuffer getRecord(String key) throws IOException {
+        Long position = index.get(key);
+        if (position == null) {
+            return null;
+        }
+
+        if (position >= mappedSize) {
+            // Record was added after the file was mapped
+            map();
+        }
+
+        int recordLength = read(position, 4).getInt();
+        ByteBuffer record = read(position + 4, recordLength);
+        record.position(KEY_SIZE);
+
+        return record;
+    }
+
+    /**
+     * Map the file to memory, in chunks. Only the last chunk (if the file has grown since it was mapped) and the new
+     * chunks are mapped again.
+     *
+     * @throws IOException If the file could not be mapped
+     */
+    private void map() throws IOException {
+        int chunk = (int) (mappedSize >>> CHUNK_BITS);
+        while (chunks.size() > chunk) {
+            chunks.remove(chunks.size() - 1);
+        }
+
+        for (long start = (long) chunk << CHUNK_BITS; start < size; start += CHUNK_SIZE) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start)));
+        }
+
+        mappedSize = size;
+    }
+
+    /**
+     * Get a region of the file as a buffer. The region is a slice of the mapped chunk that contains it, or is read from
+     * the file if it crosses the end of a chunk.
+     *
+     * @param position Position of the region in the file (must be mapped)
+     * @param length   Length of the region
+     * @return Buffer with the region, from position 0
+     * @throws IOException If the region could not be read
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        int chunk = (int) (position >>> CHUNK_BITS);
+        int offset = (int) (position & (CHUNK_SIZE - 1));
+
+        if (offset + (long) length <= chunks.get(chunk).capacity()) {
+            ByteBuffer buf = chunks.get(chunk).duplicate();
+            buf.position(offset).limit(offset + length);
+            return buf.slice();
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of graph store at " + (position + buf.position()));
+            }
+        }
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Get a stored graph. JInsect graphs are made of vertex and edge objects, so they are created from the record (use
+     * {@link #getCompact(String)} to read a graph without creating them).
+     *
+     * @param key Key of the graph
+     * @return The graph or null if the key is not in the store
+     */
+    public DocumentNGramGraph get(String key) {
+        try {
+            ByteBuffer buf;
+            int[] ids;
+            synchronized (this) {
+                buf = getRecord(key);
+                ids = labelIds;
+            }
+
+            if (buf == null || !hasLabels(buf, key)) {
+                return null;
+            }
+
+            byte type = buf.get();
+            int minSize = buf.getInt();
+            int maxSize = buf.getInt();
+            int window = buf.getInt();
+            int levelsNum = buf.getInt();
+            buf.getInt();
+
+            DocumentNGramGraph g = type == TYPE_WORD
+                    ? new DocumentWordGraph(minSize, maxSize, window)
+                    : new DocumentNGramGraph(minSize, maxSize, window);
+
+            for (int level = 0; level < levelsNum; level++) {
+                readLevel(buf, g.getGraphLevel(level), ids);
+            }
+
+            graphsRead.incrementAndGet();
+            return g;
+        } catch (Exception e) {
+            // Salvo's graphs throw Exception when adding vertices/edges
+            LOGGER.log(Level.SEVERE, "Error while reading graph " + key + " from store: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get a stored graph in compact form, with the ids of the vertex label dictionary that the store was opened with.
+     * If all labels of the record have the same index in the store as their id, the edge keys and weights are copied
+     * from the mapped record as they are, else the keys are mapped to the ids and sorted again.
+     *
+     * @param key Key of the graph
+     * @return The compact graph or null if the key is not in the store
+     */
+    public CompactGraph getCompact(String key) {
+        try {
+            ByteBuffer buf;
+            int[] ids;
+            int sameIds;
+            synchronized (this) {
+                buf = getRecord(key);
+                ids = labelIds;
+                sameIds = sameIdsNum;
+            }
+
+            if (buf == null || !hasLabels(buf, key)) {
+                return null;
+            }
+
+            byte type = buf.get();
+            int minSize = buf.getInt();
+            int maxSize = buf.getInt();
+            int window = buf.getInt();
+            int levelsNum = buf.getInt();
+            boolean sameKeys = buf.getInt() < sameIds;
+
+            int[] verticesNum = new int[levelsNum];
+            long[][] edges = new long[levelsNum][];
+            float[][] weights = new float[levelsNum][];
+
+            for (int level = 0; level < levelsNum; level++) {
+                verticesNum[level] = buf.getInt();
+                buf.position(buf.position() + 4 * verticesNum[level]);
+
+                int edgesNum = buf.getInt();
+                edges[level] = new long[edgesNum];
+                weights[level] = new float[edgesNum];
+
+                buf.asLongBuffer().get(edges[level]);
+                buf.position(buf.position() + 8 * edgesNum);
+                buf.asFloatBuffer().get(weights[level]);
+                buf.position(buf.position() + 4 * edgesNum);
+
+                if (!sameKeys) {
+                    for (int i = 0; i < edgesNum; i++) {
+                        long edge = edges[level][i];
+                        edges[level][i] = CompactGraph.edgeKey(ids[CompactGraph.getFrom(edge)],
+                                ids[CompactGraph.getTo(edge)]);
+                    }
+
+                    // The order of the ids is not the order of the indices
+                    CompactGraph.sortEdges(edges[level], weights[level], edgesNum);
+                }
+            }
+
+            graphsRead.incrementAndGet();
+            return new CompactGraph(type == TYPE_WORD, minSize, maxSize, window, verticesNum, edges, weights);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error while reading graph " + key + " from store: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check that the label dictionary has all the labels of a record (it may not, if the program was stopped before
+     * the labels were written to the disk, but after the record was)
+     *
+     * @param buf Buffer of the record, positioned at the type byte
+     * @param key Key of the record, for the log
+     * @return True if the record can be read
+     */
+    private boolean hasLabels(ByteBuffer buf, String key) {
+        int maxLabel = buf.getInt(buf.position() + 17);
+
+        synchronized (this) {
+            if (maxLabel < labelsNum) {
+                return true;
+            }
+        }
+
+        LOGGER.log(Level.WARNING, "Graph " + key + " has labels that are not in the store, ignoring it");
+        return false;
+    }
+
+    /**
+     * Append a graph to the store
+     *
+     * @param key Key of the graph
+     * @param g   Graph
+     * @throws IOException If the record or its labels could not be written
+     */
+    public void put(String key, DocumentNGramGraph g) throws IOException {
+        int levelsNum = g.getMaxSize() - g.getMinSize() + 1;
+        int[][] vertices = new int[levelsNum][];
+        long[][] edges = new long[levelsNum][];
+        float[][] weights = new float[levelsNum][];
+        int[] edgesNum = new int[levelsNum];
+
+        // Intern the labels and collect the edges outside of the lock, it is the slow part
+        int maxId = -1;
+        for (int level = 0; level < levelsNum; level++) {
+            edgesNum[level] = collectLevel(g.getGraphLevel(level), level, vertices, edges, weights);
+
+            for (int id : vertices[level]) {
+                maxId = Math.max(maxId, id);
+            }
+        }
+
+        // Get the indices of the labels, adding the new ones to the label dictionary
+        int[] indices = getLabelIndices(vertices, maxId);
+
+        int maxLabel = -1;
+        int recordLength = KEY_SIZE + 1 + 20;
+        for (int level = 0; level < levelsNum; level++) {
+            for (int i = 0; i < vertices[level].length; i++) {
+                vertices[level][i] = indices[vertices[level][i]];
+                maxLabel = Math.max(maxLabel, vertices[level][i]);
+            }
+            Arrays.sort(vertices[level]);
+
+            for (int i = 0; i < edgesNum[level]; i++) {
+                long edge = edges[level][i];
+                edges[level][i] = CompactGraph.edgeKey(indices[CompactGraph.getFrom(edge)],
+                        indices[CompactGraph.getTo(edge)]);
+            }
+            edgesNum[level] = CompactGraph.sortEdges(edges[level], weights[level], edgesNum[level]);
+
+            recordLength += 8 + 4 * vertices[level].length + 12 * edgesNum[level];
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + recordLength);
+        buf.putInt(recordLength);
+        buf.put(hexToBytes(key));
+        buf.put(g instanceof DocumentWordGraph ? TYPE_WORD : TYPE_NGRAM);
+        buf.putInt(g.getMinSize()).putInt(g.getMaxSize()).putInt(g.getWindowSize());
+        buf.putInt(levelsNum);
+        buf.putInt(maxLabel);
+
+        for (int level = 0; level < levelsNum; level++) {
+            buf.putInt(vertices[level].length);
+            for (int index : vertices[level]) {
+                buf.putInt(index);
+            }
+
+            buf.putInt(edgesNum[level]);
+            for (int i = 0; i < edgesNum[level]; i++) {
+                buf.putLong(edges[level][i]);
+            }
+            for (int i = 0; i < edgesNum[level]; i++) {
+                buf.putFloat(weights[level][i]);
+            }
+        }
+        buf.flip();
+
+        synchronized (this) {
+            long position = size;
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + buf.position());
+            }
+
+            size += 4 + recordLength;
+
+            // A newer record for the same key replaces the old one
+            index.put(key, position);
+        }
+
+        graphsWritten.incrementAndGet();
+    }
+
+    /**
+     * Get the indices in the store of the vertex label ids of a graph, adding the labels that are not in the store to
+     * its label dictionary
+     *
+     * @param vertices Ids of the vertices of each level of the graph
+     * @param maxId    Highest id of the vertices
+     * @return Index of each id, by id (only the ids of the vertices are set)
+     * @throws IOException If the new labels could not be written
+     */
+    private synchronized int[] getLabelIndices(int[][] vertices, int maxId) throws IOException {
+        if (maxId >= labelIndices.length) {
+            int oldLength = labelIndices.length;
+            labelIndices = Arrays.copyOf(labelIndices, Math.max(maxId + 1, oldLength * 2));
+            Arrays.fill(labelIndices, oldLength, labelIndices.length, -1);
+        }
+
+        ByteArrayOutputStream newLabels = new ByteArrayOutputStream();
+        for (int[] ids : vertices) {
+            for (int id : ids) {
+                if (labelIndices[id] < 0) {
+                    byte[] label = labels.getString(id).getBytes(StandardCharsets.UTF_8);
+                    newLabels.write(ByteBuffer.allocate(4).putInt(label.length).array());
+                    newLabels.write(label);
+
+                    addLabel(id);
+                }
+            }
+        }
+
+        // The labels are written before the record that uses them
+        ByteBuffer buf = ByteBuffer.wrap(newLabels.toByteArray());
+        while (buf.hasRemaining()) {
+            labelsChannel.write(buf, labelsSize + buf.position());
+        }
+        labelsSize += buf.limit();
+
+        return labelIndices;
+    }
+
+    /**
+     * Add a label to the label dictionary of the store, as the next index
+     *
+     * @param id Id of the label in the vertex label dictionary
+     */
+    private void addLabel(int id) {
+        if (labelsNum == labelIds.length) {
+            labelIds = Arrays.copyOf(labelIds, labelIds.length * 2);
+        }
+        if (id >= labelIndices.length) {
+            int oldLength = labelIndices.length;
+            labelIndices = Arrays.copyOf(labelIndices, Math.max(id + 1, oldLength * 2));
+            Arrays.fill(labelIndices, oldLength, labelIndices.length, -1);
+        }
+
+        labelIds[labelsNum] = id;
+        labelIndices[id] = labelsNum;
+        labelsNum++;
+
+        if (sameIdsNum == labelsNum - 1 && id == labelsNum - 1) {
+            sameIdsNum++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[GraphStore] " + size() + " graphs in store | read: " + graphsRead.get() + " | written: " + graphsWritten.get();
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+        file.close();
+        labelsChannel.close();
+        labelsFile.close();
+    }
+
+    /**
+     * Collect the vertices (also from the edges, in case a vertex is only there) and the edges of a level of a graph,
+     * as ids of the vertex label dictionary
+     *
+     * @param graphLevel Level of the graph
+     * @param level      Index of the level
+     * @param vertices   Ids of the vertices of each level, the level's array is set
+     * @param edges      Edge keys of each level, the level's array is set
+     * @param weights    Edge weights of each level, the level's array is set
+     * @return Number of edges of the level
+     */
+    private int collectLevel(UniqueVertexGraph graphLevel, int level, int[][] vertices, long[][] edges,
+                             float[][] weights) {
+        Map<Vertex, Integer> vertexIds = new IdentityHashMap<>();
+        Set<Integer> ids = new HashSet<>();
+        for (Object v : graphLevel.getVertexSet()) {
+            ids.add(getId(vertexIds, (Vertex) v));
+        }
+
+        Set<Edge> edgeSet = graphLevel.getEdgeSet();
+        long[] keys = new long[edgeSet.size()];
+        float[] values = new float[keys.length];
+        int edgesNum = 0;
+
+        for (Edge e : edgeSet) {
+            int from = getId(vertexIds, e.getVertexA());
+            int to = getId(vertexIds, e.getVertexB());
+            ids.add(from);
+            ids.add(to);
+
+            keys[edgesNum] = CompactGraph.edgeKey(from, to);
+            values[edgesNum] = e instanceof WeightedEdgeImpl ? (float) ((WeightedEdgeImpl) e).getWeight() : 1.0f;
+            edgesNum++;
+        }
+
+        vertices[level] = new int[ids.size()];
+        int i = 0;
+        for (int id : ids) {
+            vertices[level][i++] = id;
+        }
+        edges[level] = keys;
+        weights[level] = values;
+
+        return edgesNum;
+    }
+
+    private int getId(Map<Vertex, Integer> vertexIds, Vertex v) {
+        Integer id = vertexIds.get(v);
+
+        if (id == null) {
+            id = labels.getId(v.getLabel());
+            vertexIds.put(v, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Read a level of a graph from a record, adding its vertices and edges to the given graph level
+     *
+     * @param buf        Buffer positioned at the start of the level
+     * @param graphLevel Level of the graph to fill
+     * @param ids        Id of each label of the store in the vertex label dictionary, by its index
+     * @throws Exception If a vertex or edge could not be added to the graph
+     */
+    private void readLevel(ByteBuffer buf, UniqueVertexGraph graphLevel, int[] ids) throws Exception {
+        int verticesNum = buf.getInt();
+
+        Map<Integer, Vertex> vertices = new HashMap<>(verticesNum * 2);
+        for (int i = 0; i < verticesNum; i++) {
+            int label = buf.getInt();
+            Vertex v = new VertexImpl(labels.getString(ids[label]));
+
+            graphLevel.add(v);
+            vertices.put(label, v);
+        }
+
+        int edgesNum = buf.getInt();
+        int keysStart = buf.position();
+        int weightsStart = keysStart + 8 * edgesNum;
+
+        for (int i = 0; i < edgesNum; i++) {
+            long edge = buf.getLong(keysStart + 8 * i);
+            Vertex from = vertices.get(CompactGraph.getFrom(edge));
+            Vertex to = vertices.get(CompactGraph.getTo(edge));
+
+            graphLevel.addEdge(new WeightedEdgeImpl(from, to, buf.getFloat(weightsStart + 4 * i)));
+        }
+
+        buf.position(weightsStart + 4 * edgesNum);
+    }
+
+    /**
+     * Read the label dictionary of the store and intern its labels in the vertex label dictionary, in order. If the
+     * last label is incomplete (e.g. the program was stopped while writing it), it is removed.
+     *
+     * @throws IOException If the file could not be read or truncated
+     */
+    private void readLabels() throws IOException {
+        long position = HEADER_SIZE;
+
+        if (labelsSize > HEADER_SIZE) {
+            ByteBuffer buf = ByteBuffer.allocate((int) (labelsSize - HEADER_SIZE));
+            while (buf.hasRemaining() && labelsChannel.read(buf, HEADER_SIZE + buf.position()) >= 0) {
+                // Read until the buffer is full
+            }
+            buf.flip();
+
+            while (buf.remaining() >= 4) {
+                int length = buf.getInt();
+                if (length < 0 || length > buf.remaining()) {
+                    break;
+                }
+
+                byte[] label = new byte[length];
+                buf.get(label);
+                addLabel(labels.getId(new String(label, StandardCharsets.UTF_8)));
+                position = HEADER_SIZE + buf.position();
+            }
+        }
+
+        if (position != labelsSize) {
+            LOGGER.log(Level.WARNING, "Graph store labels have an incomplete label at the end, removing it");
+            labelsChannel.truncate(position);
+            labelsSize = position;
+        }
+    }
+
+    /**
+     * Scan all records to find the position of each key. If the last record is incomplete (e.g. the program was
+     * stopped while writing it), it is removed.
+     *
+     * @throws IOException If the file could not be read or truncated
+     */
+    private void buildIndex() throws IOException {
+        long position = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(4 + KEY_SIZE);
+        byte[] keyBytes = new byte[KEY_SIZE];
+
+        while (position + 4 + KEY_SIZE <= size) {
+            recordHeader.clear();
+            channel.read(recordHeader, position);
+            recordHeader.flip();
+
+            int recordLength = recordHeader.getInt();
+            if (recordLength <= KEY_SIZE || position + 4 + recordLength > size) {
+                break;
+            }
+
+            recordHeader.get(keyBytes);
+            index.put(bytesToHex(keyBytes), position);
+            position += 4 + recordLength;
+        }
+
+        if (position != size) {
+            LOGGER.log(Level.WARNING, "Graph store has an incomplete record at the end, removing it");
+            channel.truncate(position);
+            size = position;
+        }
+
+        LOGGER.log(Level.FINE, "[GraphStore] Loaded index with " + index.size() + " graphs");
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return bytes;
+    }
+}
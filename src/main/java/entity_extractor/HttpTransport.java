@@ -0,0 +1,191 @@
+package entity_extractor;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP transport which can be shared by multiple threads. Keeps a pool of keep-alive connections, compresses request
+ * bodies with gzip (if enabled), asks the server for compressed responses and streams responses straight to files.
+ */
+@SuppressWarnings("WeakerAccess")
+public class HttpTransport {
+    private static final int bufferSize = 64 * 1024;
+    private static final int connectionTimeout = 30000;
+    private static final int socketTimeout = 120000;
+
+    private final HttpClient client;
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final boolean compressRequests;
+
+    /**
+     * Create a transport
+     *
+     * @param maxConnections   Maximum number of open connections
+     * @param compressRequests If true, request bodies will be sent compressed with gzip
+     */
+    public HttpTransport(int maxConnections, boolean compressRequests) {
+        this.compressRequests = compressRequests;
+
+        // Setup connection pool
+        this.connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setMaxTotalConnections(maxConnections);
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setConnectionTimeout(connectionTimeout);
+        params.setSoTimeout(socketTimeout);
+        params.setStaleCheckingEnabled(true);
+
+        // Setup client
+        this.client = new HttpClient(connectionManager);
+        this.client.getParams().setParameter("http.useragent", "Calais Rest Client");
+    }
+
+    /**
+     * Post a file with the given method. The connection of the method must be released by the caller with
+     * {@link PostMethod#releaseConnection()} after reading the response.
+     *
+     * @param method Post method, with any headers it needs already set
+     * @param file   File to send as the request body
+     * @return HTTP status code of the response
+     * @throws IOException If the request could not be sent
+     */
+    public int postFile(PostMethod method, File file) throws IOException {
+        method.setRequestHeader("Accept-Encoding", "gzip");
+
+        if (compressRequests) {
+            method.setRequestHeader("Content-Encoding", "gzip");
+            method.setRequestEntity(new GzipFileRequestEntity(file));
+        } else {
+            method.setRequestEntity(new FileRequestEntity(file, null));
+        }
+
+        return client.executeMethod(method);
+    }
+
+    /**
+     * Stream the (decompressed) response body of a method to a file. The body is written to a temporary file first,
+     * so that an interrupted response never leaves a partial file behind.
+     *
+     * @param method Executed method
+     * @param out    File to write the response to
+     * @throws IOException If the response could not be read or the file could not be written
+     */
+    public void saveResponse(PostMethod method, File out) throws IOException {
+        File tmp = new File(out.getPath() + ".tmp");
+
+        try (InputStream in = getResponseStream(method); OutputStream os = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        }
+
+        Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Get the (decompressed) response body of a method as a string, used for error responses
+     *
+     * @param method Executed method
+     * @return Response body
+     * @throws IOException If the response could not be read
+     */
+    public String getResponseBody(PostMethod method) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (InputStream in = getResponseStream(method)) {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+
+        return bytes.toString("UTF-8");
+    }
+
+    /**
+     * Close all pooled connections
+     */
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Get the response body stream of a method, decompressing it if the server sent it compressed
+     *
+     * @param method Executed method
+     * @return Response stream
+     * @throws IOException If the response could not be read
+     */
+    private InputStream getResponseStream(PostMethod method) throws IOException {
+        InputStream in = method.getResponseBodyAsStream();
+        if (in == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        Header encoding = method.getResponseHeader("Content-Encoding");
+        if (encoding != null && encoding.getValue().toLowerCase().contains("gzip")) {
+            return new GZIPInputStream(in, bufferSize);
+        }
+
+        return new BufferedInputStream(in, bufferSize);
+    }
+
+    /**
+     * Request entity which compresses a file with gzip while it is being sent
+     */
+    private static class GzipFileRequestEntity implements RequestEntity {
+        private final File file;
+
+        GzipFileRequestEntity(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            try (InputStream in = new FileInputStream(file)) {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, bufferSize);
+                byte[] buffer = new byte[bufferSize];
+                int read;
+
+                while ((read = in.read(buffer)) != -1) {
+                    gzip.write(buffer, 0, read);
+                }
+
+                // Finish the gzip stream without closing the connection's stream
+                gzip.finish();
+            }
+        }
+
+        @Override
+        public long getContentLength() {
+            // Unknown until compressed, so the body is sent chunked
+            return -1;
+        }
+
+        @Override
+        public String getContentType() {
+            return null;
+        }
+    }
+}
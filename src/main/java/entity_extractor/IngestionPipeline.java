@@ -0,0 +1,300 @@
+package entity_extractor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipelined ingestion of texts. Entity extraction (which includes reading and normalizing the text) and graph
+ * construction run as concurrent stages connected by bounded queues, so that graphs are built while other files are
+ * still being extracted. Only the graphs that do not need the TF-IDF of the whole corpus can be built in the pipeline,
+ * the rest must be built after it finishes.
+ */
+@SuppressWarnings("WeakerAccess")
+public class IngestionPipeline {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final EntityExtractor extractor;
+    private final List<String> placeholders;
+    private final GraphMemoryBudget budget;
+    private final GraphStore store;
+    private final int extractThreads;
+    private final int graphThreads;
+    private final int queueSize;
+    private final List<Stage> stages;
+
+    /**
+     * Create a pipeline
+     *
+     * @param extractor      Entity extractor to use
+     * @param placeholders   Placeholders to use for the graphs
+     * @param budget         Memory budget for the graph caches that are created
+     * @param store          Graph store to load the graphs from and save them to (null to always build them)
+     * @param extractThreads Number of threads for the extraction stage
+     * @param graphThreads   Number of threads for the graph construction stage
+     * @param queueSize      Size of the queues between the stages
+     */
+    public IngestionPipeline(EntityExtractor extractor, List<String> placeholders, GraphMemoryBudget budget,
+                             GraphStore store, int extractThreads, int graphThreads, int queueSize) {
+        this.extractor = extractor;
+        this.placeholders = placeholders;
+        this.budget = budget;
+        this.store = store;
+        this.extractThreads = extractThreads;
+        this.graphThreads = graphThreads;
+        this.queueSize = queueSize;
+        this.stages = new ArrayList<>();
+    }
+
+    /**
+     * Run the pipeline on the given files
+     *
+     * @param files  Files to get the entities of
+     * @param graphs Map to put the graph caches of the texts in (if null, graphs are not built)
+     * @return Text entities of the files, in the same order as the files
+     */
+    public List<TextEntities> run(List<File> files, final Map<String, GraphCache> graphs) {
+        final TextEntities[] texts = new TextEntities[files.size()];
+        final Map<String, GraphCache> builtGraphs = new ConcurrentHashMap<>();
+        stages.clear();
+
+        BlockingQueue<Item> filesQueue = new ArrayBlockingQueue<>(files.size() + 1);
+        BlockingQueue<Item> textsQueue = new ArrayBlockingQueue<>(queueSize);
+
+        // Stage that extracts the entities of each file
+        Stage extract = new Stage("extract", extractThreads, filesQueue, graphs != null ? textsQueue : null) {
+            @Override
+            void process(Item item) {
+                item.text = extractor.getEntities(item.file);
+                texts[item.index] = item.text;
+            }
+        };
+        stages.add(extract);
+
+        // Stage that builds the graphs that do not depend on the TF-IDF
+        if (graphs != null) {
+            Stage build = new Stage("graphs", graphThreads, textsQueue, null) {
+                @Override
+                void process(Item item) {
+                    GraphCache cache = new GraphCache(item.text, null, budget, store);
+                    cache.calculateIndependentGraphs(placeholders);
+                    builtGraphs.put(item.text.getTitle(), cache);
+                }
+            };
+
+            extract.next = build;
+            stages.add(build);
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            filesQueue.add(new Item(i, files.get(i)));
+        }
+
+        long start = System.nanoTime();
+        for (Stage stage : stages) {
+            stage.start();
+        }
+
+        extract.finishInput();
+
+        for (Stage stage : stages) {
+            stage.join();
+        }
+        long wallTime = System.nanoTime() - start;
+
+        for (Stage stage : stages) {
+            if (stage.error != null) {
+                throw new RuntimeException("Error in pipeline stage " + stage.name, stage.error);
+            }
+        }
+
+        if (graphs != null) {
+            graphs.putAll(builtGraphs);
+        }
+
+        LOGGER.log(Level.INFO, getReport(wallTime));
+
+        List<TextEntities> result = new ArrayList<>(texts.length);
+        for (TextEntities t : texts) {
+            result.add(t);
+        }
+
+        return result;
+    }
+
+    /**
+     * Create a report with the throughput of each stage. The stage with the highest busy percentage is the bottleneck,
+     * while a high percentage of time waiting for input means that the previous stages are slower.
+     *
+     * @param wallTime Total time that the pipeline ran for, in nanoseconds
+     * @return Report string
+     */
+    private String getReport(long wallTime) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[IngestionPipeline] Finished in %.2f seconds", wallTime / 1e9));
+
+        Stage bottleneck = null;
+        for (Stage stage : stages) {
+            double threadTime = (double) wallTime * stage.threadsNum;
+
+            sb.append(String.format("%n[IngestionPipeline] %-8s %d threads | %d items | %.2f items/s | " +
+                            "busy: %.1f%% | waiting for input: %.1f%% | waiting for output: %.1f%%",
+                    stage.name, stage.threadsNum, stage.items.get(), stage.items.get() / (wallTime / 1e9),
+                    stage.busyTime.get() * 100 / threadTime, stage.inputWaitTime.get() * 100 / threadTime,
+                    stage.outputWaitTime.get() * 100 / threadTime));
+
+            if (bottleneck == null || stage.busyTime.get() / stage.threadsNum > bottleneck.busyTime.get() / bottleneck.threadsNum) {
+                bottleneck = stage;
+            }
+        }
+
+        if (bottleneck != null) {
+            sb.append("\n[IngestionPipeline] Bottleneck stage: ").append(bottleneck.name);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Item that moves through the pipeline
+     */
+    private static class Item {
+        private static final Item END = new Item(-1, null);
+
+        private final int index;
+        private final File file;
+        private TextEntities text;
+
+        Item(int index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    /**
+     * A stage of the pipeline, with a number of threads that take items from the input queue, process them and put
+     * them in the output queue
+     */
+    private abstract static class Stage {
+        private final String name;
+        private final int threadsNum;
+        private final BlockingQueue<Item> input;
+        private final BlockingQueue<Item> output;
+        private final List<Thread> threads;
+        private final AtomicInteger running;
+
+        // Statistics
+        private final AtomicInteger items = new AtomicInteger();
+        private final AtomicLong busyTime = new AtomicLong();
+        private final AtomicLong inputWaitTime = new AtomicLong();
+        private final AtomicLong outputWaitTime = new AtomicLong();
+
+        private volatile Throwable error;
+        private Stage next;
+
+        Stage(String name, int threadsNum, BlockingQueue<Item> input, BlockingQueue<Item> output) {
+            this.name = name;
+            this.threadsNum = threadsNum;
+            this.input = input;
+            this.output = output;
+            this.threads = new ArrayList<>();
+            this.running = new AtomicInteger(threadsNum);
+        }
+
+        /**
+         * Process an item of the stage
+         *
+         * @param item Item to process
+         */
+        abstract void process(Item item);
+
+        void start() {
+            for (int i = 0; i < threadsNum; i++) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "pipeline-" + name + "-" + i);
+
+                threads.add(t);
+                t.start();
+            }
+        }
+
+        /**
+         * Signal the threads of this stage that no more items will be added to the input queue
+         */
+        void finishInput() {
+            try {
+                for (int i = 0; i < threadsNum; i++) {
+                    input.put(Item.END);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void join() {
+            for (Thread t : threads) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    long t0 = System.nanoTime();
+                    Item item = input.take();
+                    long t1 = System.nanoTime();
+                    inputWaitTime.addAndGet(t1 - t0);
+
+                    if (item == Item.END) {
+                        break;
+                    }
+
+                    // After an error, keep draining the input so the previous stage does not block
+                    if (error != null) {
+                        continue;
+                    }
+
+                    try {
+                        process(item);
+                    } catch (Throwable e) {
+                        error = e;
+                        continue;
+                    }
+
+                    long t2 = System.nanoTime();
+                    busyTime.addAndGet(t2 - t1);
+                    items.incrementAndGet();
+
+                    if (output != null) {
+                        output.put(item);
+                        outputWaitTime.addAndGet(System.nanoTime() - t2);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // The last thread of the stage to finish tells the next stage that its input is finished
+                if (running.decrementAndGet() == 0 && next != null) {
+                    next.finishInput();
+                }
+            }
+        }
+    }
+}
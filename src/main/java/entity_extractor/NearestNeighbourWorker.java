@@ -0,0 +1,67 @@
+package entity_extractor;
+
+import csv_export.ComparisonResult;
+import gr.demokritos.iit.jinsect.structs.GraphSimilarity;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares pairs of texts with one graph method and keeps only the nearest neighbours of each text. When the
+ * neighbours are ranked by value similarity, the size similarity of the two graphs (which only needs their edge
+ * counts) is an upper bound of it, so pairs whose size similarity cannot beat the current neighbours of either text
+ * are skipped without comparing their edges. The normalized value similarity has no such bound, so with it every pair
+ * is compared.
+ */
+public class NearestNeighbourWorker implements PairComparer {
+    private final List<TextEntities> texts;
+    private final Map<String, GraphCache> cacheMap;
+    private final int method;
+    private final String placeholder;
+    private final NearestNeighbours neighbours;
+    private final CompactGraphComparator comparator;
+    private final GraphSimilarity sim;
+
+    /**
+     * Create a worker
+     *
+     * @param texts       Texts to compare
+     * @param cacheMap    Graph caches of the texts, by title
+     * @param method      Graph method to compare the texts with (one of the graph methods of {@link utils.Methods})
+     * @param placeholder Placeholder, for the methods that use one (else null)
+     * @param neighbours  Neighbour lists to add the results to, shared by all workers
+     */
+    public NearestNeighbourWorker(List<TextEntities> texts, Map<String, GraphCache> cacheMap, int method,
+                                  String placeholder, NearestNeighbours neighbours) {
+        this.texts = texts;
+        this.cacheMap = cacheMap;
+        this.method = method;
+        this.placeholder = placeholder;
+        this.neighbours = neighbours;
+        this.comparator = new CompactGraphComparator();
+        this.sim = new GraphSimilarity();
+    }
+
+    /**
+     * Compare two texts, unless the pair cannot be a neighbour of either text, and add the result to the neighbours
+     *
+     * @param i Index of the first text
+     * @param j Index of the second text
+     */
+    @Override
+    public void compare(int i, int j) {
+        CompactGraph g1 = cacheMap.get(texts.get(i).getTitle()).getCompactGraph(method, placeholder);
+        CompactGraph g2 = cacheMap.get(texts.get(j).getTitle()).getCompactGraph(method, placeholder);
+
+        // The size similarity is not a bound for graphs with an empty level (see CompactGraphComparator)
+        if (neighbours.getMeasure() == NearestNeighbours.VALUE_SIMILARITY &&
+                !CompactGraphComparator.hasEmptyLevel(g1, g2) &&
+                neighbours.canPrune(i, j, CompactGraphComparator.getSizeSimilarity(g1, g2))) {
+            neighbours.addPruned();
+            return;
+        }
+
+        comparator.getSimilarityBetween(g1, g2, sim);
+        neighbours.add(i, j, new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
+    }
+}
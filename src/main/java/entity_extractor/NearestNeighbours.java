@@ -0,0 +1,209 @@
+package entity_extractor;
+
+import csv_export.ComparisonResult;
+import utils.Percentage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the k most similar texts of each text, with a bounded heap for each text whose smallest similarity is the
+ * one that a new neighbour has to beat. The heaps can be updated by many threads, each heap is locked separately.
+ * Also counts the pairs that were compared and the pairs that were pruned (skipped because they could not be in the
+ * heap of either text).
+ */
+@SuppressWarnings("WeakerAccess")
+public class NearestNeighbours {
+    // Similarity measures that the neighbours can be ranked by
+    public final static int VALUE_SIMILARITY = 0;
+    public final static int NORMALIZED_VALUE_SIMILARITY = 1;
+
+    private final static Comparator<Neighbour> worstFirst = Comparator.comparingDouble(Neighbour::getScore)
+            .thenComparing(Comparator.comparingInt(Neighbour::getText).reversed());
+
+    private final int k;
+    private final int measure;
+    private final List<PriorityQueue<Neighbour>> heaps;
+
+    private final LongAdder compared = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+
+    /**
+     * Create empty neighbour lists
+     *
+     * @param textsNum Number of texts
+     * @param k        Number of neighbours to keep for each text
+     * @param measure  Similarity measure to rank the neighbours by (VALUE_SIMILARITY or NORMALIZED_VALUE_SIMILARITY)
+     */
+    public NearestNeighbours(int textsNum, int k, int measure) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("Number of neighbours must be positive: " + k);
+        }
+        if (measure != VALUE_SIMILARITY && measure != NORMALIZED_VALUE_SIMILARITY) {
+            throw new IllegalArgumentException("Unknown similarity measure: " + measure);
+        }
+
+        this.k = k;
+        this.measure = measure;
+        this.heaps = new ArrayList<>(textsNum);
+
+        for (int i = 0; i < textsNum; i++) {
+            heaps.add(new PriorityQueue<>(k + 1, worstFirst));
+        }
+    }
+
+    /**
+     * Get the similarity that a text has to exceed to become a neighbour of a text
+     *
+     * @param text Index of the text
+     * @return Similarity of the k-th neighbour, or negative if the text has fewer than k neighbours
+     */
+    public double getThreshold(int text) {
+        PriorityQueue<Neighbour> heap = heaps.get(text);
+
+        synchronized (heap) {
+            return heap.size() < k ? -1 : heap.peek().getScore();
+        }
+    }
+
+    /**
+     * Check if a pair of texts can be skipped, because its similarity cannot reach the threshold of either text (at
+     * the threshold it could still replace a neighbour with a larger index)
+     *
+     * @param text1      Index of the first text
+     * @param text2      Index of the second text
+     * @param upperBound Upper bound of the similarity of the texts
+     * @return True if the pair can be skipped
+     */
+    public boolean canPrune(int text1, int text2, double upperBound) {
+        return upperBound < getThreshold(text1) && upperBound < getThreshold(text2);
+    }
+
+    /**
+     * Add the result of a comparison to the neighbours of both texts (a text compared with itself is added once, as it
+     * stands for its exact duplicates)
+     *
+     * @param text1  Index of the first text
+     * @param text2  Index of the second text
+     * @param result Similarity of the texts
+     */
+    public void add(int text1, int text2, ComparisonResult result) {
+        double score = measure == VALUE_SIMILARITY ? result.getValueSim() : result.getNVS();
+
+        // An undefined similarity (JInsect's result for some graphs with empty levels) is not a neighbour
+        if (Double.isNaN(score)) {
+            compared.increment();
+            return;
+        }
+
+        offer(text1, new Neighbour(text2, score, result));
+        if (text2 != text1) {
+            offer(text2, new Neighbour(text1, score, result));
+        }
+        compared.increment();
+    }
+
+    private void offer(int text, Neighbour neighbour) {
+        PriorityQueue<Neighbour> heap = heaps.get(text);
+
+        synchronized (heap) {
+            if (heap.size() < k) {
+                heap.add(neighbour);
+            } else if (worstFirst.compare(neighbour, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(neighbour);
+            }
+        }
+    }
+
+    /**
+     * Count a pair that was skipped
+     */
+    public void addPruned() {
+        pruned.increment();
+    }
+
+    /**
+     * Get the neighbours of a text, most similar first
+     *
+     * @param text Index of the text
+     * @return Neighbours
+     */
+    public List<Neighbour> getNeighbours(int text) {
+        PriorityQueue<Neighbour> heap = heaps.get(text);
+        List<Neighbour> neighbours;
+
+        synchronized (heap) {
+            neighbours = new ArrayList<>(heap);
+        }
+
+        neighbours.sort(worstFirst.reversed());
+        return neighbours;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getMeasure() {
+        return measure;
+    }
+
+    public long getComparedNum() {
+        return compared.sum();
+    }
+
+    public long getPrunedNum() {
+        return pruned.sum();
+    }
+
+    @Override
+    public String toString() {
+        long comparedNum = getComparedNum();
+        long prunedNum = getPrunedNum();
+
+        return String.format("[NearestNeighbours] %d nearest neighbours by %s | compared: %d pairs | pruned: %d " +
+                        "pairs (%.1f%%)", k, measure == VALUE_SIMILARITY ? "value similarity" : "NVS", comparedNum,
+                prunedNum, comparedNum + prunedNum > 0 ? Percentage.percent(prunedNum, comparedNum + prunedNum) : 0);
+    }
+
+    /**
+     * A neighbour of a text
+     */
+    public static class Neighbour {
+        private final int text;
+        private final double score;
+        private final ComparisonResult result;
+
+        Neighbour(int text, double score, ComparisonResult result) {
+            this.text = text;
+            this.score = score;
+            this.result = result;
+        }
+
+        /**
+         * Get the index of the neighbour text
+         *
+         * @return Text index
+         */
+        public int getText() {
+            return text;
+        }
+
+        /**
+         * Get the similarity that the neighbour was ranked by
+         *
+         * @return Similarity
+         */
+        public double getScore() {
+            return score;
+        }
+
+        public ComparisonResult getResult() {
+            return result;
+        }
+    }
+}
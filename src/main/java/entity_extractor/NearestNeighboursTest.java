@@ -0,0 +1,137 @@
+package entity_extractor;
+
+import csv_export.ComparisonResult;
+import gr.demokritos.iit.jinsect.structs.GraphSimilarity;
+import utils.Methods;
+import utils.VerySimpleFormatter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that the nearest neighbour search of {@link NearestNeighbourWorker} (which skips the pairs that the size
+ * similarity bound rules out) finds the same neighbours as comparing every pair, for both neighbour measures, and
+ * that the size similarity is never below the value similarity. The texts are random words with lengths from 20 to
+ * about 3000 words, so the sizes of their graphs differ a lot, like in real corpora.
+ */
+public class NearestNeighboursTest {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final static int textsNum = 400;
+    private final static int neighboursNum = 5;
+    private final static int vocabularySize = 300;
+    private final static double tolerance = 1e-9;
+
+    public static void main(String[] args) {
+        new NearestNeighboursTest().start();
+    }
+
+    private void start() {
+        LOGGER.setLevel(Level.FINEST);
+        LOGGER.setUseParentHandlers(false);
+
+        Handler consoleHandler = new ConsoleHandler();
+        consoleHandler.setLevel(Level.INFO);
+        consoleHandler.setFormatter(new VerySimpleFormatter());
+        LOGGER.addHandler(consoleHandler);
+
+        List<TextEntities> texts = createTexts(new Random(2));
+        ConcurrentMap<String, GraphCache> caches = new ConcurrentHashMap<>();
+        for (TextEntities text : texts) {
+            caches.put(text.getTitle(), new GraphCache(text, null));
+        }
+
+        boolean ok = check("value similarity", NearestNeighbours.VALUE_SIMILARITY, texts, caches);
+        ok &= check("normalized value similarity", NearestNeighbours.NORMALIZED_VALUE_SIMILARITY, texts, caches);
+
+        LOGGER.log(ok ? Level.INFO : Level.SEVERE, "[NearestNeighboursTest] " +
+                (ok ? "All neighbours match" : "Some neighbours do not match"));
+    }
+
+    /**
+     * Find the neighbours of all texts with the scheduler and by comparing every pair, and compare them
+     *
+     * @param name    Name of the measure, for the log
+     * @param measure Measure to rank the neighbours by
+     * @param texts   Texts
+     * @param caches  Graph caches of the texts, by title
+     * @return True if every text has neighbours with the same similarities both ways
+     */
+    private boolean check(String name, int measure, List<TextEntities> texts, ConcurrentMap<String, GraphCache> caches) {
+        NearestNeighbours found = new NearestNeighbours(textsNum, neighboursNum, measure);
+        long start = System.nanoTime();
+        new ComparisonScheduler(Runtime.getRuntime().availableProcessors()).run(textsNum,
+                () -> new NearestNeighbourWorker(texts, caches, Methods.WORD_GRAPHS, null, found));
+        long time = System.nanoTime() - start;
+
+        NearestNeighbours expected = new NearestNeighbours(textsNum, neighboursNum, measure);
+        CompactGraphComparator comparator = new CompactGraphComparator();
+        GraphSimilarity sim = new GraphSimilarity();
+        int boundViolations = 0;
+        for (int i = 0; i < textsNum; i++) {
+            CompactGraph g1 = caches.get(texts.get(i).getTitle()).getCompactGraph(Methods.WORD_GRAPHS, null);
+
+            for (int j = i + 1; j < textsNum; j++) {
+                CompactGraph g2 = caches.get(texts.get(j).getTitle()).getCompactGraph(Methods.WORD_GRAPHS, null);
+                comparator.getSimilarityBetween(g1, g2, sim);
+
+                if (sim.ValueSimilarity > sim.SizeSimilarity + tolerance) {
+                    boundViolations++;
+                }
+
+                expected.add(i, j, new ComparisonResult(sim.ValueSimilarity, sim.ContainmentSimilarity, sim.SizeSimilarity));
+            }
+        }
+
+        // Neighbours with equal similarities may be in a different order, so the similarities are compared
+        int different = 0;
+        for (int i = 0; i < textsNum; i++) {
+            List<NearestNeighbours.Neighbour> foundNeighbours = found.getNeighbours(i);
+            List<NearestNeighbours.Neighbour> expectedNeighbours = expected.getNeighbours(i);
+
+            if (foundNeighbours.size() != expectedNeighbours.size()) {
+                different++;
+                continue;
+            }
+
+            for (int n = 0; n < foundNeighbours.size(); n++) {
+                if (Math.abs(foundNeighbours.get(n).getScore() - expectedNeighbours.get(n).getScore()) > tolerance) {
+                    different++;
+                    break;
+                }
+            }
+        }
+
+        LOGGER.log(Level.INFO, String.format("[NearestNeighboursTest] %s | %s | %.1f ms | texts with different " +
+                "neighbours: %d | bound violations: %d", name, found, time / 1e6, different, boundViolations));
+
+        return different == 0 && boundViolations == 0;
+    }
+
+    private static List<TextEntities> createTexts(Random r) {
+        List<TextEntities> texts = new ArrayList<>();
+
+        for (int t = 0; t < textsNum; t++) {
+            StringBuilder sb = new StringBuilder();
+            int wordsNum = 20 + (int) Math.exp(r.nextDouble() * 8);
+
+            for (int w = 0; w < wordsNum; w++) {
+                sb.append('w').append(r.nextInt(vocabularySize)).append(' ');
+            }
+
+            TextEntities text = new TextEntities();
+            text.setTitle("neighbours-test-" + t);
+            text.setText(sb.toString());
+            texts.add(text);
+        }
+
+        return texts;
+    }
+}
@@ -1,18 +1,21 @@
 package entity_extractor;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.FileRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import utils.Methods;
+import utils.Percentage;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,239 +23,313 @@ public class OpenCalaisExtractor implements EntityExtractor {
     private static final String CALAIS_URL = "https://api.thomsonreuters.com/permid/calais";
 
     private static final String outputFolder = "texts/output";
+    private static final String storeFilename = "entities.bin";
     private static final boolean enableCache = true;
     private static final int sleepTime = 500;
+    private static final int maxSleepTime = 30000;
+    private static final int maxConcurrentRequests = 4;     // Requests that can be in flight at the same time
+    private static final double maxRequestsPerSecond = 4;   // Rate limit of each API key
+    private static final int dailyQuota = -1;               // Requests per day allowed for each key (-1: unlimited)
+    private static final boolean compressRequests = false;  // Send request bodies compressed with gzip
+
+    // Names of entities to ignore
+    private static final Set<String> blacklist = new HashSet<>(Arrays.asList("DEV", "http", "html"));
 
     private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
-    private final ArrayList<String> apiKeys;
+    private final ApiKeyPool keyPool;
     private final File output;
-    private final HttpClient client;
+    private final String url;
+    private final int concurrentRequests;
+    private final HttpTransport transport;
+    private final EntityStore store;
 
     public OpenCalaisExtractor() {
-        // Setup client
-        this.client = new HttpClient();
-        this.client.getParams().setParameter("http.useragent", "Calais Rest Client");
+        this(CALAIS_URL, new File(outputFolder), maxConcurrentRequests, maxRequestsPerSecond, dailyQuota);
+    }
+
+    /**
+     * Create an extractor which sends requests to the specified URL (e.g. a local server for testing)
+     *
+     * @param url                OpenCalais URL
+     * @param output             Folder to save the responses and the entity store to
+     * @param concurrentRequests Maximum number of requests that can be in flight at the same time for each key
+     * @param requestsPerSecond  Maximum number of requests per second for each key
+     * @param dailyQuota         Number of requests per day allowed for each key (negative for unlimited)
+     */
+    public OpenCalaisExtractor(String url, File output, int concurrentRequests, double requestsPerSecond,
+                               int dailyQuota) {
+        this.url = url;
 
-        // Setup api keys
-        apiKeys = new ArrayList<>();
+        // Setup api keys (requests are spread across all of them)
+        ArrayList<String> apiKeys = new ArrayList<>();
         apiKeys.add("YOUR_OPENCALAIS_API_KEY");
 
+        this.keyPool = new ApiKeyPool(apiKeys, dailyQuota, requestsPerSecond, concurrentRequests);
+        this.concurrentRequests = concurrentRequests * keyPool.size();
+
+        // Setup transport, with a pooled connection for each request that can be in flight
+        this.transport = new HttpTransport(this.concurrentRequests, compressRequests);
+
         // Setup cache/output folder
-        this.output = new File(outputFolder);
+        this.output = output;
+
+        // Open the store of parsed responses (if it cannot be opened, the JSON responses are parsed every time)
+        EntityStore entityStore = null;
+        if (enableCache) {
+            try {
+                entityStore = new EntityStore(new File(output, storeFilename));
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error while opening entity store: " + e.getMessage());
+            }
+        }
+        this.store = entityStore;
     }
 
-    private PostMethod createPostMethod() {
-        PostMethod method = new PostMethod(CALAIS_URL);
+    private PostMethod createPostMethod(String apiKey) {
+        PostMethod method = new PostMethod(url);
 
-        method.setRequestHeader("X-AG-Access-Token", apiKeys.get(0));   // Set mandatory parameters
+        method.setRequestHeader("X-AG-Access-Token", apiKey);           // Set mandatory parameters
         method.setRequestHeader("Content-Type", "text/raw");            // Set input content type
         method.setRequestHeader("outputformat", "application/json");    // Set response/output format
 
         return method;
     }
 
-    private String doRequest(File file, PostMethod method) {
+    /**
+     * Send a file to OpenCalais and stream the response to the output file
+     *
+     * @param file   File to send
+     * @param out    File to save the response to
+     * @param method Post method
+     * @param key    API key that the method uses
+     * @return HTTP status code of the response (200 if the response was saved), or -1 if the request failed
+     * @throws InterruptedException If the thread is interrupted while waiting for the key's rate limit
+     */
+    private int doRequest(File file, File out, PostMethod method, ApiKeyPool.ApiKey key) throws InterruptedException {
+        int returnCode = -1;
+        long ticket = -1;
+        boolean failed = false;
+
         try {
-            int returnCode = client.executeMethod(method);
-            if (returnCode == HttpStatus.SC_NOT_IMPLEMENTED) {
+            ticket = key.getRateLimiter().acquire();
+
+            returnCode = transport.postFile(method, file);
+            if (returnCode == 429) {
+                // Too many requests, the key pool will slow down this key
+                LOGGER.log(Level.FINE, "Rate limit exceeded: " + key);
+
+                // still consume the response body
+                transport.getResponseBody(method);
+            } else if (returnCode == HttpStatus.SC_NOT_IMPLEMENTED) {
                 LOGGER.log(Level.SEVERE, "The Post method is not implemented by this URI");
                 // still consume the response body
-                method.getResponseBodyAsString();
+                transport.getResponseBody(method);
             } else if (returnCode == HttpStatus.SC_OK) {
                 LOGGER.log(Level.FINE, "File post succeeded: " + file);
 
-                return saveResponse(file, method);
+                transport.saveResponse(method, out);
             } else {
                 LOGGER.log(Level.SEVERE, "File post failed: " + file);
                 LOGGER.log(Level.SEVERE, "Got code: " + returnCode);
-                LOGGER.log(Level.SEVERE, "response: " + method.getResponseBodyAsString());
+                LOGGER.log(Level.SEVERE, "response: " + transport.getResponseBody(method));
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error while posting file " + file + ": " + e.getMessage());
+            failed = true;
         } finally {
             method.releaseConnection();
+            keyPool.release(key, ticket, returnCode);
         }
 
-        return null;
+        return failed ? -1 : returnCode;
+    }
+
+    private int postFile(File file, File out) throws InterruptedException {
+        ApiKeyPool.ApiKey key = keyPool.acquire();
+
+        return doRequest(file, out, createPostMethod(key.getKey()), key);
     }
 
     /**
-     * Save an OpenCalais response to a file and return it as a string
+     * Check if a failed request should be sent again. Client errors mean that the request itself is wrong (e.g. the
+     * text is too large or its content type is not accepted), so they would fail again, except for the rate limit
+     * (429) and the rejections of a key (401, 403), which the key pool handles by using another key.
      *
-     * @param file   File to save response for
-     * @param method Post method
-     * @return OpenCalais response string
+     * @param returnCode HTTP status code of the response, or -1 if the request failed without a response
+     * @return True if the request should be retried
      */
-    private String saveResponse(File file, PostMethod method) {
-        PrintWriter writer = null;
-        String response = "";
-
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    method.getResponseBodyAsStream(), "UTF-8"));
-            File out = new File(output, file.getName() + ".json");
-            writer = new PrintWriter(new BufferedWriter(new FileWriter(out)));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                writer.println(line);
-                response += line;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (writer != null) try {
-                writer.close();
-            } catch (Exception ignored) {
-            }
+    private static boolean isRetryable(int returnCode) {
+        if (returnCode == 429 || returnCode == HttpStatus.SC_UNAUTHORIZED || returnCode == HttpStatus.SC_FORBIDDEN) {
+            return true;
         }
 
-        return response;
+        return returnCode != HttpStatus.SC_NOT_IMPLEMENTED && (returnCode < 400 || returnCode >= 500);
     }
 
-    private String postFile(File file, PostMethod method) {
-        method.setRequestEntity(new FileRequestEntity(file, null));
-        return doRequest(file, method);
+    /**
+     * Check if the entities are needed, i.e. if a method which uses them is enabled
+     *
+     * @return True if the entities should be extracted from the responses
+     */
+    private static boolean entitiesNeeded() {
+        return Methods.isEnabled(Methods.PLACEHOLDER) || Methods.isEnabled(Methods.PLACEHOLDER_SS)
+                || Methods.isEnabled(Methods.RANDOM) || Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT);
     }
 
     /**
-     * Reads the specified file and returns it as a string
+     * Parse a saved OpenCalais JSON response with the streaming parser, which reads only the text and the entities
      *
-     * @param file File to read
-     * @return String with file contents
+     * @param file Response file
+     * @return Text entities
      */
-    private String getCachedResponse(File file) {
-        String response = "";
-
-        try {
-            // Credit: http://stackoverflow.com/a/40299794
-            response = new String(Files.readAllBytes(Paths.get(file.toString())));
+    private TextEntities getEntitiesFromOpenCalaisResponse(File file) {
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            // Extract the entities from the response, only if a method which uses them is enabled
+            return new OpenCalaisResponseParser(reader).parse(entitiesNeeded(), blacklist);
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Error while reading cached file: " + e.getMessage());
+            throw new RuntimeException("Could not parse OpenCalais response " + file, e);
         }
-        return response;
     }
 
-    /**
-     * Parse the OpenCalais JSON response string into a ArrayList<ExtractedEntity> object
-     *
-     * @param responseStr Response string
-     * @return Text entities
-     */
-    private TextEntities getEntitiesFromOpenCalaisResponse(String responseStr) {
-        TextEntities entities = new TextEntities();
-        JSONObject obj = new JSONObject(responseStr);
-
-        // Get the document text from the response
-        String text = obj.getJSONObject("doc").getJSONObject("info").getString("document");
-        entities.setText(text);
-
-        // Extract the entities from the response, only if a method which uses them is enabled
-        if (Methods.isEnabled(Methods.PLACEHOLDER) || Methods.isEnabled(Methods.PLACEHOLDER_SS)
-                || Methods.isEnabled(Methods.RANDOM) || Methods.isEnabled(Methods.PLACEHOLDER_EXTRA_WEIGHT)) {
-            // Create blacklist with names of entities to ignore
-            ArrayList<String> blacklist = new ArrayList<>();
-            blacklist.add("DEV");
-            blacklist.add("http");
-            blacklist.add("html");
-
-            // Get entities
-            Iterator<String> tags = obj.keys();
-            while (tags.hasNext()) {
-                String tagID = tags.next();
-
-                if (tagID.equals("doc"))
-                    continue;
-
-                JSONObject tag = obj.getJSONObject(tagID);
-
-                // Check that object has at least the basic properties that we need to continue
-                if (!tag.has("_typeGroup") || !tag.has("name") || !tag.has("_type") || !tag.has("instances")) {
-                    continue;
+    @Override
+    public TextEntities getEntities(File input) {
+        // Check if the parsed entities of a file with the same content are in the store
+        String key = null;
+        if (store != null) {
+            try {
+                key = EntityStore.getKey(input);
+                TextEntities entities = store.get(key, entitiesNeeded());
+
+                if (entities != null) {
+                    LOGGER.log(Level.FINE, "[OpenCalaisExtractor] Entities are in the store, using them...");
+                    entities.setTitle(input.getName());
+
+                    return entities;
                 }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error while reading file: " + e.getMessage());
+            }
+        }
 
-                // If object is not of type "entities", ignore it as we only want entities
-                String typeGroup = tag.getString("_typeGroup");
-                if (!typeGroup.equals("entities"))
-                    continue;
+        // Before making request to OpenCalais, check that the file does not already exist
+        String outputFilename = output.toString() + "/" + input.getName() + ".json";
+        File outfile = new File(outputFilename);
 
-                // Skip tags that are not for end user display
-//                if (tag.getString("forenduserdisplay").equals("false")) {
-//                    continue;
-//                }
+        if (outfile.isFile() && enableCache) {
+            LOGGER.log(Level.FINE, "[OpenCalaisExtractor] OpenCalais response is cached, using saved response...");
+        } else {
+            LOGGER.log(Level.FINE, "[OpenCalaisExtractor] Requesting entities from OpenCalais...");
 
-                // Get all of this entity's instances
-                JSONArray instances = tag.getJSONArray("instances");
+            try {
+                int attempts = 0;
+                int returnCode = postFile(input, outfile);
 
-                for (Object instance : instances) {
-                    // Check that the object is indeed a JSONObject before casting it
-                    if (!(instance instanceof JSONObject)) {
-                        LOGGER.log(Level.SEVERE, "Instance is not a JSONObject! Skipping it...");
-                        continue;
+                // The response is streamed to the output file, which is then read like a cached response
+                while (returnCode != HttpStatus.SC_OK) {
+                    if (!isRetryable(returnCode)) {
+                        throw new RuntimeException("OpenCalais rejected " + input.getName() + " with code " +
+                                returnCode + ", not retrying");
                     }
 
-                    // Cast instance to a JSONObject to continue
-                    JSONObject i = (JSONObject) instance;
-
-                    if (!i.has("offset") || !i.has("length")) {
-                        LOGGER.log(Level.SEVERE, "Instance does not have offset or length! Skipping it...");
-                        continue;
+                    if (returnCode != 429) {
+                        // Back off exponentially before retrying a failed request. Requests rejected because of the
+                        // rate limit are not delayed here, as the key's rate limiter has already slowed down.
+                        Thread.sleep(Math.min(maxSleepTime, sleepTime << Math.min(attempts++, 6)));
                     }
 
-                    // Initialize entity for this instance and add the required properties to it
-                    ExtractedEntity entity = new ExtractedEntity();
+                    returnCode = postFile(input, outfile);
+                }
+            } catch (InterruptedException e) {
+                // Keep the interrupt, so the executor running the extraction can be shut down
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while requesting entities of " + input.getName(), e);
+            }
+        }
 
-//                    entity.setName(i.getString("exact"));
-                    entity.setName(tag.getString("name"));
-                    entity.setType(tag.getString("_type"));
-                    entity.setOffset(i.getInt("offset"));
-                    entity.setLength(i.getInt("length"));
+        // Get entities from response and add filename as title
+        TextEntities entities = getEntitiesFromOpenCalaisResponse(outfile);
+        entities.setTitle(input.getName());
 
-                    // Only add entity if its name is not blacklisted
-                    if (!blacklist.contains(entity.getName())) {
-                        entities.addEntity(entity);
-                    }
-                }
+        // Save the parsed entities so the response does not have to be parsed again
+        if (key != null) {
+            try {
+                store.put(key, entities, entitiesNeeded());
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error while writing to entity store: " + e.getMessage());
             }
         }
 
         return entities;
     }
 
+    /**
+     * Close the pooled connections and the entity store
+     */
     @Override
-    public TextEntities getEntities(File input) {
-        // Before making request to OpenCalais, check that the file does not already exist
-        String outputFilename = output.toString() + "/" + input.getName() + ".json";
-        File outfile = new File(outputFilename);
+    public void close() {
+        transport.shutdown();
+
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error while closing entity store: " + e.getMessage());
+            }
+        }
+    }
 
-        String response = null;
-        if (outfile.isFile() && enableCache) {
-            LOGGER.log(Level.FINE, "[OpenCalaisExtractor] OpenCalais response is cached, using saved response...");
-            response = getCachedResponse(outfile);
-        } else {
-            LOGGER.log(Level.FINE, "[OpenCalaisExtractor] Requesting entities from OpenCalais...");
+    public ApiKeyPool getKeyPool() {
+        return keyPool;
+    }
 
-            boolean responseOk = false;
-            while (!responseOk) {
-                response = postFile(input, createPostMethod());
-
-                if (response != null) {
-                    // Exit loop
-                    responseOk = true;
-                } else {
-                    // Sleep for a while in order to prevent OpenCalais error 429 (too many concurrent requests)
-                    try {
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+    @Override
+    public List<TextEntities> getEntities(List<File> inputs) {
+        List<TextEntities> texts = new ArrayList<>(inputs.size());
+        List<Future<TextEntities>> futures = new ArrayList<>(inputs.size());
+
+        // Keep up to concurrentRequests requests in flight, the key pool makes sure we stay under each key's quota
+        ExecutorService executor = Executors.newFixedThreadPool(concurrentRequests);
+
+        for (final File input : inputs) {
+            futures.add(executor.submit(new Callable<TextEntities>() {
+                @Override
+                public TextEntities call() throws Exception {
+                    return getEntities(input);
                 }
-            }
+            }));
         }
 
-        // Get entities from response and add filename as title
-        TextEntities entities = getEntitiesFromOpenCalaisResponse(response);
-        entities.setTitle(input.getName());
+        executor.shutdown();
 
-        return entities;
+        // Collect the results in the same order as the input files
+        try {
+            int i = 1;
+            int totalFiles = futures.size();
+            double percentage = 0;
+            double currPercent;
+
+            for (Future<TextEntities> f : futures) {
+                texts.add(f.get());
+
+                // Log the progress so far
+                currPercent = Percentage.percent(i, totalFiles);
+                Level lvl = Level.FINE;
+                if (currPercent - percentage > 10 || i == totalFiles) {
+                    lvl = Level.INFO;
+                    percentage = currPercent;
+                }
+
+                LOGGER.log(lvl, String.format("[OpenCalaisExtractor] (" + i + "/" + totalFiles + " - %.2f%%) Got entities", currPercent));
+                i++;
+            }
+
+            LOGGER.log(Level.INFO, "[OpenCalaisExtractor] API key statistics:\n" + keyPool.getStatistics());
+        } catch (InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException("Error while getting entities", e);
+        }
+
+        return texts;
     }
 }
@@ -0,0 +1,313 @@
+package entity_extractor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import utils.VerySimpleFormatter;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks the request handling of {@link OpenCalaisExtractor} against a local stub server, which answers like
+ * OpenCalais but allows fewer requests per second than the extractor starts with:
+ * <ul>
+ * <li>Rejected requests (429) are retried, so every text gets its response, and the key's rate goes down</li>
+ * <li>A request that fails with a server error is retried only after the back off time</li>
+ * <li>A request that is rejected as invalid (400) is not retried</li>
+ * <li>The server never sees more requests at the same time than the extractor's concurrency cap</li>
+ * <li>The {@link RateLimiter} halves its rate once for all the requests that were in flight when the server started
+ * rejecting them, and again for a rejection of a request that was sent after that</li>
+ * </ul>
+ */
+public class OpenCalaisExtractorTest {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final static int textsNum = 30;
+    private final static int concurrentRequests = 4;
+    private final static double requestsPerSecond = 40;
+    private final static int serverRequestsPerSecond = 10;
+    private final static int serverDelay = 50;          // Milliseconds that the server takes for each request
+    private final static long minBackoff = 500;         // Sleep time of the extractor before retrying a failed request
+    private final static String failingText = "this text fails the first time";
+    private final static String invalidText = "this text is always rejected";
+
+    // Statistics of the stub server
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final ArrayDeque<Long> accepted = new ArrayDeque<>();
+    private final Map<String, List<Long>> requestTimes = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        new OpenCalaisExtractorTest().start();
+    }
+
+    private void start() throws IOException {
+        LOGGER.setLevel(Level.FINEST);
+        LOGGER.setUseParentHandlers(false);
+
+        Handler consoleHandler = new ConsoleHandler();
+        consoleHandler.setLevel(Level.INFO);
+        consoleHandler.setFormatter(new VerySimpleFormatter());
+        LOGGER.addHandler(consoleHandler);
+
+        boolean ok = checkRateLimiter();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService serverExecutor = Executors.newCachedThreadPool();
+        server.createContext("/calais", this::handle);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        File folder = Files.createTempDirectory("calais-test").toFile();
+        try {
+            ok &= checkExtractor("http://127.0.0.1:" + server.getAddress().getPort() + "/calais", folder);
+        } finally {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+            deleteFolder(folder);
+        }
+
+        LOGGER.log(ok ? Level.INFO : Level.SEVERE, "[OpenCalaisExtractorTest] " +
+                (ok ? "All checks passed" : "Some checks failed"));
+    }
+
+    /**
+     * Check that rejections of requests which were in flight together halve the rate only once
+     *
+     * @return True if the rate was halved once for the first requests and once more for the later one
+     */
+    private boolean checkRateLimiter() {
+        RateLimiter limiter = new RateLimiter(8, concurrentRequests);
+        long[] tickets = new long[concurrentRequests];
+
+        try {
+            for (int i = 0; i < tickets.length; i++) {
+                tickets[i] = limiter.acquire();
+            }
+
+            // All the requests in flight are rejected
+            for (long ticket : tickets) {
+                limiter.onThrottled(ticket);
+            }
+            double afterFirst = limiter.getRate();
+
+            // A request sent after the decrease is rejected too
+            limiter.onThrottled(limiter.acquire());
+            double afterSecond = limiter.getRate();
+
+            boolean ok = afterFirst == 4 && afterSecond == 2;
+            LOGGER.log(ok ? Level.INFO : Level.SEVERE, "[OpenCalaisExtractorTest] Rate limiter: 8 req/s, " +
+                    afterFirst + " req/s after " + tickets.length + " rejections in flight, " + afterSecond +
+                    " req/s after a later rejection (expected 4 and 2)");
+
+            return ok;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Get the entities of the test texts from the stub server and check the responses and the server's statistics
+     *
+     * @param url    URL of the stub server
+     * @param folder Folder for the texts and the responses
+     * @return True if all checks passed
+     * @throws IOException If the texts could not be written
+     */
+    private boolean checkExtractor(String url, File folder) throws IOException {
+        List<File> files = new ArrayList<>();
+        List<String> strings = new ArrayList<>();
+
+        for (int i = 0; i < textsNum; i++) {
+            String s = i == 0 ? failingText : "text number " + i + " of the extractor test";
+            File file = new File(folder, "text-" + i);
+            Files.write(file.toPath(), s.getBytes(StandardCharsets.UTF_8));
+
+            files.add(file);
+            strings.add(s);
+        }
+
+        File output = new File(folder, "output");
+        if (!output.mkdirs()) {
+            throw new IOException("Could not create the output folder " + output);
+        }
+
+        OpenCalaisExtractor extractor = new OpenCalaisExtractor(url, output, concurrentRequests, requestsPerSecond, -1);
+        long start = System.nanoTime();
+        List<TextEntities> texts;
+        try {
+            texts = extractor.getEntities(files);
+        } finally {
+            extractor.close();
+        }
+        long time = System.nanoTime() - start;
+
+        // An invalid request fails the text without retrying it
+        boolean invalidFailed = false;
+        File invalidFile = new File(folder, "invalid");
+        Files.write(invalidFile.toPath(), invalidText.getBytes(StandardCharsets.UTF_8));
+        OpenCalaisExtractor invalidExtractor = new OpenCalaisExtractor(url, output, concurrentRequests,
+                requestsPerSecond, -1);
+        try {
+            invalidExtractor.getEntities(invalidFile);
+        } catch (RuntimeException e) {
+            invalidFailed = true;
+        } finally {
+            invalidExtractor.close();
+        }
+        int invalidRequests = requestTimes.getOrDefault(invalidText, new ArrayList<>()).size();
+
+        // Every text got its own response
+        int wrong = 0;
+        for (int i = 0; i < textsNum; i++) {
+            if (!strings.get(i).equals(texts.get(i).getText())) {
+                wrong++;
+            }
+        }
+
+        // The failed request was retried after backing off
+        List<Long> times = requestTimes.get(failingText);
+        long backoff = times != null && times.size() >= 2 ? (times.get(1) - times.get(0)) / 1000000 : -1;
+
+        double rate = extractor.getKeyPool().getKeys().get(0).getRateLimiter().getRate();
+
+        LOGGER.log(Level.INFO, String.format("[OpenCalaisExtractorTest] %d texts in %.1f s | wrong responses: %d | " +
+                "rejections: %d | max requests in flight: %d (cap %d) | back off: %d ms | final rate: %.2f req/s | " +
+                "requests of the invalid text: %d", textsNum, time / 1e9, wrong, rejected.get(), maxInFlight.get(),
+                concurrentRequests, backoff, rate, invalidRequests));
+
+        boolean ok = true;
+        if (wrong > 0) {
+            LOGGER.log(Level.SEVERE, "[OpenCalaisExtractorTest] Some texts have the wrong response");
+            ok = false;
+        }
+        if (rejected.get() == 0 || rate >= requestsPerSecond) {
+            LOGGER.log(Level.SEVERE, "[OpenCalaisExtractorTest] The server did not reject any requests, or the " +
+                    "extractor did not slow down");
+            ok = false;
+        }
+        if (maxInFlight.get() > concurrentRequests) {
+            LOGGER.log(Level.SEVERE, "[OpenCalaisExtractorTest] More requests in flight than the cap");
+            ok = false;
+        }
+        if (backoff < minBackoff) {
+            LOGGER.log(Level.SEVERE, "[OpenCalaisExtractorTest] The failed request was not retried after backing off");
+            ok = false;
+        }
+        if (!invalidFailed || invalidRequests != 1) {
+            LOGGER.log(Level.SEVERE, "[OpenCalaisExtractorTest] The invalid request was retried or did not fail");
+            ok = false;
+        }
+
+        return ok;
+    }
+
+    /**
+     * Handle a request of the stub server: reject it if the server's rate was exceeded in the last second, reject
+     * the invalid text, fail the first request of the failing text, else answer with a response that contains only
+     * the document text
+     *
+     * @param exchange Request
+     * @throws IOException If the request could not be read or answered
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+
+        try {
+            InputStream in = exchange.getRequestBody();
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            if (encoding != null && encoding.contains("gzip")) {
+                in = new GZIPInputStream(in);
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            String text = body.toString("UTF-8");
+
+            Thread.sleep(serverDelay);
+
+            if (!allow()) {
+                rejected.incrementAndGet();
+                respond(exchange, 429, "Too many requests");
+                return;
+            }
+
+            List<Long> times = requestTimes.computeIfAbsent(text, k -> new ArrayList<>());
+            boolean fail;
+            synchronized (times) {
+                times.add(System.nanoTime());
+                fail = text.equals(failingText) && times.size() == 1;
+            }
+
+            if (text.equals(invalidText)) {
+                respond(exchange, 400, "Bad request");
+            } else if (fail) {
+                respond(exchange, 500, "Internal server error");
+            } else {
+                respond(exchange, 200, "{\"doc\":{\"info\":{\"document\":\"" + text + "\"}}}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Shutting down");
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Check if the server can accept one more request without going over its rate in the last second
+     *
+     * @return True if the request is accepted
+     */
+    private synchronized boolean allow() {
+        long now = System.nanoTime();
+        while (!accepted.isEmpty() && now - accepted.peekFirst() > 1000000000L) {
+            accepted.pollFirst();
+        }
+
+        if (accepted.size() >= serverRequestsPerSecond) {
+            return false;
+        }
+
+        accepted.addLast(now);
+        return true;
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static void deleteFolder(File folder) throws IOException {
+        Files.walk(folder.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile)
+                .forEach(File::delete);
+    }
+}
@@ -0,0 +1,416 @@
+package entity_extractor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streaming (pull) parser for OpenCalais JSON responses. Reads only the document text (doc.info.document) and the
+ * instances of the objects whose _typeGroup is "entities", skipping everything else (relations, topics, social tags
+ * etc.) without building any objects for it.
+ */
+class OpenCalaisResponseParser {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+    private final Reader in;
+    private final StringBuilder sb;
+    private int peeked;
+
+    // Offsets and lengths of the instances of the current tag
+    private int[] offsets;
+    private int[] lengths;
+    private int instancesNum;
+
+    /**
+     * Create a parser
+     *
+     * @param in Reader of the response (should be buffered)
+     */
+    OpenCalaisResponseParser(Reader in) {
+        this.in = in;
+        this.sb = new StringBuilder();
+        this.peeked = -2;
+        this.offsets = new int[16];
+        this.lengths = new int[16];
+    }
+
+    /**
+     * Parse the response
+     *
+     * @param withEntities If false, only the text is read and all entities are skipped
+     * @param blacklist    Names of entities to ignore
+     * @return Text entities
+     * @throws IOException If the response could not be read or is not valid JSON
+     */
+    TextEntities parse(boolean withEntities, Set<String> blacklist) throws IOException {
+        TextEntities entities = new TextEntities();
+
+        expect('{');
+        if (!endOf('}')) {
+            do {
+                String key = readString();
+                expect(':');
+
+                if (key.equals("doc")) {
+                    parseDoc(entities);
+                } else if (withEntities) {
+                    parseTag(entities, blacklist);
+                } else {
+                    skipValue();
+                }
+            } while (nextMember('}'));
+        }
+
+        if (entities.getText() == null) {
+            throw new IOException("Response does not contain the document text");
+        }
+
+        return entities;
+    }
+
+    /**
+     * Parse the "doc" object, keeping only the info.document string
+     *
+     * @param entities Text entities to set the text of
+     * @throws IOException If the response could not be read
+     */
+    private void parseDoc(TextEntities entities) throws IOException {
+        if (peek() != '{') {
+            skipValue();
+            return;
+        }
+
+        expect('{');
+        if (endOf('}')) {
+            return;
+        }
+
+        do {
+            String key = readString();
+            expect(':');
+
+            if (key.equals("info") && peek() == '{') {
+                expect('{');
+                if (endOf('}')) {
+                    continue;
+                }
+
+                do {
+                    String infoKey = readString();
+                    expect(':');
+
+                    if (infoKey.equals("document") && peek() == '"') {
+                        entities.setText(readString());
+                    } else {
+                        skipValue();
+                    }
+                } while (nextMember('}'));
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}'));
+    }
+
+    /**
+     * Parse a tag (entity, relation, topic etc.) and add its instances to the entities if it is an entity
+     *
+     * @param entities  Text entities to add the entity instances to
+     * @param blacklist Names of entities to ignore
+     * @throws IOException If the response could not be read
+     */
+    private void parseTag(TextEntities entities, Set<String> blacklist) throws IOException {
+        if (peek() != '{') {
+            skipValue();
+            return;
+        }
+
+        String name = null;
+        String type = null;
+        String typeGroup = null;
+        boolean hasInstances = false;
+        instancesNum = 0;
+
+        expect('{');
+        if (endOf('}')) {
+            return;
+        }
+
+        do {
+            String key = readString();
+            expect(':');
+
+            if (key.equals("_typeGroup") && peek() == '"') {
+                typeGroup = readString();
+            } else if (key.equals("name") && peek() == '"') {
+                name = readString();
+            } else if (key.equals("_type") && peek() == '"') {
+                type = readString();
+            } else if (key.equals("instances") && peek() == '[' && (typeGroup == null || typeGroup.equals("entities"))) {
+                // Keys can be in any order, so keep the instances until we know if this is an entity
+                parseInstances();
+                hasInstances = true;
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}'));
+
+        // Only add objects of type "entities" that have the basic properties that we need
+        if (!hasInstances || name == null || type == null || !"entities".equals(typeGroup)) {
+            return;
+        }
+
+        // Only add entity if its name is not blacklisted
+        if (blacklist.contains(name)) {
+            return;
+        }
+
+        for (int i = 0; i < instancesNum; i++) {
+            entities.addEntity(name, type, offsets[i], lengths[i]);
+        }
+    }
+
+    /**
+     * Parse an array of instances, keeping only the offset and length of each one
+     *
+     * @throws IOException If the response could not be read
+     */
+    private void parseInstances() throws IOException {
+        expect('[');
+        if (endOf(']')) {
+            return;
+        }
+
+        do {
+            if (peek() != '{') {
+                LOGGER.log(Level.SEVERE, "Instance is not a JSONObject! Skipping it...");
+                skipValue();
+                continue;
+            }
+
+            int offset = -1;
+            int length = -1;
+
+            expect('{');
+            if (!endOf('}')) {
+                do {
+                    String key = readString();
+                    expect(':');
+
+                    if (key.equals("offset")) {
+                        offset = readInt();
+                    } else if (key.equals("length")) {
+                        length = readInt();
+                    } else {
+                        skipValue();
+                    }
+                } while (nextMember('}'));
+            }
+
+            if (offset < 0 || length < 0) {
+                LOGGER.log(Level.SEVERE, "Instance does not have offset or length! Skipping it...");
+                continue;
+            }
+
+            if (instancesNum == offsets.length) {
+                offsets = Arrays.copyOf(offsets, instancesNum * 2);
+                lengths = Arrays.copyOf(lengths, instancesNum * 2);
+            }
+
+            offsets[instancesNum] = offset;
+            lengths[instancesNum] = length;
+            instancesNum++;
+        } while (nextMember(']'));
+    }
+
+    /**
+     * Skip the next value, of any type, without building it
+     *
+     * @throws IOException If the response could not be read
+     */
+    private void skipValue() throws IOException {
+        int c = peek();
+
+        if (c == '{') {
+            expect('{');
+            if (!endOf('}')) {
+                do {
+                    skipString();
+                    expect(':');
+                    skipValue();
+                } while (nextMember('}'));
+            }
+        } else if (c == '[') {
+            expect('[');
+            if (!endOf(']')) {
+                do {
+                    skipValue();
+                } while (nextMember(']'));
+            }
+        } else if (c == '"') {
+            skipString();
+        } else {
+            // Number, true, false or null
+            while ((c = peekRaw()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                read();
+            }
+        }
+    }
+
+    private int readInt() throws IOException {
+        int c = peek();
+        if (c != '-' && (c < '0' || c > '9')) {
+            skipValue();
+            return -1;
+        }
+
+        sb.setLength(0);
+        while ((c = peekRaw()) != -1 && (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+            sb.append((char) read());
+        }
+
+        try {
+            return Integer.parseInt(sb.toString());
+        } catch (NumberFormatException e) {
+            return (int) Double.parseDouble(sb.toString());
+        }
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        sb.setLength(0);
+
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1) {
+                throw new IOException("Unterminated string");
+            }
+
+            if (c == '\\') {
+                c = read();
+
+                switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            hex[i] = (char) read();
+                        }
+                        sb.append((char) Integer.parseInt(new String(hex), 16));
+                        break;
+                    case -1:
+                        throw new IOException("Unterminated string");
+                    default:
+                        // \" \\ \/
+                        sb.append((char) c);
+                }
+            } else {
+                sb.append((char) c);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1) {
+                throw new IOException("Unterminated string");
+            }
+
+            if (c == '\\') {
+                read();
+            }
+        }
+    }
+
+    /**
+     * Check if the next character closes the current object/array, and consume it if it does
+     *
+     * @param close Closing character
+     * @return True if the object/array is closed
+     * @throws IOException If the response could not be read
+     */
+    private boolean endOf(char close) throws IOException {
+        if (peek() == close) {
+            read();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Move to the next member of an object/array
+     *
+     * @param close Closing character of the object/array
+     * @return True if there is another member, false if the object/array was closed
+     * @throws IOException If the response could not be read or is not valid JSON
+     */
+    private boolean nextMember(char close) throws IOException {
+        int c = peek();
+        read();
+
+        if (c == ',') {
+            return true;
+        } else if (c == close) {
+            return false;
+        }
+
+        throw new IOException("Expected ',' or '" + close + "' but got '" + (char) c + "'");
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peek();
+        read();
+
+        if (c != expected) {
+            throw new IOException("Expected '" + expected + "' but got '" + (char) c + "'");
+        }
+    }
+
+    /**
+     * Return the next character that is not whitespace, without consuming it
+     */
+    private int peek() throws IOException {
+        int c;
+        while ((c = peekRaw()) != -1 && Character.isWhitespace(c)) {
+            read();
+        }
+
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (peeked == -2) {
+            peeked = in.read();
+        }
+
+        return peeked;
+    }
+
+    private int read() throws IOException {
+        int c = peekRaw();
+        peeked = -2;
+
+        return c;
+    }
+}
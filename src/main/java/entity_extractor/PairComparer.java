@@ -0,0 +1,17 @@
+package entity_extractor;
+
+/**
+ * Compares pairs of texts for the {@link ComparisonScheduler}, by their index in the list of texts to compare, and
+ * passes the results on (e.g. to a CSV file or to the nearest neighbours of the texts). Each thread of the scheduler
+ * has its own comparer, so a comparer can reuse its objects for all the pairs of its thread, but anything it shares
+ * with the other comparers must be thread safe.
+ */
+public interface PairComparer {
+    /**
+     * Compare two texts
+     *
+     * @param i Index of the first text
+     * @param j Index of the second text
+     */
+    void compare(int i, int j);
+}
@@ -0,0 +1,107 @@
+package entity_extractor;
+
+/**
+ * Token bucket rate limiter with adaptive rate. Every request takes one token from the bucket, and the bucket is
+ * refilled at the current rate. When the server responds with "too many requests" the rate is halved, and on every
+ * successful request it is increased a bit, so the rate settles just under the server's quota (AIMD).
+ * <p>
+ * All the requests that are in flight when the server starts rejecting them get rejected together, so the rate is
+ * halved only once for them: every request gets a ticket, and rejections of requests that were sent before the last
+ * decrease are ignored.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RateLimiter {
+    private static final double minRate = 0.1;          // Never go slower than 1 request per 10 seconds
+    private static final double increaseStep = 0.05;    // Requests/second to add to the rate after every success
+
+    private final double maxRate;
+    private final double burst;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long nextTicket;        // Ticket of the next request
+    private long windowStart;       // Ticket of the first request that was sent after the last decrease
+
+    /**
+     * Create a rate limiter
+     *
+     * @param maxRate Maximum number of requests per second
+     * @param burst   Maximum number of requests that can be made at once (size of the bucket)
+     */
+    public RateLimiter(double maxRate, double burst) {
+        this.maxRate = maxRate;
+        this.burst = burst;
+        this.rate = maxRate;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Block until a token is available and take it
+     *
+     * @return Ticket of the request, to pass to {@link #onThrottled(long)} if the request is rejected
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public long acquire() throws InterruptedException {
+        while (true) {
+            long waitNanos;
+
+            synchronized (this) {
+                refill();
+
+                if (tokens >= 1) {
+                    tokens--;
+                    return nextTicket++;
+                }
+
+                // Time until the next token is available
+                waitNanos = (long) ((1 - tokens) / rate * 1e9);
+            }
+
+            Thread.sleep(Math.max(1, waitNanos / 1000000), (int) (waitNanos % 1000000));
+        }
+    }
+
+    /**
+     * Should be called when the server rejects a request because of its rate limit. Halves the rate and empties
+     * the bucket, so that the next requests wait for a while, unless the request was sent before the last decrease
+     * (then the rate has already been lowered for the same overload).
+     *
+     * @param ticket Ticket of the rejected request, as returned by {@link #acquire()}
+     */
+    public synchronized void onThrottled(long ticket) {
+        if (ticket < windowStart) {
+            return;
+        }
+
+        refill();
+
+        rate = Math.max(minRate, rate / 2);
+        tokens = Math.min(tokens, 0);
+        windowStart = nextTicket;
+    }
+
+    /**
+     * Should be called when a request succeeds. Increases the rate slowly, up to the maximum rate.
+     */
+    public synchronized void onSuccess() {
+        refill();
+
+        rate = Math.min(maxRate, rate + increaseStep);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Add the tokens that were generated since the last refill to the bucket
+     */
+    private void refill() {
+        long now = System.nanoTime();
+
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+    }
+}
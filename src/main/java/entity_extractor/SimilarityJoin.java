@@ -0,0 +1,244 @@
+package entity_extractor;
+
+import csv_export.ComparisonContainer;
+import utils.Methods;
+import utils.Percentage;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Threshold similarity join: keeps only the pairs of texts whose similarity with one graph method is at least a
+ * threshold. Before a pair is compared, upper bounds of its similarity are calculated from cheap statistics of the two
+ * graphs, and the pair is pruned if they prove that it cannot reach the threshold:
+ * <ul>
+ * <li>Edge counts: the size similarity is exact, and it bounds the value similarity</li>
+ * <li>Source vertices: an edge can only be common if its source vertex is in both graphs, so the common edges of a
+ * level are at most the sum, over the common source vertices, of the smaller out-degree. This bounds the value,
+ * containment and normalized value similarity (entity vertices are source vertices, so texts without common entities
+ * and terms are pruned here).</li>
+ * </ul>
+ * The bounds are checked from the cheapest to the most expensive. The pruned pairs of each bound and the compared and
+ * matched pairs are counted. Thread-safe, the workers of all threads share the join.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SimilarityJoin {
+    // Similarity measures that the pairs can be joined on
+    public final static int VALUE_SIMILARITY = 0;
+    public final static int CONTAINMENT_SIMILARITY = 1;
+    public final static int SIZE_SIMILARITY = 2;
+    public final static int NORMALIZED_VALUE_SIMILARITY = 3;
+
+    // Bounds are compared with a margin, so that rounding never prunes a pair that is exactly at the threshold
+    private final static double margin = 1e-9;
+
+    private final int method;
+    private final String placeholder;
+    private final int measure;
+    private final double threshold;
+    private final int resultIndex;
+
+    private final LongAdder prunedBySize = new LongAdder();
+    private final LongAdder prunedBySources = new LongAdder();
+    private final LongAdder compared = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+
+    /**
+     * Create a similarity join
+     *
+     * @param method       Graph method to join the texts with (one of the graph methods of {@link Methods})
+     * @param placeholder  Placeholder, for the methods that use one (else null)
+     * @param measure      Similarity measure to join on
+     * @param threshold    Minimum similarity of the pairs
+     * @param placeholders Placeholders that the comparisons use (to find the result of the method in them)
+     */
+    public SimilarityJoin(int method, String placeholder, int measure, double threshold, List<String> placeholders) {
+        if (method == Methods.COSINE || !Methods.isEnabled(method)) {
+            throw new IllegalArgumentException("Method " + method + " is not an enabled graph method");
+        }
+        if (measure < VALUE_SIMILARITY || measure > NORMALIZED_VALUE_SIMILARITY) {
+            throw new IllegalArgumentException("Unknown similarity measure: " + measure);
+        }
+
+        this.method = method;
+        this.placeholder = placeholder;
+        this.measure = measure;
+        this.threshold = threshold;
+        this.resultIndex = Methods.getResultIndex(method, placeholder == null ? 0 : placeholders.indexOf(placeholder),
+                placeholders.size());
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public String getPlaceholder() {
+        return placeholder;
+    }
+
+    /**
+     * Check if a pair of texts cannot reach the threshold, from the statistics of their graphs
+     *
+     * @param g1 Graph of the first text, with the join method
+     * @param g2 Graph of the second text, with the join method
+     * @return True if the pair can be skipped
+     */
+    public boolean canPrune(CompactGraph g1, CompactGraph g2) {
+        // The bounds hold for the measures of the compact comparator, but pairs with an empty level are compared by
+        // JInsect's comparator
+        if (CompactGraphComparator.hasEmptyLevel(g1, g2)) {
+            return false;
+        }
+
+        if (measure == VALUE_SIMILARITY || measure == SIZE_SIMILARITY) {
+            if (CompactGraphComparator.getSizeSimilarity(g1, g2) < threshold - margin) {
+                prunedBySize.increment();
+                return true;
+            }
+
+            if (measure == SIZE_SIMILARITY) {
+                return false;
+            }
+        }
+
+        if (getSourceBound(g1, g2) < threshold - margin) {
+            prunedBySources.increment();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Check if the results of a pair of texts that was compared reach the threshold
+     *
+     * @param comparison Results of the comparison, with all the enabled methods
+     * @return True if the pair is in the join
+     */
+    public boolean accept(ComparisonContainer comparison) {
+        compared.increment();
+
+        double similarity;
+        switch (measure) {
+            case VALUE_SIMILARITY:
+                similarity = comparison.getResults().get(resultIndex).getValueSim();
+                break;
+            case CONTAINMENT_SIMILARITY:
+                similarity = comparison.getResults().get(resultIndex).getContainmentSim();
+                break;
+            case SIZE_SIMILARITY:
+                similarity = comparison.getResults().get(resultIndex).getSizeSim();
+                break;
+            default:
+                similarity = comparison.getResults().get(resultIndex).getNVS();
+        }
+
+        if (similarity >= threshold) {
+            matched.increment();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Calculate an upper bound of the join measure from the common source vertices of each level of the graphs (see
+     * the class description), weighting the levels like {@link CompactGraphComparator}
+     */
+    private double getSourceBound(CompactGraph g1, CompactGraph g2) {
+        double valueSim = 0;
+        double containmentSim = 0;
+        double sizeSim = 0;
+        int totalImportance = 0;
+
+        int minSize = Math.max(g1.getMinSize(), g2.getMinSize());
+        int maxSize = Math.min(g1.getMaxSize(), g2.getMaxSize());
+
+        for (int n = minSize; n <= maxSize; n++) {
+            int edges1 = g1.getEdgesNum(n - g1.getMinSize());
+            int edges2 = g2.getEdgesNum(n - g2.getMinSize());
+            int minEdges = Math.min(edges1, edges2);
+            int maxEdges = Math.max(edges1, edges2);
+
+            totalImportance += n;
+            if (minEdges == 0) {
+                continue;
+            }
+
+            long common = Math.min(minEdges, getCommonEdgesBound(g1.getSourceDegrees(n - g1.getMinSize()),
+                    g2.getSourceDegrees(n - g2.getMinSize())));
+
+            valueSim += n * ((double) common / maxEdges);
+            containmentSim += n * ((double) common / minEdges);
+            sizeSim += n * ((double) minEdges / maxEdges);
+        }
+
+        if (totalImportance == 0) {
+            return 0;
+        }
+
+        switch (measure) {
+            case VALUE_SIMILARITY:
+                return valueSim / totalImportance;
+            case CONTAINMENT_SIMILARITY:
+                return containmentSim / totalImportance;
+            case SIZE_SIMILARITY:
+                return sizeSim / totalImportance;
+            default:
+                return sizeSim == 0 ? 0 : valueSim / sizeSim;
+        }
+    }
+
+    /**
+     * Merge the source vertices of two levels and sum the smaller out-degree of each common source vertex
+     *
+     * @param sources1 Source vertex keys of the first level (see {@link CompactGraph#getSourceDegrees(int)})
+     * @param sources2 Source vertex keys of the second level
+     * @return Upper bound of the common edges
+     */
+    private static long getCommonEdgesBound(long[] sources1, long[] sources2) {
+        long common = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < sources1.length && j < sources2.length) {
+            int a = CompactGraph.getFrom(sources1[i]);
+            int b = CompactGraph.getFrom(sources2[j]);
+
+            if (a < b) {
+                i++;
+            } else if (a > b) {
+                j++;
+            } else {
+                common += Math.min(CompactGraph.getTo(sources1[i]), CompactGraph.getTo(sources2[j]));
+                i++;
+                j++;
+            }
+        }
+
+        return common;
+    }
+
+    public long getPrunedNum() {
+        return prunedBySize.sum() + prunedBySources.sum();
+    }
+
+    public long getComparedNum() {
+        return compared.sum();
+    }
+
+    public long getMatchedNum() {
+        return matched.sum();
+    }
+
+    @Override
+    public String toString() {
+        long pruned = getPrunedNum();
+        long total = pruned + getComparedNum();
+
+        return String.format("[SimilarityJoin] Pairs with similarity >= %s | compared: %d | pruned: %d (%.1f%%) | " +
+                        "by edge counts: %d | by source vertices: %d | matched: %d", threshold, getComparedNum(),
+                pruned, total > 0 ? Percentage.percent(pruned, total) : 0, prunedBySize.sum(), prunedBySources.sum(),
+                getMatchedNum());
+    }
+}
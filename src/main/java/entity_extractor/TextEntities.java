@@ -1,34 +1,145 @@
 package entity_extractor;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
-import java.util.StringTokenizer;
+import java.util.*;
 
 /**
- * Entities extracted from a text
+ * Entities extracted from a text. The entities are kept in primitive arrays (struct of arrays), with their names and
+ * types interned in corpus-wide dictionaries, instead of one ExtractedEntity object per entity.
  */
 @SuppressWarnings("WeakerAccess")
 public class TextEntities {
     private final static String wordSeparator = " ";
     private final static String alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
 
-    private final ArrayList<ExtractedEntity> entities;
+    // Modes of replacing the words of the text (except for the entities and top terms, in all modes but RENDER_KEEP)
+    public final static int RENDER_PLACEHOLDER = 0;
+    public final static int RENDER_SAME_SIZE = 1;
+    public final static int RENDER_RANDOM = 2;
+    public final static int RENDER_KEEP = 3;
+
+    // Buffers for rendering texts, one for each thread
+    private final static ThreadLocal<RenderBuffer> renderBuffers = new ThreadLocal<RenderBuffer>() {
+        @Override
+        protected RenderBuffer initialValue() {
+            return new RenderBuffer();
+        }
+    };
+
+    // Dictionaries of entity names and types, shared by all texts
+    private final static EntityDictionary names = new EntityDictionary();
+    private final static EntityDictionary types = new EntityDictionary();
+
+    private int[] entityNames;
+    private int[] entityTypes;
+    private int[] entityOffsets;
+    private int[] entityLengths;
+    private int entitiesNum;
     private String text;
     private String title;
+    private volatile TokenIndex tokenIndex;
 
     public TextEntities() {
-        this.entities = new ArrayList<>();
+        this.entityNames = new int[0];
+        this.entityTypes = new int[0];
+        this.entityOffsets = new int[0];
+        this.entityLengths = new int[0];
+        this.entitiesNum = 0;
     }
 
     public void addEntity(ExtractedEntity e) {
-        this.entities.add(e);
+        addEntity(e.getName(), e.getType(), e.getOffset(), e.getLength());
     }
 
+    public void addEntity(String name, String type, int offset, int length) {
+        if (entitiesNum == entityNames.length) {
+            int capacity = Math.max(8, entitiesNum * 2);
+            entityNames = Arrays.copyOf(entityNames, capacity);
+            entityTypes = Arrays.copyOf(entityTypes, capacity);
+            entityOffsets = Arrays.copyOf(entityOffsets, capacity);
+            entityLengths = Arrays.copyOf(entityLengths, capacity);
+        }
+
+        entityNames[entitiesNum] = names.getId(name);
+        entityTypes[entitiesNum] = types.getId(type == null ? "" : type);
+        entityOffsets[entitiesNum] = offset;
+        entityLengths[entitiesNum] = length;
+        entitiesNum++;
+    }
+
+    /**
+     * Return the entities of the text as ExtractedEntity objects. The objects are created on every call, so prefer
+     * the methods that access the entities by index.
+     *
+     * @return List of entities
+     */
     public ArrayList<ExtractedEntity> getEntities() {
+        ArrayList<ExtractedEntity> entities = new ArrayList<>(entitiesNum);
+
+        for (int i = 0; i < entitiesNum; i++) {
+            entities.add(new ExtractedEntity(getEntityName(i), getEntityType(i), entityOffsets[i], entityLengths[i]));
+        }
+
         return entities;
     }
 
+    public int getEntitiesNum() {
+        return entitiesNum;
+    }
+
+    public String getEntityName(int i) {
+        return names.getString(entityNames[i]);
+    }
+
+    public String getEntityType(int i) {
+        return types.getString(entityTypes[i]);
+    }
+
+    /**
+     * Get the id of an entity's name in the corpus-wide dictionary of names
+     *
+     * @param i Index of the entity
+     * @return Id of the name
+     */
+    public int getEntityNameId(int i) {
+        return entityNames[i];
+    }
+
+    /**
+     * Get the id of an entity's type in the corpus-wide dictionary of types
+     *
+     * @param i Index of the entity
+     * @return Id of the type
+     */
+    public int getEntityTypeId(int i) {
+        return entityTypes[i];
+    }
+
+    public int getEntityOffset(int i) {
+        return entityOffsets[i];
+    }
+
+    public int getEntityLength(int i) {
+        return entityLengths[i];
+    }
+
+    /**
+     * Get the hash string of an entity's name (same as {@link ExtractedEntity#getHash()})
+     *
+     * @param i Index of the entity
+     * @return Hash string
+     */
+    public String getEntityHash(int i) {
+        return names.getHash(entityNames[i]);
+    }
+
+    public static EntityDictionary getNameDictionary() {
+        return names;
+    }
+
+    public static EntityDictionary getTypeDictionary() {
+        return types;
+    }
+
     public String getText() {
         return text;
     }
@@ -38,6 +149,7 @@ public class TextEntities {
                 .replace("\n", " ")
                 .replace("\t", " ")
                 .replaceAll("[\\W&&[^\\s]]", " ");
+        this.tokenIndex = null;
     }
 
     public String getTitle() {
@@ -49,7 +161,7 @@ public class TextEntities {
     }
 
     public void printEntities() {
-        for (ExtractedEntity e : entities) {
+        for (ExtractedEntity e : getEntities()) {
             System.out.print(e);
             System.out.println(" | index: " + getEntityIndex(e.getOffset()));
         }
@@ -57,22 +169,6 @@ public class TextEntities {
         System.out.println("Number of words in text: " + getNumberOfWordsInText());
     }
 
-    /**
-     * Join an array list of strings into a single string, each string separated from each other with the wordSeparator
-     *
-     * @param stringList List of strings
-     * @return List of strings joined to a single string
-     */
-    private String getStringFromArrayList(ArrayList<String> stringList) {
-        StringBuilder sb = new StringBuilder();
-        for (String word : stringList) {
-            sb.append(word);
-            sb.append(wordSeparator);
-        }
-
-        return sb.toString();
-    }
-
     /**
      * Return a string that is the original text, with every word that is not an entity replaced by a placeholder
      *
@@ -80,24 +176,7 @@ public class TextEntities {
      * @return Text with non-entity words replaced by the placeholder
      */
     public String getEntityTextWithPlaceholders(String placeholder) {
-        int wordsNum = this.getNumberOfWordsInText();
-
-        // Create string that is the same number of words as original text but all words are the placeholder word
-        ArrayList<String> entityTextWords = new ArrayList<>(wordsNum);
-
-        for (int i = 0; i < wordsNum; i++) {
-            entityTextWords.add(i, placeholder);
-        }
-
-        // Replace words that should be entities with their entity names
-        for (ExtractedEntity e : entities) {
-            int index = getEntityIndex(e.getOffset());
-
-            entityTextWords.set(index, e.getHash());
-        }
-
-        // Create string from the array list
-        return getStringFromArrayList(entityTextWords);
+        return render(RENDER_PLACEHOLDER, placeholder, null);
     }
 
     /**
@@ -109,31 +188,7 @@ public class TextEntities {
      * @return Text with non-entity words replaced by the placeholder
      */
     public String getEntityTextWithPlaceholders(String placeholder, List<String> topTerms) {
-        // Create string that is the same number of words as original text but all words are the placeholder word
-        int wordsNum = this.getNumberOfWordsInText();
-        ArrayList<String> entityTextWords = new ArrayList<>(wordsNum);
-
-        for (int i = 0; i < wordsNum; i++) {
-            entityTextWords.add(i, placeholder);
-        }
-
-        // Put top terms back in the text
-        for (String term : topTerms) {
-            List<Integer> indexes = getWordIndexes(term);
-            for (int index : indexes) {
-                entityTextWords.set(index, term);
-            }
-        }
-
-        // Replace words that should be entities with their entity names
-        for (ExtractedEntity e : entities) {
-            int index = getEntityIndex(e.getOffset());
-
-            entityTextWords.set(index, e.getHash());
-        }
-
-        // Create string from the array list
-        return getStringFromArrayList(entityTextWords);
+        return render(RENDER_PLACEHOLDER, placeholder, topTerms);
     }
 
     /**
@@ -145,122 +200,338 @@ public class TextEntities {
      * @return The text in the described form
      */
     public String getEntityTextWithPlaceholderSameSize(String placeholder) {
-        int numOfWords = this.getNumberOfWordsInText();
+        return render(RENDER_SAME_SIZE, placeholder, null);
+    }
+
+    /**
+     * Return a string that is the original text with every non-entity word replaced by a random word of the same size
+     *
+     * @return The text in the described form
+     */
+    public String getEntityTextWithRandomWord() {
+        return render(RENDER_RANDOM, null, null);
+    }
 
-        // Create array with the original text's words
-        StringTokenizer st = new StringTokenizer(this.text, wordSeparator);
-        ArrayList<String> words = new ArrayList<>(numOfWords);
+    /**
+     * Render the text with every word replaced according to the given mode, except for the entities (which are
+     * replaced by their hash) and the top terms (which are kept). The words are written directly to a char buffer
+     * that is reused by each thread, so the only allocation is the returned string.
+     *
+     * @param mode        One of RENDER_PLACEHOLDER, RENDER_SAME_SIZE, RENDER_RANDOM (RENDER_KEEP is getText())
+     * @param placeholder Placeholder word (not used for RENDER_RANDOM)
+     * @param topTerms    Top terms to keep in the text (null to keep none)
+     * @return Rendered text, with a separator after each word
+     */
+    private String render(int mode, String placeholder, List<String> topTerms) {
+        TokenIndex index = getTokenIndex();
+        String[] words = index.tokens;
+        int wordsNum = words.length;
+        RenderBuffer buffer = renderBuffers.get();
 
-        int tokenIndex = 0;
-        while (st.hasMoreTokens()) {
-            words.add(tokenIndex++, st.nextToken());
-        }
+        int[] marks = markWords(buffer, wordsNum, topTerms);
 
-        // Turn all words into placeholder words
-        for (int i = 0; i < numOfWords; i++) {
-            // Get the word to replace and its length
-            String word = words.get(i);
-            int wordLen = word.length();
+        Random r = mode == RENDER_RANDOM ? new Random() : null;
+        int alphabetLength = alphabet.length();
+        int placeholderLength = placeholder == null ? 0 : placeholder.length();
 
-            // Create word to replace it
-            String newWord = "";
+        buffer.clear();
+        for (int i = 0; i < wordsNum; i++) {
+            int mark = marks[i];
+
+            if (mark > 0) {
+                buffer.append(names.getHash(mark - 1));
+            } else if (mark < 0) {
+                buffer.append(topTerms.get(-mark - 1));
+            } else if (mode == RENDER_PLACEHOLDER) {
+                buffer.append(placeholder);
+            } else if (mode == RENDER_SAME_SIZE) {
+                // Repeat the placeholder up to the word's length
+                int wordLen = words[i].length();
+
+                if (placeholderLength > 0) {
+                    for (int c = 0; c < wordLen; c++) {
+                        buffer.append(placeholder.charAt(c % placeholderLength));
+                    }
+                }
+            } else {
+                // Random letters, one more is drawn than needed (and dropped) like the original implementation
+                int wordLen = words[i].length();
+
+                for (int c = 0; c < wordLen; c++) {
+                    buffer.append(alphabet.charAt(r.nextInt(alphabetLength)));
+                }
+                r.nextInt(alphabetLength);
+            }
 
-            do {
-                newWord += placeholder;
-            } while (newWord.length() <= wordLen);
+            buffer.append(wordSeparator);
+        }
 
-            newWord = newWord.substring(0, wordLen);
+        return buffer.toString();
+    }
 
-            words.set(i, newWord);
+    /**
+     * Get the words of the text, replaced like in the rendering methods (or all kept, for RENDER_KEEP), without
+     * rendering the text. Replacements that are the same for many words are the same string object.
+     *
+     * @param mode        One of RENDER_PLACEHOLDER, RENDER_SAME_SIZE, RENDER_RANDOM, RENDER_KEEP
+     * @param placeholder Placeholder word (not used for RENDER_RANDOM and RENDER_KEEP)
+     * @param topTerms    Top terms to keep in the text (null to keep none)
+     * @return Replaced words, in the order of the text
+     */
+    public String[] getReplacedWords(int mode, String placeholder, List<String> topTerms) {
+        String[] words = getTokenIndex().tokens;
+        int wordsNum = words.length;
+
+        if (mode == RENDER_KEEP) {
+            return words.clone();
         }
 
-        // Add entity names back to the text
-        for (ExtractedEntity e : this.entities) {
-            int entityIndex = this.getEntityIndex(e.getOffset());
+        int[] marks = markWords(renderBuffers.get(), wordsNum, topTerms);
+        String[] replaced = new String[wordsNum];
+
+        Random r = mode == RENDER_RANDOM ? new Random() : null;
+        int alphabetLength = alphabet.length();
+        int placeholderLength = placeholder == null ? 0 : placeholder.length();
+        String[] sameSizeWords = new String[16];    // Placeholder repeated to each length
 
-            words.set(entityIndex, e.getHash());
+        for (int i = 0; i < wordsNum; i++) {
+            int mark = marks[i];
+            int wordLen = words[i].length();
+
+            if (mark > 0) {
+                replaced[i] = names.getHash(mark - 1);
+            } else if (mark < 0) {
+                replaced[i] = topTerms.get(-mark - 1);
+            } else if (mode == RENDER_PLACEHOLDER) {
+                replaced[i] = placeholder;
+            } else if (mode == RENDER_SAME_SIZE) {
+                if (wordLen >= sameSizeWords.length) {
+                    sameSizeWords = Arrays.copyOf(sameSizeWords, Math.max(wordLen + 1, sameSizeWords.length * 2));
+                }
+
+                if (sameSizeWords[wordLen] == null) {
+                    char[] chars = new char[placeholderLength > 0 ? wordLen : 0];
+                    for (int c = 0; c < chars.length; c++) {
+                        chars[c] = placeholder.charAt(c % placeholderLength);
+                    }
+
+                    sameSizeWords[wordLen] = new String(chars);
+                }
+
+                replaced[i] = sameSizeWords[wordLen];
+            } else {
+                char[] chars = new char[wordLen];
+                for (int c = 0; c < wordLen; c++) {
+                    chars[c] = alphabet.charAt(r.nextInt(alphabetLength));
+                }
+                r.nextInt(alphabetLength);
+
+                replaced[i] = new String(chars);
+            }
         }
 
-        return getStringFromArrayList(words);
+        return replaced;
     }
 
     /**
-     * Return a string that is the original text with every non-entity word replaced by a random word of the same size
+     * Mark what each word should be replaced with: 0 for the mode's replacement, > 0 for an entity (name id + 1)
+     * and < 0 for a top term (-(term index + 1)). Later marks overwrite earlier ones.
      *
-     * @return The text in the described form
+     * @param buffer   Buffer of this thread, to get the marks array from
+     * @param wordsNum Number of words in the text
+     * @param topTerms Top terms to keep in the text (null to keep none)
+     * @return Marks of the words (the array may be longer than the number of words)
      */
-    public String getEntityTextWithRandomWord() {
-        Random r = new Random();
-        int alphabetLength = alphabet.length();
-        int numOfWords = this.getNumberOfWordsInText();
+    private int[] markWords(RenderBuffer buffer, int wordsNum, List<String> topTerms) {
+        int[] marks = buffer.marks(wordsNum);
 
-        // Create array with the original text's words
-        StringTokenizer st = new StringTokenizer(this.text, wordSeparator);
-        ArrayList<String> words = new ArrayList<>(numOfWords);
+        if (topTerms != null) {
+            int termIndex = 0;
+            for (String term : topTerms) {
+                termIndex++;
 
-        int tokenIndex = 0;
-        while (st.hasMoreTokens()) {
-            words.add(tokenIndex++, st.nextToken());
+                for (int wordIndex : getWordIndexes(term)) {
+                    marks[wordIndex] = -termIndex;
+                }
+            }
         }
 
-        // Turn all words into words with random letters
-        for (int i = 0; i < numOfWords; i++) {
-            // Get the word to replace and its length
-            String word = words.get(i);
-            int wordLen = word.length();
+        for (int i = 0; i < entitiesNum; i++) {
+            int wordIndex = getEntityIndex(entityOffsets[i]);
+            if (wordIndex >= wordsNum) {
+                throw new IndexOutOfBoundsException("Entity offset " + entityOffsets[i] + " is after the last word");
+            }
 
-            // Create word to replace it
-            String newWord = "";
+            marks[wordIndex] = entityNames[i] + 1;
+        }
 
-            do {
-                // Add a random character from the alphabet to the word
-                newWord += alphabet.charAt(r.nextInt(alphabetLength));
-            } while (newWord.length() <= wordLen);
+        return marks;
+    }
 
-            newWord = newWord.substring(0, wordLen);
+    private int getNumberOfWordsInText() {
+        return getTokenIndex().tokens.length;
+    }
 
-            words.set(i, newWord);
-        }
+    /**
+     * Get the indexes of the words of the text that are equal to the given word, when upper case
+     *
+     * @param word Upper case word
+     * @return Indexes of the word in the text
+     */
+    private int[] getWordIndexes(String word) {
+        int[] indexes = getTokenIndex().getUpperCaseIndexes().get(word);
 
-        // Add entity names back to the text
-        for (ExtractedEntity e : this.entities) {
-            int entityIndex = this.getEntityIndex(e.getOffset());
+        return indexes != null ? indexes : new int[0];
+    }
 
-            words.set(entityIndex, e.getHash());
+    /**
+     * Get the index of the word that an entity is at, which is the number of words that start before its offset
+     *
+     * @param offset Character offset of the entity
+     * @return Word index of the entity
+     */
+    private int getEntityIndex(int offset) {
+        int[] starts = getTokenIndex().starts;
+
+        // Binary search for the first word that starts at or after the offset
+        int low = 0;
+        int high = starts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (starts[mid] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
 
-        return getStringFromArrayList(words);
+        return low;
     }
 
-    private int getNumberOfWordsInText() {
-        StringTokenizer st = new StringTokenizer(text, wordSeparator);
+    /**
+     * Get the index of the text's words, creating it if it does not exist yet
+     *
+     * @return Token index
+     */
+    private TokenIndex getTokenIndex() {
+        TokenIndex index = tokenIndex;
+
+        if (index == null) {
+            // If two threads create it at the same time, both indexes are the same so it does not matter which is kept
+            index = new TokenIndex(text);
+            tokenIndex = index;
+        }
 
-        return st.countTokens();
+        return index;
     }
 
-    private List<Integer> getWordIndexes(String word) {
-        StringTokenizer st = new StringTokenizer(text.toUpperCase(), wordSeparator);
-        List<Integer> indexes = new ArrayList<>();
+    /**
+     * The words of a text (tokenized once) with the character offset that each word starts at
+     */
+    private static class TokenIndex {
+        private final String[] tokens;
+        private final int[] starts;
+        private Map<String, int[]> upperCaseIndexes;
+
+        TokenIndex(String text) {
+            StringTokenizer st = new StringTokenizer(text, wordSeparator);
+            int tokensNum = st.countTokens();
+
+            tokens = new String[tokensNum];
+            starts = new int[tokensNum];
+
+            int position = 0;
+            for (int i = 0; i < tokensNum; i++) {
+                String token = st.nextToken();
+
+                position = text.indexOf(token, position);
+                tokens[i] = token;
+                starts[i] = position;
+                position += token.length();
+            }
+        }
 
-        int index = 0;
-        while (st.hasMoreTokens()) {
-            if (st.nextToken().equals(word)) {
-                indexes.add(index);
+        /**
+         * Get a map from each upper case word of the text to its indexes, created on first use
+         *
+         * @return Map of upper case words to indexes
+         */
+        synchronized Map<String, int[]> getUpperCaseIndexes() {
+            if (upperCaseIndexes == null) {
+                Map<String, List<Integer>> lists = new HashMap<>();
+                for (int i = 0; i < tokens.length; i++) {
+                    String upper = tokens[i].toUpperCase();
+
+                    List<Integer> l = lists.get(upper);
+                    if (l == null) {
+                        l = new ArrayList<>(1);
+                        lists.put(upper, l);
+                    }
+                    l.add(i);
+                }
+
+                upperCaseIndexes = new HashMap<>(lists.size() * 2);
+                for (Map.Entry<String, List<Integer>> e : lists.entrySet()) {
+                    int[] indexes = new int[e.getValue().size()];
+                    for (int i = 0; i < indexes.length; i++) {
+                        indexes[i] = e.getValue().get(i);
+                    }
+
+                    upperCaseIndexes.put(e.getKey(), indexes);
+                }
             }
 
-            index++;
+            return upperCaseIndexes;
         }
-
-        return indexes;
     }
 
-    private int getEntityIndex(int offset) {
-        // Get text until the entity
-        String textUntilEntity = text.substring(0, offset);
+    /**
+     * Reusable buffers for rendering a text: the characters of the rendered text and the replacement mark of each word
+     */
+    private static class RenderBuffer {
+        private char[] chars = new char[4096];
+        private int length = 0;
+        private int[] marks = new int[1024];
+
+        /**
+         * Get the marks array, cleared, with room for at least the given number of words
+         */
+        int[] marks(int wordsNum) {
+            if (marks.length < wordsNum) {
+                marks = new int[Math.max(wordsNum, marks.length * 2)];
+            } else {
+                Arrays.fill(marks, 0, wordsNum, 0);
+            }
 
-        // Count words in the text
-        StringTokenizer st = new StringTokenizer(textUntilEntity, wordSeparator);
+            return marks;
+        }
+
+        void clear() {
+            length = 0;
+        }
 
-        return st.countTokens();
+        void append(char c) {
+            if (length == chars.length) {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+
+            chars[length++] = c;
+        }
+
+        void append(String s) {
+            int sLen = s.length();
+            if (length + sLen > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(length + sLen, chars.length * 2));
+            }
+
+            s.getChars(0, sLen, chars, length);
+            length += sLen;
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
     }
 }
@@ -0,0 +1,243 @@
+package entity_extractor;
+
+import utils.VerySimpleFormatter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.function.Supplier;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the allocation and time per call of rendering the placeholder, same size placeholder and random word texts,
+ * with the render buffer of {@link TextEntities} and with the previous implementation (a list of words that is joined
+ * with string concatenation, kept here for comparison), and checks that both give the same texts. The text has 2000
+ * words and 100 entity instances. The allocation is measured with the thread allocation counter of the JVM.
+ */
+public class TextRenderTest {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final static String alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private final static int wordsNum = 2000;
+    private final static int entitiesNum = 100;
+    private final static int warmUpCalls = 500;
+    private final static int measuredCalls = 500;
+
+    public static void main(String[] args) {
+        new TextRenderTest().start();
+    }
+
+    private void start() {
+        LOGGER.setLevel(Level.FINEST);
+        LOGGER.setUseParentHandlers(false);
+
+        Handler consoleHandler = new ConsoleHandler();
+        consoleHandler.setLevel(Level.INFO);
+        consoleHandler.setFormatter(new VerySimpleFormatter());
+        LOGGER.addHandler(consoleHandler);
+
+        TextEntities text = createText(new Random(42));
+        String placeholder = "A";
+
+        boolean ok = text.getEntityTextWithPlaceholders(placeholder).equals(previousPlaceholders(text, placeholder));
+        ok &= text.getEntityTextWithPlaceholderSameSize(placeholder).equals(previousSameSize(text, placeholder));
+        ok &= getWordLengths(text.getEntityTextWithRandomWord()).equals(getWordLengths(previousRandomWord(text)));
+
+        measure("PH", () -> previousPlaceholders(text, placeholder), () -> text.getEntityTextWithPlaceholders(placeholder));
+        measure("PHSS", () -> previousSameSize(text, placeholder), () -> text.getEntityTextWithPlaceholderSameSize(placeholder));
+        measure("RAND", () -> previousRandomWord(text), text::getEntityTextWithRandomWord);
+
+        LOGGER.log(ok ? Level.INFO : Level.SEVERE, "[TextRenderTest] " + (ok ? "All rendered texts match" : "Some rendered texts do not match"));
+    }
+
+    /**
+     * Log the bytes allocated and the time per call of the previous and the current implementation of a render method
+     *
+     * @param name     Name of the method, for the log
+     * @param previous Previous implementation
+     * @param current  Current implementation
+     */
+    private void measure(String name, Supplier<String> previous, Supplier<String> current) {
+        long[] previousCost = measure(previous);
+        long[] currentCost = measure(current);
+
+        LOGGER.log(Level.INFO, String.format("[TextRenderTest] %-4s per call | previous: %8.1f KB, %7.1f us | " +
+                        "current: %8.1f KB, %7.1f us", name, previousCost[0] / 1024.0 / measuredCalls,
+                previousCost[1] / 1e3 / measuredCalls, currentCost[0] / 1024.0 / measuredCalls,
+                currentCost[1] / 1e3 / measuredCalls));
+    }
+
+    /**
+     * Call a render method (after warming up the JIT) and measure the bytes that the calls allocated and their time
+     *
+     * @param render Render method
+     * @return Allocated bytes and time in nanoseconds, of all measured calls
+     */
+    private long[] measure(Supplier<String> render) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long length = 0;
+
+        for (int i = 0; i < warmUpCalls; i++) {
+            length += render.get().length();
+        }
+
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < measuredCalls; i++) {
+            length += render.get().length();
+        }
+        long time = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+
+        // Use the results, so the calls are not optimized away
+        if (length == 0) {
+            LOGGER.log(Level.WARNING, "[TextRenderTest] Rendered empty texts");
+        }
+
+        return new long[]{bytes, time};
+    }
+
+    /**
+     * Create a text of random words, with an entity at random words
+     *
+     * @param r Random number generator
+     * @return Text with entities
+     */
+    private static TextEntities createText(Random r) {
+        StringBuilder sb = new StringBuilder();
+        int[] starts = new int[wordsNum];
+        int[] lengths = new int[wordsNum];
+
+        for (int i = 0; i < wordsNum; i++) {
+            starts[i] = sb.length();
+            lengths[i] = 3 + r.nextInt(8);
+
+            for (int c = 0; c < lengths[i]; c++) {
+                sb.append(alphabet.charAt(r.nextInt(26)));
+            }
+            sb.append(' ');
+        }
+
+        TextEntities text = new TextEntities();
+        text.setTitle("render-test");
+        text.setText(sb.toString());
+
+        for (int i = 0; i < entitiesNum; i++) {
+            int word = r.nextInt(wordsNum);
+            text.addEntity("Entity " + r.nextInt(entitiesNum / 4), "Type", starts[word], lengths[word]);
+        }
+
+        return text;
+    }
+
+    // Previous implementation of the render methods
+
+    private static String previousPlaceholders(TextEntities text, String placeholder) {
+        int wordsNum = getWords(text).size();
+        ArrayList<String> words = new ArrayList<>(wordsNum);
+        for (int i = 0; i < wordsNum; i++) {
+            words.add(i, placeholder);
+        }
+
+        return previousJoin(text, words);
+    }
+
+    private static String previousSameSize(TextEntities text, String placeholder) {
+        ArrayList<String> words = getWords(text);
+
+        for (int i = 0; i < words.size(); i++) {
+            int wordLen = words.get(i).length();
+            String newWord = "";
+
+            do {
+                newWord += placeholder;
+            } while (newWord.length() <= wordLen);
+
+            words.set(i, newWord.substring(0, wordLen));
+        }
+
+        return previousJoin(text, words);
+    }
+
+    private static String previousRandomWord(TextEntities text) {
+        Random r = new Random();
+        ArrayList<String> words = getWords(text);
+
+        for (int i = 0; i < words.size(); i++) {
+            int wordLen = words.get(i).length();
+            String newWord = "";
+
+            do {
+                newWord += alphabet.charAt(r.nextInt(alphabet.length()));
+            } while (newWord.length() <= wordLen);
+
+            words.set(i, newWord.substring(0, wordLen));
+        }
+
+        return previousJoin(text, words);
+    }
+
+    /**
+     * Put the entities back in the words (at the word that starts at or before each entity's offset) and join them
+     */
+    private static String previousJoin(TextEntities text, ArrayList<String> words) {
+        int[] starts = getWordStarts(text);
+
+        for (int i = 0; i < text.getEntitiesNum(); i++) {
+            int index = 0;
+            while (index + 1 < starts.length && starts[index + 1] <= text.getEntityOffset(i)) {
+                index++;
+            }
+
+            words.set(index, text.getEntityHash(i));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String word : words) {
+            sb.append(word);
+            sb.append(" ");
+        }
+
+        return sb.toString();
+    }
+
+    private static ArrayList<String> getWords(TextEntities text) {
+        ArrayList<String> words = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(text.getText(), " ");
+
+        while (st.hasMoreTokens()) {
+            words.add(st.nextToken());
+        }
+
+        return words;
+    }
+
+    private static int[] getWordStarts(TextEntities text) {
+        String s = text.getText();
+        int[] starts = new int[getWords(text).size()];
+        int word = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != ' ' && (i == 0 || s.charAt(i - 1) == ' ')) {
+                starts[word++] = i;
+            }
+        }
+
+        return starts;
+    }
+
+    private static String getWordLengths(String text) {
+        StringBuilder sb = new StringBuilder();
+
+        for (String word : text.split(" ")) {
+            sb.append(word.length()).append(',');
+        }
+
+        return sb.toString();
+    }
+}
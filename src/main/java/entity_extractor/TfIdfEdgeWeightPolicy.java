@@ -0,0 +1,55 @@
+package entity_extractor;
+
+import org.javatuples.Pair;
+import utils.tf_idf.DocumentParser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scales the weight of the edges that touch terms of the text by the TF-IDF of the terms: the factor is
+ * 1 + scale * (highest TF-IDF of the edge's vertices), so edges between words without TF-IDF keep their weight
+ */
+public class TfIdfEdgeWeightPolicy implements EdgeWeightPolicy {
+    private final float scale;
+
+    /**
+     * Create the policy
+     *
+     * @param scale Factor to multiply the TF-IDF of the terms with
+     */
+    public TfIdfEdgeWeightPolicy(float scale) {
+        this.scale = scale;
+    }
+
+    @Override
+    public Weighting forText(TextEntities text, DocumentParser dp) {
+        final Map<Integer, Float> termFactors = new HashMap<>();
+        List<Pair<String, Double>> terms = dp.getSortedDocumentTerms(text.getTitle());
+
+        if (terms != null) {
+            EntityDictionary labels = GraphCache.getVertexLabels();
+
+            for (Pair<String, Double> term : terms) {
+                termFactors.put(labels.getId(term.getValue0()), (float) (1 + scale * term.getValue1()));
+            }
+        }
+
+        return (from, to) -> {
+            Float fromFactor = termFactors.get(from);
+            Float toFactor = termFactors.get(to);
+
+            if (fromFactor == null) {
+                return toFactor != null ? toFactor : 1;
+            }
+
+            return toFactor != null ? Math.max(fromFactor, toFactor) : fromFactor;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "tfidf*" + scale;
+    }
+}
@@ -0,0 +1,155 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentNGramGraph;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Builds compact word graphs directly from the (already tokenized and replaced) words of a text, instead of rendering
+ * the text to a string and having {@link DocumentNGramGraph#setDataString(String)} split it again. The graph is the
+ * same as the word graph of the rendered text: the words are split into tokens like the word graph does, each token
+ * is a vertex, and there is an edge from each of the previous window tokens to it, weighted by the number of times
+ * the two tokens appear in that order within the window.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TokenGraphBuilder {
+    // Characters that the word graph splits tokens on
+    private final static Pattern separators = Pattern.compile("\\W+");
+
+    /**
+     * Check if graphs with the given parameters can be built directly (only single word n-grams can, for larger
+     * n-grams the graph has to be built from the rendered text)
+     *
+     * @param params Graph with the parameters of the graph to build
+     * @return True if the graph can be built from tokens
+     */
+    public static boolean canBuild(DocumentNGramGraph params) {
+        return params.getMinSize() == 1 && params.getMaxSize() == 1;
+    }
+
+    /**
+     * Build a word graph from the words of a text
+     *
+     * @param words  Words of the text, in order
+     * @param params Graph with the parameters of the graph to build (see {@link #canBuild(DocumentNGramGraph)})
+     * @param labels Dictionary to intern the vertex labels in
+     * @return Compact word graph
+     */
+    public static CompactGraph build(String[] words, DocumentNGramGraph params, EntityDictionary labels) {
+        if (!canBuild(params)) {
+            throw new IllegalArgumentException("Only graphs of single words can be built from tokens");
+        }
+
+        int[] tokens = getTokenIds(words, labels);
+        int tokensNum = tokens.length;
+        int window = params.getWindowSize();
+
+        // One edge key for each pair of tokens within the window; duplicates are counted after sorting
+        long[] keys = new long[(int) Math.min(Integer.MAX_VALUE - 8, (long) tokensNum * window)];
+        int keysNum = 0;
+        for (int i = 0; i < tokensNum; i++) {
+            for (int j = Math.max(0, i - window); j < i; j++) {
+                keys[keysNum++] = CompactGraph.edgeKey(tokens[j], tokens[i]);
+            }
+        }
+
+        Arrays.sort(keys, 0, keysNum);
+
+        long[] edges = new long[keysNum];
+        float[] weights = new float[keysNum];
+        int edgesNum = 0;
+        for (int i = 0; i < keysNum; i++) {
+            if (edgesNum > 0 && edges[edgesNum - 1] == keys[i]) {
+                weights[edgesNum - 1]++;
+            } else {
+                edges[edgesNum] = keys[i];
+                weights[edgesNum] = 1;
+                edgesNum++;
+            }
+        }
+
+        // Every token is a vertex, even if it has no edges
+        int[] sortedTokens = Arrays.copyOf(tokens, tokensNum);
+        Arrays.sort(sortedTokens);
+        int verticesNum = 0;
+        for (int i = 0; i < tokensNum; i++) {
+            if (i == 0 || sortedTokens[i] != sortedTokens[i - 1]) {
+                verticesNum++;
+            }
+        }
+
+        return new CompactGraph(true, 1, 1, window, new int[]{verticesNum},
+                new long[][]{Arrays.copyOf(edges, edgesNum)}, new float[][]{Arrays.copyOf(weights, edgesNum)});
+    }
+
+    /**
+     * Split the words into tokens and get the id of each token. Words that are not a single token (e.g. a placeholder
+     * with punctuation, or an entity hash with a minus sign) become zero or more tokens.
+     *
+     * @param words  Words
+     * @param labels Dictionary to intern the tokens in
+     * @return Token ids
+     */
+    private static int[] getTokenIds(String[] words, EntityDictionary labels) {
+        Map<String, int[]> wordTokens = new HashMap<>();
+        int[] tokens = new int[words.length];
+        int tokensNum = 0;
+
+        for (String word : words) {
+            int[] ids = wordTokens.get(word);
+
+            if (ids == null) {
+                ids = splitWord(word, labels);
+                wordTokens.put(word, ids);
+            }
+
+            if (tokensNum + ids.length > tokens.length) {
+                tokens = Arrays.copyOf(tokens, Math.max(tokensNum + ids.length, tokens.length * 2));
+            }
+
+            for (int id : ids) {
+                tokens[tokensNum++] = id;
+            }
+        }
+
+        return tokensNum == tokens.length ? tokens : Arrays.copyOf(tokens, tokensNum);
+    }
+
+    private static int[] splitWord(String word, EntityDictionary labels) {
+        if (isToken(word)) {
+            return new int[]{labels.getId(word)};
+        }
+
+        String[] parts = separators.split(word);
+        int[] ids = new int[parts.length];
+        int idsNum = 0;
+        for (String part : parts) {
+            if (!part.isEmpty()) {
+                ids[idsNum++] = labels.getId(part);
+            }
+        }
+
+        return Arrays.copyOf(ids, idsNum);
+    }
+
+    /**
+     * Check if a word is one token in word graphs, i.e. it is not empty and has only word characters ([a-zA-Z_0-9])
+     *
+     * @param word Word
+     * @return True if the word is one token
+     */
+    public static boolean isToken(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_')) {
+                return false;
+            }
+        }
+
+        return !word.isEmpty();
+    }
+}
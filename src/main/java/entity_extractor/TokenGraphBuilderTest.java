@@ -0,0 +1,201 @@
+package entity_extractor;
+
+import gr.demokritos.iit.jinsect.documentModel.representations.DocumentWordGraph;
+import utils.Methods;
+import utils.VerySimpleFormatter;
+import utils.tf_idf.DocumentParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that the compact word graphs that are built without rendering the text are the same as the word graphs of
+ * the rendered text, frozen:
+ * <ul>
+ * <li>{@link TokenGraphBuilder#build} from the replaced words, against {@link DocumentWordGraph#setDataString(String)}
+ * of the rendered text, for the word graph, placeholder (with and without top terms) and same size methods</li>
+ * <li>The placeholder and same size graphs of {@link GraphCache}, which are derived from the graph of a template
+ * placeholder by relabeling it (if the placeholder allows it), against the graphs of the rendered text</li>
+ * </ul>
+ * The texts have non-ASCII words, words with underscores and punctuation, entities, and words that repeat within the
+ * window (so the graphs have self-loops). The non-word characters of the texts become spaces when they are set, so
+ * the placeholders also include non-ASCII ones and ones that are not a single token, which are kept when rendering.
+ */
+public class TokenGraphBuilderTest {
+    private final Logger LOGGER = Logger.getLogger("NamedEntityGraph");
+
+    private final static String[] vocabulary = {"the", "a", "of", "bank", "market", "under_score", "_", "x_1", "2016",
+            "café", "naïve", "Αθήνα", "κόσμος", "it's", "re-use", "U.S.", "--", "ΕΕ", "oil_price", "Ω"};
+    private final static String[] placeholders = {"A", "B", "PH2", "x_y", "_", "Ω", ".", "-", "a-b", ""};
+    private final static int randomTexts = 30;
+
+    public static void main(String[] args) {
+        new TokenGraphBuilderTest().start();
+    }
+
+    private void start() {
+        LOGGER.setLevel(Level.FINEST);
+        LOGGER.setUseParentHandlers(false);
+
+        Handler consoleHandler = new ConsoleHandler();
+        consoleHandler.setLevel(Level.INFO);
+        consoleHandler.setFormatter(new VerySimpleFormatter());
+        LOGGER.addHandler(consoleHandler);
+
+        List<TextEntities> texts = createTexts(new Random(7));
+        DocumentParser dp = new DocumentParser();
+        dp.parseFiles(texts);
+
+        // The cached graphs are derived from the template placeholder's graph only with more than one placeholder
+        GraphCache.setPlaceholdersNum(placeholders.length);
+        EntityDictionary labels = GraphCache.getVertexLabels();
+        DocumentWordGraph params = new DocumentWordGraph();
+        int checked = 0;
+        int different = 0;
+
+        for (TextEntities text : texts) {
+            GraphCache cache = new GraphCache(text, dp);
+            List<String> topTerms = getTopTerms(dp, text);
+
+            // Graphs built from the replaced words
+            different += check(text, "word graph", TokenGraphBuilder.build(
+                    text.getReplacedWords(TextEntities.RENDER_KEEP, null, null), params, labels),
+                    text.getText(), labels);
+            checked++;
+
+            for (String ph : placeholders) {
+                different += check(text, "placeholder " + ph, TokenGraphBuilder.build(
+                        text.getReplacedWords(TextEntities.RENDER_PLACEHOLDER, ph, null), params, labels),
+                        text.getEntityTextWithPlaceholders(ph), labels);
+                different += check(text, "placeholder " + ph + " with top terms", TokenGraphBuilder.build(
+                        text.getReplacedWords(TextEntities.RENDER_PLACEHOLDER, ph, topTerms), params, labels),
+                        text.getEntityTextWithPlaceholders(ph, topTerms), labels);
+                different += check(text, "same size " + ph, TokenGraphBuilder.build(
+                        text.getReplacedWords(TextEntities.RENDER_SAME_SIZE, ph, null), params, labels),
+                        text.getEntityTextWithPlaceholderSameSize(ph), labels);
+                checked += 3;
+            }
+
+            // Graphs of the cache, derived from the template placeholder's graph where possible
+            for (String ph : placeholders) {
+                String rendered = topTerms.isEmpty()
+                        ? text.getEntityTextWithPlaceholders(ph)
+                        : text.getEntityTextWithPlaceholders(ph, topTerms);
+
+                different += check(text, "cached placeholder " + ph,
+                        cache.getCompactGraph(Methods.PLACEHOLDER, ph), rendered, labels);
+                different += check(text, "cached same size " + ph,
+                        cache.getCompactGraph(Methods.PLACEHOLDER_SS, ph),
+                        text.getEntityTextWithPlaceholderSameSize(ph), labels);
+                checked += 2;
+            }
+        }
+
+        LOGGER.log(Level.INFO, "[TokenGraphBuilderTest] Checked " + checked + " graphs of " + texts.size() + " texts");
+        LOGGER.log(different == 0 ? Level.INFO : Level.SEVERE, "[TokenGraphBuilderTest] " +
+                (different == 0 ? "All graphs match" : different + " graphs do not match"));
+    }
+
+    /**
+     * Check that a compact graph is the same as the frozen word graph of a rendered text
+     *
+     * @param text     Text, for the log
+     * @param name     Name of the graph, for the log
+     * @param graph    Compact graph to check
+     * @param rendered Rendered text to build the word graph of
+     * @param labels   Vertex label dictionary of the compact graph
+     * @return 0 if the graphs are the same, else 1
+     */
+    private int check(TextEntities text, String name, CompactGraph graph, String rendered, EntityDictionary labels) {
+        DocumentWordGraph g = new DocumentWordGraph();
+        g.setDataString(rendered);
+        CompactGraph expected = CompactGraph.freeze(g, labels);
+
+        if (isSame(graph, expected)) {
+            return 0;
+        }
+
+        LOGGER.log(Level.WARNING, "[TokenGraphBuilderTest] Different " + name + " graph of text " + text.getTitle() +
+                ": " + graph.getVerticesNum(0) + " vertices, " + graph.getEdgesNum(0) + " edges instead of " +
+                expected.getVerticesNum(0) + " vertices, " + expected.getEdgesNum(0) + " edges");
+        return 1;
+    }
+
+    private static boolean isSame(CompactGraph g1, CompactGraph g2) {
+        if (g1.getMinSize() != g2.getMinSize() || g1.getMaxSize() != g2.getMaxSize()) {
+            return false;
+        }
+
+        for (int level = 0; level < g1.getLevelsNum(); level++) {
+            if (g1.getVerticesNum(level) != g2.getVerticesNum(level) ||
+                    !Arrays.equals(g1.getEdges(level), g2.getEdges(level)) ||
+                    !Arrays.equals(g1.getWeights(level), g2.getWeights(level))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static List<String> getTopTerms(DocumentParser dp, TextEntities text) {
+        List<String> terms = new ArrayList<>();
+
+        if (dp.getSortedDocumentTerms(text.getTitle()) != null) {
+            dp.getSortedDocumentTerms(text.getTitle()).forEach(p -> terms.add(p.getValue0()));
+        }
+
+        return terms;
+    }
+
+    /**
+     * Create the test texts: a few fixed ones (empty, repeated words, only non-ASCII words, uneven whitespace) and
+     * random ones from the vocabulary, with entities at random words (some of them longer than their word)
+     *
+     * @param r Random number generator
+     * @return Texts
+     */
+    private static List<TextEntities> createTexts(Random r) {
+        List<String> strings = new ArrayList<>(Arrays.asList("", "a", "a a a a", "a b a b a", "bank bank of bank",
+                "Αθήνα κόσμος Αθήνα", "_ _ x_1 _", "the  bank\tof\nthe market ", "re-use re-use it's"));
+
+        for (int t = 0; t < randomTexts; t++) {
+            StringBuilder sb = new StringBuilder();
+            int wordsNum = 1 + r.nextInt(200);
+
+            for (int i = 0; i < wordsNum; i++) {
+                sb.append(vocabulary[r.nextInt(vocabulary.length)]).append(' ');
+            }
+            strings.add(sb.toString());
+        }
+
+        List<TextEntities> texts = new ArrayList<>();
+        for (int t = 0; t < strings.size(); t++) {
+            TextEntities text = new TextEntities();
+            text.setTitle("token-test-" + t);
+            text.setText(strings.get(t));
+
+            // The text is set with its non-word characters replaced by spaces, so the offsets are found in it after
+            String s = text.getText();
+
+            // Put entities at some of the words (the same name more than once, so its hash repeats)
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) != ' ' && (i == 0 || s.charAt(i - 1) == ' ') && r.nextInt(6) == 0) {
+                    int end = s.indexOf(' ', i);
+                    int length = (end < 0 ? s.length() : end) - i;
+
+                    text.addEntity("Entity " + r.nextInt(5), "Type", i, r.nextInt(4) == 0 ? length + 1 : length);
+                }
+            }
+
+            texts.add(text);
+        }
+
+        return texts;
+    }
+}
@@ -34,4 +34,51 @@ public class Methods {
     public static boolean isEnabled(int method) {
         return methods.get(method);
     }
+
+    /**
+     * Get the number of comparison results that are made for each pair of texts with the enabled methods
+     *
+     * @param placeholdersNum Number of placeholders (methods that use placeholders make one comparison for each)
+     * @return Number of comparison results
+     */
+    public static int getComparisonsNum(int placeholdersNum) {
+        int num = 0;
+
+        for (int method : methods.keySet()) {
+            if (isEnabled(method)) {
+                if (usesPlaceholders(method)) {
+                    num += placeholdersNum;
+                } else {
+                    num++;
+                }
+            }
+        }
+
+        return num;
+    }
+
+    /**
+     * Get the index of the result of a method in the comparison results of a pair of texts, which have the results of
+     * the enabled methods in the order of their ids (one for each placeholder for the methods that use placeholders)
+     *
+     * @param method           Method
+     * @param placeholderIndex Index of the placeholder, for the methods that use one
+     * @param placeholdersNum  Number of placeholders
+     * @return Index of the result
+     */
+    public static int getResultIndex(int method, int placeholderIndex, int placeholdersNum) {
+        int index = 0;
+
+        for (int m = N_GRAMS; m < method; m++) {
+            if (isEnabled(m)) {
+                index += usesPlaceholders(m) ? placeholdersNum : 1;
+            }
+        }
+
+        return usesPlaceholders(method) ? index + placeholderIndex : index;
+    }
+
+    private static boolean usesPlaceholders(int method) {
+        return method == PLACEHOLDER || method == PLACEHOLDER_SS || method == PLACEHOLDER_EXTRA_WEIGHT;
+    }
 }
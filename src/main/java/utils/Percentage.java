@@ -4,4 +4,8 @@ public class Percentage {
     public static double percent(int current, int total) {
         return (current * 100.0) / total;
     }
+
+    public static double percent(long current, long total) {
+        return (current * 100.0) / total;
+    }
 }